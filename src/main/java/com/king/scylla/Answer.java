@@ -4,14 +4,25 @@
 
 package com.king.scylla;
 
+import com.king.scylla.meta.Codec;
 import com.king.scylla.meta.Format;
 import com.king.scylla.meta.QConfig;
 import com.king.scylla.meta.ScyllaException;
+import org.apache.arrow.adapter.jdbc.ArrowVectorIterator;
+import org.apache.arrow.adapter.jdbc.JdbcToArrow;
+import org.apache.arrow.adapter.jdbc.JdbcToArrowConfig;
+import org.apache.arrow.adapter.jdbc.JdbcToArrowConfigBuilder;
+import org.apache.arrow.adapter.jdbc.JdbcToArrowUtils;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
 import org.apache.commons.codec.binary.Base64OutputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.QuoteMode;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
@@ -20,11 +31,15 @@ import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.List;
 
 /*
     This is the essence of Scylla's answers. Modifying this means modifying Scylla's API so any drastic changes to
@@ -35,9 +50,11 @@ import java.sql.SQLException;
     This object has a Scala-ish style which I'll probably replicate elsewhere.
  */
 public class Answer {
+    private static final int ARROW_BATCH_SIZE = 65536;
+
     JSONObject msg;
 
-    enum Status {DONE, PENDING, PEEK, LOCKED}
+    enum Status {DONE, PENDING, PEEK, LOCKED, JOB, BATCH}
 
     enum PeekStatus {YES, NO, LOCKED}
 
@@ -86,18 +103,68 @@ public class Answer {
         return this;
     }
 
+    // one answer per query of a `batch` instruction, in the same order.
+    Answer answers(List<Answer> answers) {
+        JSONArray a = new JSONArray();
+        for (Answer answer : answers) {
+            a.put(answer.msg);
+        }
+        msg.put("answers", a);
+        return this;
+    }
+
     private Answer n(int rows) {
         msg.put("n", rows);
         return this;
     }
 
+    // where a query waiting to run is in the queue (1 is next).
+    Answer queue(int position) {
+        msg.put("queue", position);
+        return this;
+    }
+
+    // the ID of the background query this is about, for `status` and `cancel` instructions.
+    Answer job(String id) {
+        msg.put("job", id);
+        return this;
+    }
+
+    // what a job is up to (queued, running, cancelled...), in answers to `status` and `cancel`.
+    Answer state(String state) {
+        msg.put("state", state);
+        return this;
+    }
+
+    // seconds a job has been running for.
+    Answer elapsed(long seconds) {
+        msg.put("elapsed", seconds);
+        return this;
+    }
+
+    // the request this answers, on multiplexed connections (whatever the client tagged it with).
+    Answer id(Object id) {
+        msg.put("id", id);
+        return this;
+    }
+
+    // the connection is multiplexed from now on (the answer to asking for it).
+    Answer multiplex(boolean multiplex) {
+        msg.put("multiplex", multiplex ? "yes" : "no");
+        return this;
+    }
+
     Answer update(boolean update) {
         msg.put("update", update ? "yes" : "no");
         return this;
     }
 
     boolean isDone() {
-        return msg.has("res") || msg.has("n");
+        return msg.has("res") || msg.has("size") || msg.has("n");
+    }
+
+    boolean isPending() {
+        return "pending".equals(msg.optString("status"));
     }
 
     static Answer emptyAnswer() {
@@ -116,11 +183,11 @@ public class Answer {
 
     }
 
-    private static BZip2CompressorOutputStream CSVDataSetToBZ2(QConfig qc, ResultSet rs, BZip2CompressorOutputStream bz)
+    private static long CSVDataSetToStream(QConfig qc, ResultSet rs, OutputStream cs)
             throws IOException, ScyllaException {
         Logger log = LogManager.getLogger(Answer.class.getName());
         LogColouriser logc = qc.getLogColouriser();
-        OutputStreamWriter o = new OutputStreamWriter(bz, StandardCharsets.UTF_8);
+        OutputStreamWriter o = new OutputStreamWriter(cs, StandardCharsets.UTF_8);
         CSVPrinter p = new CSVPrinter(o, CSVFormat.TDF.withQuoteMode(QuoteMode.NON_NUMERIC).withNullString(""));
         long j = 0;
 
@@ -151,18 +218,18 @@ public class Answer {
 
         log.debug(logc.cuteLog(qc.getUser(), String.format("Successfully fetched %d lines", j)));
 
-        return bz;
+        return j;
     }
 
 
-    private static BZip2CompressorOutputStream JSONDataSetToBZ2(QConfig qc, ResultSet rs, BZip2CompressorOutputStream bz)
+    private static long JSONDataSetToStream(QConfig qc, ResultSet rs, OutputStream cs)
             throws SQLException, JSONException, IOException, ScyllaException {
         Logger log = LogManager.getLogger(Answer.class.getName());
         LogColouriser logc = qc.getLogColouriser();
 
         int nc = rs.getMetaData().getColumnCount();
 
-        bz.write("[".getBytes("UTF-8"));
+        cs.write("[".getBytes("UTF-8"));
 
         long j = 0;
 
@@ -170,68 +237,164 @@ public class Answer {
             JSONObject obj = rowToJSON(rs);
 
             if (j > 0) {
-                bz.write(",".getBytes("UTF-8"));
+                cs.write(",".getBytes("UTF-8"));
             }
-            bz.write(obj.toString().getBytes("UTF-8"));
+            cs.write(obj.toString().getBytes("UTF-8"));
 
             j++;
             hardLimit(j * nc);
         }
 
-        bz.write("]".getBytes("UTF-8"));
+        cs.write("]".getBytes("UTF-8"));
+
+        log.debug(logc.cuteLog(qc.getUser(), String.format("Successfully fetched %d lines", j)));
+
+        return j;
+    }
+
+    /*
+     * Arrow IPC stream: typed columns (from the result set's metadata) in record batches, so clients don't need to
+     * parse anything. Timestamps are UTC.
+     */
+    private static long ArrowDataSetToStream(QConfig qc, ResultSet rs, OutputStream cs)
+            throws SQLException, IOException, ScyllaException {
+        Logger log = LogManager.getLogger(Answer.class.getName());
+        LogColouriser logc = qc.getLogColouriser();
+
+        int nc = rs.getMetaData().getColumnCount();
+        long j = 0;
+
+        // the writer must not close the compressed stream, that's done later on.
+        WritableByteChannel ch = Channels.newChannel(new CloseShieldOutputStream(cs));
+
+        try (BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE)) {
+            JdbcToArrowConfig config = new JdbcToArrowConfigBuilder(allocator, JdbcToArrowUtils.getUtcCalendar())
+                    .setTargetBatchSize(ARROW_BATCH_SIZE)
+                    .setReuseVectorSchemaRoot(true)
+                    .build();
+
+            ArrowStreamWriter writer = null;
+
+            try (ArrowVectorIterator it = JdbcToArrow.sqlToArrowVectorIterator(rs, config)) {
+                while (it.hasNext()) {
+                    // the same root is reused for every batch, so the writer only needs it once.
+                    VectorSchemaRoot root = it.next();
+                    if (writer == null) {
+                        writer = new ArrowStreamWriter(root, null, ch);
+                        writer.start();
+                    }
+                    writer.writeBatch();
+
+                    j += root.getRowCount();
+                    hardLimit(j * nc);
+                }
+
+                if (writer == null) {
+                    // no rows, but clients still want a schema.
+                    try (VectorSchemaRoot root = VectorSchemaRoot.create(
+                            JdbcToArrowUtils.jdbcToArrowSchema(rs.getMetaData(), config), allocator)) {
+                        writer = new ArrowStreamWriter(root, null, ch);
+                        writer.start();
+                        writer.end();
+                    }
+                } else {
+                    writer.end();
+                }
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            throw new ScyllaException(String.format("Can't serialise this data set as Arrow: %s", e.getMessage()), e);
+        }
 
         log.debug(logc.cuteLog(qc.getUser(), String.format("Successfully fetched %d lines", j)));
 
-        return bz;
+        return j;
+    }
+
+    private static OutputStream compressor(QConfig qc, OutputStream os) throws IOException {
+        Codec codec = qc.getCodec();
+        int threads = qc.getConf().getCompressionThreads();
+
+        if (threads > 0 && codec != Codec.NONE) {
+            return new BlockCompressorOutputStream(codec, os, qc.getConf().compressionPool(),
+                    BlockCompressorOutputStream.BLOCK_SIZE, 2 * threads);
+        } else {
+            return codec.compress(os);
+        }
     }
 
     /*
-     * this builds the actual answer containing the data. a JSON object containing two fields:
+     * this builds the actual answer containing the data. the data set is compressed (with the question's codec)
+     * straight into `sink`, which gets closed, and the answer itself only keeps the metadata:
      * 'cols': array column names
-     * 'res': a base64 blob that once decoded and decompressed (bz2) is a JSON/CSV object that can be loaded from
-     *        pandas.
+     * 'format': the format of the data set once decompressed (csv/json/arrow)
+     * 'codec': how the data set is compressed (bz2 if missing, that's how older answers were)
+     * 'rows': number of rows in the data set.
+     * 'size': size of the compressed data set in bytes.
      */
-    public static Answer answerFromResultSet(QConfig qc, ResultSet rs)
+    public static Answer answerFromResultSet(QConfig qc, ResultSet rs, OutputStream sink)
             throws SQLException, JSONException, IOException, ScyllaException {
         JSONObject mo = new JSONObject();
 
-        ByteArrayOutputStream w = new ByteArrayOutputStream();
-        Base64OutputStream b64os = new Base64OutputStream(w);
-        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(b64os);
+        CountingOutputStream w = new CountingOutputStream(sink);
+        OutputStream cs = compressor(qc, w);
 
         JSONArray cols = new JSONArray();
 
-        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-            cols.put(rs.getMetaData().getColumnLabel(i).toLowerCase());
-        }
+        long rows;
 
         try {
-            if(qc.getConf().getFormat().equals(Format.CSV)) {
-                bz = CSVDataSetToBZ2(qc, rs, bz);
-            } else if (qc.getConf().getFormat().equals(Format.JSON)) {
-                bz = JSONDataSetToBZ2(qc, rs, bz);
+            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                cols.put(rs.getMetaData().getColumnLabel(i).toLowerCase());
+            }
+
+            if(qc.getFormat().equals(Format.CSV)) {
+                rows = CSVDataSetToStream(qc, rs, cs);
+            } else if (qc.getFormat().equals(Format.JSON)) {
+                rows = JSONDataSetToStream(qc, rs, cs);
+            } else if (qc.getFormat().equals(Format.ARROW)) {
+                rows = ArrowDataSetToStream(qc, rs, cs);
             } else {
                 throw new ScyllaException("Got asked to serialise in an unkown format.");
             }
         } catch (ScyllaException e) {
-            w.close();
-            bz.close();
-            b64os.close();
+            cs.close();
 
             throw new ScyllaException(e.getMessage());
+        } catch (SQLException | IOException e) {
+            cs.close();
+
+            throw e;
         }
 
-        w.close();
-        bz.close();
-        b64os.close();
+        cs.close();
 
         mo.put("cols", cols);
-        mo.put("res", w.toString("UTF-8"));
-        mo.put("format", qc.getConf().getFormat().toString().toLowerCase());
+        mo.put("format", qc.getFormat().toString().toLowerCase());
+        mo.put("codec", qc.getCodec().getShortName());
+        mo.put("rows", rows);
+        mo.put("size", w.getByteCount());
 
         return new Answer(mo);
     }
 
+    /*
+     * same as above but the data set is kept in memory, in the 'res' field: a base64 blob that once decoded and
+     * decompressed is a JSON/CSV object that can be loaded from pandas.
+     */
+    public static Answer answerFromResultSet(QConfig qc, ResultSet rs)
+            throws SQLException, JSONException, IOException, ScyllaException {
+        ByteArrayOutputStream w = new ByteArrayOutputStream();
+
+        Answer answer = answerFromResultSet(qc, rs, new Base64OutputStream(w));
+        answer.msg.remove("size");
+
+        return answer.res(w.toString("UTF-8"));
+    }
+
     /*
      * this returns the useless answer for (successful) update statements, only containing one field.
      * 'n': number of rows affected
@@ -285,9 +448,41 @@ public class Answer {
         return obj;
     }
 
-    int resSize() {
-        if(msg.has("res")) {
-            return msg.getString("res").length();
+    // everything but the data set, i.e. what goes in the header of a streamed reply.
+    JSONObject header() {
+        JSONObject h = new JSONObject();
+        for (String k : msg.keySet()) {
+            if (!k.equals("res")) {
+                h.put(k, msg.get(k));
+            }
+        }
+        return h;
+    }
+
+    boolean hasRes() {
+        return msg.has("res");
+    }
+
+    String getRes() {
+        return hasRes() ? msg.getString("res") : null;
+    }
+
+    Answer res(String res) {
+        msg.put("res", res);
+        return this;
+    }
+
+    // the data set isn't in the answer but in the cache, next to it.
+    boolean hasPayload() {
+        return msg.has("size") && !msg.has("res");
+    }
+
+    // size of the (compressed) data set in bytes, wherever it is.
+    long size() {
+        if (msg.has("size")) {
+            return msg.getLong("size");
+        } else if (msg.has("res")) {
+            return msg.getString("res").length() * 3L / 4;
         } else {
             return 0;
         }
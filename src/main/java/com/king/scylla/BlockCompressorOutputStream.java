@@ -0,0 +1,131 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.meta.Codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+    pbzip2-style compression: whatever gets written is cut into fixed-size blocks, every block is compressed on its own
+    (in `pool`) and the compressed blocks are written to `out` in order. The result is a bunch of concatenated streams,
+    which every decoder we care about reads as one (bzip2, gzip, zstd and lz4 all allow it).
+
+    The thread writing here only serialises rows and copies compressed blocks around, so it can keep up with the JDBC
+    fetch. At most `maxInFlight` blocks are waiting to be written at any time, so memory stays bounded as well.
+ */
+class BlockCompressorOutputStream extends OutputStream {
+    static final int BLOCK_SIZE = 4 << 20;
+
+    private final Codec codec;
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final int maxInFlight;
+
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+    private byte[] block;
+    private int n = 0;
+
+    BlockCompressorOutputStream(Codec codec, OutputStream out, ExecutorService pool, int blockSize, int maxInFlight) {
+        this.codec = codec;
+        this.out = out;
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (n == blockSize) {
+            submit();
+        }
+        block[n++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (n == blockSize) {
+                submit();
+            }
+            int c = Math.min(len, blockSize - n);
+            System.arraycopy(b, off, block, n, c);
+            n += c;
+            off += c;
+            len -= c;
+        }
+    }
+
+    // flushing doesn't cut blocks short (the CSV printer flushes whenever it wants), it only pushes whatever is
+    // already compressed.
+    @Override
+    public void flush() throws IOException {
+        while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+            drain();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (n > 0) {
+                submit();
+            }
+            while (!inFlight.isEmpty()) {
+                drain();
+            }
+        } finally {
+            for (Future<byte[]> f : inFlight) {
+                f.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] b = block;
+        final int len = n;
+
+        inFlight.add(pool.submit(() -> compress(b, len)));
+
+        block = new byte[blockSize];
+        n = 0;
+
+        while (inFlight.size() > maxInFlight) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        try {
+            out.write(inFlight.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private byte[] compress(byte[] b, int len) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2);
+        try (OutputStream cs = codec.compress(bos)) {
+            cs.write(b, 0, len);
+        }
+        return bos.toByteArray();
+    }
+}
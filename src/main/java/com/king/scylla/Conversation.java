@@ -0,0 +1,335 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.google.common.base.Throwables;
+import com.king.scylla.meta.ScyllaConf;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.king.scylla.Answer.emptyAnswer;
+
+/*
+    One client of the non-blocking front end, from its question to the end of its answer. It's the same protocol as
+    ever: one line with the question, the answer, and the connection is closed.
+
+    Unless the first line is `{"multiplex": true}`: then the connection stays, and every line after it is an
+    instruction with an "id" of the client's choosing. They're all answered (each answer with the "id" it answers) as
+    soon as they're ready, not necessarily in the order they came, and the connection is closed once the client's done
+    asking (it closes its side) and everything's been answered. At most `MAX_IN_FLIGHT` of them are worked on at once:
+    past that, whatever's been read already waits in the read buffer (it's only parsed once some are answered), and the
+    rest in the socket.
+
+    The question is read (and, when it can be, answered) in the event loop: peeks and cache hits never leave it. When
+    the answer needs the database, or a data set that can't be sent from a file or a buffer, the question goes to the
+    worker pool, and the answer is queued from there.
+ */
+class Conversation {
+    private static final Logger log = LogManager.getLogger(Conversation.class.getName());
+
+    // queries can be long, but not this long.
+    static final int MAX_QUESTION = 64 << 20;
+
+    // milliseconds a client gets to ask its question (as the socket timeout used to), or for its next one when it's
+    // multiplexed.
+    static final long QUESTION_TIMEOUT = 300000;
+
+    // questions of a multiplexed connection being answered at once.
+    static final int MAX_IN_FLIGHT = 64;
+
+    interface Factory {
+        Conversation create(SocketChannel ch, EventLoop loop) throws IOException;
+    }
+
+    private final SocketChannel ch;
+    private final EventLoop loop;
+    private final ExecutorService pool;
+    private final QueryScheduler scheduler;
+    private final ScyllaConf conf;
+    private final String addr;
+
+    private SelectionKey key;
+
+    private final ByteBuffer in = ByteBuffer.allocate(16384);
+    private final ByteArrayOutputStream question = new ByteArrayOutputStream();
+    private long since = System.currentTimeMillis();
+    private boolean asked = false;
+
+    private boolean multiplexed = false;
+    // the client's closed its side: nothing else is coming.
+    private boolean eof = false;
+    // multiplexed: there's something read (from the start of `in`) waiting for room to be parsed.
+    private boolean backlog = false;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Outbound out;
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+    private volatile boolean answered = false;
+
+    Conversation(SocketChannel ch, EventLoop loop, ExecutorService pool, QueryScheduler scheduler, ScyllaConf conf)
+            throws IOException {
+        this.ch = ch;
+        this.loop = loop;
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.conf = conf;
+        this.addr = ch.socket().getInetAddress().toString();
+        this.out = new Outbound(loop, this::flush);
+    }
+
+    void start(SelectionKey key) {
+        this.key = key;
+        log.debug(String.format("Got connection from [%s].", LogColouriser.whiteOnPink(addr)));
+    }
+
+    void readable() throws IOException {
+        int n = ch.read(in);
+        if (n < 0) {
+            eof = true;
+            if (!multiplexed) {
+                // no newline, the way `readLine` sees it: whatever came is the question.
+                ask(question.size() > 0 ? new String(question.toByteArray(), StandardCharsets.UTF_8) : null, null);
+            } else {
+                done();
+                writable();
+            }
+            return;
+        }
+        since = System.currentTimeMillis();
+        if (!parse()) {
+            if (backlog) {
+                // no more reading until there's room.
+                writable();
+            }
+            return;
+        }
+
+        if (question.size() > MAX_QUESTION) {
+            // multiplexed or not, there's no telling where the next question starts: that's it for this connection.
+            asked = true;
+            eof = true;
+            key.interestOps(0);
+            new Reply(out, false).send(emptyAnswer().ok(false)
+                    .err(String.format("The instruction is too long (more than %d bytes)!", MAX_QUESTION)));
+            answered = true;
+            flush();
+        } else if (multiplexed) {
+            writable();
+        }
+    }
+
+    // goes through the lines in `in`, false once there's nothing else to read (for now: `backlog` says if there's
+    // more to parse once there's room). event loop only.
+    private boolean parse() throws IOException {
+        byte[] buf = in.array();
+        int start = 0;
+        for (int i = 0; i < in.position(); i++) {
+            if (multiplexed && inFlight.get() >= MAX_IN_FLIGHT) {
+                // what's left waits where it is, and `answered` takes it from there.
+                int left = in.position() - start;
+                System.arraycopy(buf, start, buf, 0, left);
+                in.position(left);
+                backlog = left > 0;
+                return false;
+            }
+            if (buf[i] == '\n') {
+                int end = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+                question.write(buf, start, end - start);
+                String line = new String(question.toByteArray(), StandardCharsets.UTF_8);
+                question.reset();
+                start = i + 1;
+                if (!line(line)) {
+                    return false;
+                }
+            }
+        }
+        question.write(buf, start, in.position() - start);
+        in.clear();
+        backlog = false;
+        return true;
+    }
+
+    // false once there's nothing else to read.
+    private boolean line(String line) throws IOException {
+        if (multiplexed) {
+            if (!line.trim().isEmpty()) {
+                askTagged(line);
+            }
+            return true;
+        } else if (!asked && multiplex(line)) {
+            multiplexed = true;
+            asked = true;
+            log.debug(String.format("[%s] is multiplexing.", addr));
+            new Reply(out, false).send(emptyAnswer().ok(true).multiplex(true));
+            return true;
+        }
+        ask(line, null);
+        return false;
+    }
+
+    private static boolean multiplex(String line) {
+        if (!line.contains("multiplex")) {
+            return false;
+        }
+        try {
+            JSONObject o = new JSONObject(line);
+            return o.optBoolean("multiplex", false) && !o.has("query");
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    // one instruction of a multiplexed connection: it has to say which one it is.
+    private void askTagged(String rawQuestion) throws IOException {
+        Object id;
+        try {
+            id = new JSONObject(rawQuestion).opt("id");
+        } catch (JSONException e) {
+            id = null;
+        }
+        if (id == null) {
+            new Reply(out, false).send(emptyAnswer().ok(false).err("Instructions on a multiplexed connection need " +
+                    "an 'id'!"));
+            return;
+        }
+        ask(rawQuestion, id);
+    }
+
+    private void ask(String rawQuestion, Object id) throws IOException {
+        asked = true;
+        if (!multiplexed) {
+            key.interestOps(0);
+        }
+        inFlight.incrementAndGet();
+
+        Scylla scylla = new Scylla(addr, scheduler, conf);
+        Function<Boolean, Reply> replies = stream -> new Reply(out, stream, id);
+
+        if (scylla.answer(rawQuestion, replies, true)) {
+            answered();
+            return;
+        }
+
+        try {
+            pool.execute(() -> {
+                try {
+                    scylla.answer(rawQuestion, replies, false);
+                } catch (ClosedChannelException e) {
+                    log.debug(String.format("[%s] left before getting its answer.", addr));
+                } catch (IOException e) {
+                    log.error(Throwables.getStackTraceAsString(e));
+                } finally {
+                    answered();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            new Reply(out, false, id).send(emptyAnswer().ok(false).err("Scylla is shutting down, try again later!"));
+            answered();
+        }
+    }
+
+    // an answer's been queued in full: the connection closes once it's sent, if it was the last one.
+    private void answered() {
+        inFlight.decrementAndGet();
+        if (!multiplexed) {
+            answered = true;
+        }
+        flush();
+    }
+
+    // multiplexed: nothing else is coming, it closes once everything's answered.
+    private void done() {
+        if (eof && inFlight.get() == 0 && !backlog) {
+            answered = true;
+        }
+    }
+
+    private void flush() {
+        if (flushing.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushing.set(false);
+                try {
+                    writable();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+    }
+
+    // reading (multiplexed) while there's room for more questions, writing while there's something to send.
+    void writable() throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (!out.isOpen()) {
+            // a reply broke half-way.
+            close();
+            return;
+        }
+        if (multiplexed && backlog && inFlight.get() < MAX_IN_FLIGHT) {
+            parse();
+        }
+        if (multiplexed) {
+            done();
+        }
+        int read = multiplexed && !eof && !backlog && inFlight.get() < MAX_IN_FLIGHT ? SelectionKey.OP_READ : 0;
+        if (out.drain(ch)) {
+            if (answered) {
+                close();
+            } else {
+                key.interestOps(read);
+            }
+        } else {
+            key.interestOps(read | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void checkIdle(long now) {
+        if ((!asked || multiplexed && inFlight.get() == 0) && now - since > QUESTION_TIMEOUT) {
+            log.error(String.format("[%s] never asked anything, giving up on it.", addr));
+            close();
+        }
+    }
+
+    void fail(Exception e) {
+        if (e instanceof IOException) {
+            log.debug(String.format("Lost [%s]: %s", addr, e.getMessage()));
+        } else {
+            log.error(Throwables.getStackTraceAsString(e));
+        }
+        close();
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        out.close();
+        try {
+            if (ch.isOpen()) {
+                log.debug(String.format("Closing connection from [%s].", LogColouriser.whiteOnPink(addr)));
+                ch.close();
+            }
+        } catch (IOException e) {
+            log.error(Throwables.getStackTraceAsString(e));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+    One thread with a selector, looking after a share of the connections of the non-blocking front end: it reads their
+    questions, answers the ones that don't need the database and sends back whatever's been queued for them. It must
+    never wait for anything but the selector, so everything else (queries, verifications, data sets that have to be read
+    from elsewhere) goes to the worker pool.
+ */
+class EventLoop implements Runnable {
+    private static final Logger log = LogManager.getLogger(EventLoop.class.getName());
+
+    // how often (milliseconds) we look for clients that never get to ask anything.
+    private static final long IDLE_CHECK = 1000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // runs `task` in the loop, as soon as it's done with what it's doing.
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // from now on `ch` is ours.
+    void adopt(SocketChannel ch, Conversation.Factory factory) {
+        execute(() -> {
+            try {
+                ch.configureBlocking(false);
+                Conversation c = factory.create(ch, this);
+                c.start(ch.register(selector, SelectionKey.OP_READ, c));
+            } catch (IOException e) {
+                log.error("Couldn't take a new connection: " + e.getMessage());
+                try {
+                    ch.close();
+                } catch (IOException d) {
+                    // it's gone anyway.
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastCheck = System.currentTimeMillis();
+
+        while (running) {
+            try {
+                selector.select(IDLE_CHECK);
+            } catch (IOException e) {
+                log.error(Throwables.getStackTraceAsString(e));
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error(Throwables.getStackTraceAsString(e));
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                Conversation c = (Conversation) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        c.readable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        c.writable();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    c.fail(e);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastCheck >= IDLE_CHECK) {
+                lastCheck = now;
+                // copied, conversations timing out cancel their keys.
+                List<SelectionKey> keys = new ArrayList<>(selector.keys());
+                for (SelectionKey key : keys) {
+                    if (key.isValid()) {
+                        ((Conversation) key.attachment()).checkIdle(now);
+                    }
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Conversation) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error(Throwables.getStackTraceAsString(e));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.meta.ScyllaConf;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/*
+    The non-blocking front end: connections are accepted here and shared out among a few event loops, instead of
+    getting a thread each. Idle clients and cache hits cost no threads at all, and the worker pool is left for what
+    really needs one (the database).
+ */
+class FrontEnd {
+    private static final Logger log = LogManager.getLogger(FrontEnd.class.getName());
+
+    private final EventLoop[] loops;
+    private final Conversation.Factory factory;
+
+    FrontEnd(int eventLoops, ExecutorService pool, QueryScheduler scheduler, ScyllaConf conf) throws IOException {
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(String.format("Event loop %d", i + 1));
+            loops[i].start();
+        }
+        this.factory = (ch, loop) -> new Conversation(ch, loop, pool, scheduler, conf);
+    }
+
+    @SuppressWarnings("InfiniteLoopStatement")
+    void serve(ServerSocketChannel ss) throws IOException {
+        log.debug(String.format("Sharing connections among %d event loops.", loops.length));
+
+        int i = 0;
+        while (true) {
+            SocketChannel ch = ss.accept();
+            loops[i].adopt(ch, factory);
+            i = (i + 1) % loops.length;
+        }
+    }
+
+    void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.cache.CacheException;
+import com.king.scylla.connectors.DBConnector;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    The background queries of this process, from the moment they're queued until they're done, by job ID: the owner of
+    their lease (which is also how the journal knows them). This is what `status` and `cancel` instructions look at.
+ */
+final class Jobs {
+    enum State {QUEUED, RUNNING}
+
+    static final class Job {
+        private final String id;
+        private final String user;
+        private final String key;
+        private final DBConnector connector;
+        // takes it out of the scheduler's queue and lets go of everything it holds, false if it's started already.
+        private final Drop drop;
+
+        private volatile State state = State.QUEUED;
+        private volatile long started = 0;
+
+        private Job(String id, String user, String key, DBConnector connector, Drop drop) {
+            this.id = id;
+            this.user = user;
+            this.key = key;
+            this.connector = connector;
+            this.drop = drop;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getUser() {
+            return user;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        // milliseconds, 0 if it hasn't started.
+        long getStarted() {
+            return started;
+        }
+
+        void running() {
+            started = System.currentTimeMillis();
+            state = State.RUNNING;
+        }
+
+        boolean drop() throws CacheException {
+            return drop.drop();
+        }
+
+        DBConnector getConnector() {
+            return connector;
+        }
+    }
+
+    interface Drop {
+        boolean drop() throws CacheException;
+    }
+
+    private static final ConcurrentHashMap<String, Job> byId = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Job> byKey = new ConcurrentHashMap<>();
+
+    private Jobs() {
+    }
+
+    static Job add(String id, String user, String key, DBConnector connector, Drop drop) {
+        Job job = new Job(id, user, key, connector, drop);
+        byId.put(id, job);
+        byKey.put(key, job);
+        return job;
+    }
+
+    static void remove(Job job) {
+        byId.remove(job.id, job);
+        byKey.remove(job.key, job);
+    }
+
+    // null if it's done (or it's some other Scylla's).
+    static Job get(String id) {
+        return byId.get(id);
+    }
+
+    static Job forKey(String key) {
+        return byKey.get(key);
+    }
+}
@@ -0,0 +1,349 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    What's waiting to go back to a client of the non-blocking front end. Replies don't write to the socket themselves:
+    each of them gets a section, where they queue bytes (copied), buffers (not copied) and regions of files, and the
+    event loop sends them whenever the socket can take more. File regions are sent with `transferTo`, so cached data
+    sets still never go through the heap.
+
+    Whoever queues from outside the event loop (a worker streaming a data set from Redis...) has to wait once there's
+    more than `MAX_PENDING` bytes queued in its section or, for the sections that aren't going out yet, in the whole
+    connection: a slow client can't make us hold a whole data set in memory, nor a multiplexed one 64 of them. The
+    event loop itself never waits: it only queues what's already in memory, or file regions. The waiting is on a lock
+    and not a monitor: with `--virtual-threads` the workers are virtual, and one waiting in a monitor pins its carrier
+    for as long as the client takes.
+ */
+class Outbound {
+    static final long MAX_PENDING = 8 << 20;
+
+    private interface Chunk {
+        // true once it's all been written.
+        boolean writeTo(WritableByteChannel ch) throws IOException;
+
+        long size();
+
+        void discard();
+    }
+
+    private static class Bytes implements Chunk {
+        private final ByteBuffer buf;
+        private final long size;
+
+        Bytes(ByteBuffer buf) {
+            this.buf = buf;
+            this.size = buf.remaining();
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel ch) throws IOException {
+            ch.write(buf);
+            return !buf.hasRemaining();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    private static class Region implements Chunk {
+        private final FileChannel fc;
+        private long position;
+        private final long end;
+
+        Region(FileChannel fc, long position, long count) {
+            this.fc = fc;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel ch) throws IOException {
+            long t = fc.transferTo(position, end - position, ch);
+            if (t <= 0 && position >= fc.size()) {
+                throw new IOException("Data set shorter than expected");
+            }
+            position += t;
+            return position >= end;
+        }
+
+        // regions don't take any memory.
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    // closes something (the file the regions before it come from) once everything before it's been sent.
+    private static class Close implements Chunk {
+        private final Closeable c;
+
+        Close(Closeable c) {
+            this.c = c;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel ch) {
+            discard();
+            return true;
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public void discard() {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do about it.
+            }
+        }
+    }
+
+    // what one reply queues. sections go out whole, one after another, in the order they were opened: replies to
+    // a multiplexed connection can be written at the same time (and go out as soon as they're ready), they just never
+    // get mixed up. the one going out only waits for itself (never for the ones behind it), the others for the lot.
+    class Section implements WritableByteChannel {
+        private final Deque<Chunk> chunks = new ArrayDeque<>();
+        private long pending = 0;
+        private boolean ended = false;
+
+        private final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len > 0) {
+                    queue(Section.this, new Bytes(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len))));
+                }
+            }
+        };
+
+        private Section() {
+        }
+
+        // the same thing as an `OutputStream`, for everything that isn't a data set.
+        OutputStream stream() {
+            return stream;
+        }
+
+        // queues (a copy of) what's left in `src`.
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(n);
+            copy.put(src).flip();
+            queue(this, new Bytes(copy));
+            return n;
+        }
+
+        // queues `buf` itself: it mustn't change until it's been sent.
+        void buffer(ByteBuffer buf) throws IOException {
+            queue(this, new Bytes(buf));
+        }
+
+        void transfer(FileChannel fc, long position, long count) throws IOException {
+            queue(this, new Region(fc, position, count));
+        }
+
+        // `c` is closed once everything queued so far has been sent (or when the connection goes away).
+        void closeWhenSent(Closeable c) throws IOException {
+            queue(this, new Close(c));
+        }
+
+        // the reply's all here: whatever comes after it can go out once it's sent.
+        void end() {
+            boolean head;
+            lock.lock();
+            try {
+                ended = true;
+                head = sections.peekFirst() == this;
+            } finally {
+                lock.unlock();
+            }
+            if (head) {
+                flush.run();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return Outbound.this.isOpen();
+        }
+
+        // same as `end`: the connection stays.
+        @Override
+        public void close() {
+            end();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled whenever something's been sent (or the connection's gone).
+    private final Condition sent = lock.newCondition();
+    private final Deque<Section> sections = new ArrayDeque<>();
+    // what's queued in all of them.
+    private long pending = 0;
+    private boolean closed = false;
+
+    private final EventLoop loop;
+    // asks the event loop to send what's been queued.
+    private final Runnable flush;
+
+    Outbound(EventLoop loop, Runnable flush) {
+        this.loop = loop;
+        this.flush = flush;
+    }
+
+    // a section for the next reply, which goes out after everything opened before it.
+    Section open() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            Section s = new Section();
+            sections.addLast(s);
+            return s;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void queue(Section s, Chunk c) throws IOException {
+        boolean flushing;
+        lock.lock();
+        try {
+            while (!closed && !loop.inLoop() &&
+                    (s.pending > MAX_PENDING || sections.peekFirst() != s && pending > MAX_PENDING)) {
+                try {
+                    sent.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the client");
+                }
+            }
+            if (closed) {
+                c.discard();
+                throw new ClosedChannelException();
+            }
+            flushing = s.chunks.isEmpty() && sections.peekFirst() == s;
+            s.chunks.addLast(c);
+            s.pending += c.size();
+            pending += c.size();
+        } finally {
+            lock.unlock();
+        }
+        if (flushing) {
+            flush.run();
+        }
+    }
+
+    // sends as much as `ch` (non-blocking) takes right now: true once there's nothing left that can be sent (the
+    // section going out might not be done yet). event loop only.
+    boolean drain(WritableByteChannel ch) throws IOException {
+        while (true) {
+            Section s;
+            Chunk c;
+            lock.lock();
+            try {
+                s = sections.peekFirst();
+                if (s == null) {
+                    return true;
+                }
+                c = s.chunks.peekFirst();
+                if (c == null) {
+                    if (!s.ended) {
+                        return true;
+                    }
+                    sections.pollFirst();
+                    // the next one's going out now.
+                    sent.signalAll();
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!c.writeTo(ch)) {
+                return false;
+            }
+            lock.lock();
+            try {
+                s.chunks.pollFirst();
+                s.pending -= c.size();
+                pending -= c.size();
+                sent.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // the connection's gone (or a reply broke half-way, and nothing after it would make sense): whatever's left is
+    // dropped, and whoever was waiting to queue more finds out.
+    void close() {
+        Deque<Chunk> dropped = new ArrayDeque<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Section s : sections) {
+                dropped.addAll(s.chunks);
+                s.chunks.clear();
+                s.pending = 0;
+            }
+            sections.clear();
+            pending = 0;
+            sent.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dropped.forEach(Chunk::discard);
+    }
+
+    // same as above, and the connection's told to go.
+    void abort() {
+        close();
+        flush.run();
+    }
+}
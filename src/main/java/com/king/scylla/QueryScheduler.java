@@ -0,0 +1,454 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.google.common.base.Throwables;
+import com.king.scylla.meta.ScyllaConf;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Where background queries wait for their turn, instead of piling up in the worker pool's queue in the order they
+    came. Users take turns (weighted fair queuing: every query a user starts costs them 1/weight, and whoever has spent
+    the least goes next), so somebody launching 500 queries in a loop only gets their share while everybody else's
+    queries keep going.
+
+    There are two lanes: the interactive one (queries that look cheap) always goes first and has slots of its own, so
+    quick lookups don't wait behind hours of batch jobs. Lanes only decide where a query waits and which slots it
+    takes; users are the same in both, and so are their quotas and what they've spent:
+
+    - at most `maxRunning` queries run at once (per lane), and at most `maxQueued` wait (overall): past that, queries
+      are turned down (with a `RejectedExecutionException` saying why) rather than queued forever.
+    - each user gets at most `userMaxRunning` running and `userMaxQueued` waiting (in both lanes together), and while
+      the data sets of a user's running queries add up to more than `userMaxBytes` (if it's not zero) their next query
+      waits.
+    - a query only starts once its backend has a free slot (see `ScyllaConf.querySlots`): until then it doesn't take
+      one of the lane's, and queries for other backends go ahead of it.
+
+    Users only get credit while they have queries around: one coming back after a while starts level with whoever's
+    there, not with the time they spent away in the bank.
+ */
+class QueryScheduler {
+    private static final Logger log = LogManager.getLogger(QueryScheduler.class.getName());
+
+    // in order of priority.
+    enum Lane {INTERACTIVE, BATCH}
+
+    interface Job {
+        void run(Ticket ticket) throws Exception;
+
+        // its turn came but the executor wouldn't take it: it's out of the scheduler and it never runs, whatever it
+        // was holding on to is its own business. called without the scheduler's lock.
+        default void rejected(Ticket ticket, RejectedExecutionException e) {
+        }
+    }
+
+    // a query in the scheduler, waiting or running. running ones hold a slot of their backend (if it has slots).
+    static final class Ticket {
+        private final String user;
+        private final String key;
+        private final Lane lane;
+        private final Semaphore slots;
+        private final Job job;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Ticket(String user, String key, Lane lane, Semaphore slots, Job job) {
+            this.user = user;
+            this.key = key;
+            this.lane = lane;
+            this.slots = slots;
+            this.job = job;
+        }
+
+        // counts what goes through into the user's bytes in flight.
+        OutputStream meter(OutputStream os) {
+            return new FilterOutputStream(os) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytes.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytes.addAndGet(len);
+                }
+            };
+        }
+
+        // whether the backend has room for it, taking the slot if it does. fair semaphores are fair with a timeout
+        // only: queries waiting for a slot outside the scheduler (the ones answered straight away) go first.
+        private boolean claimSlot() {
+            try {
+                return slots == null || slots.tryAcquire(0, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private void releaseSlot() {
+            if (slots != null) {
+                slots.release();
+            }
+        }
+    }
+
+    private static class User {
+        private final double weight;
+        private final Map<Lane, Deque<Ticket>> waiting = new EnumMap<>(Lane.class);
+        private final Set<Ticket> running = new HashSet<>();
+        private double spent = 0;
+
+        User(double weight) {
+            this.weight = weight;
+            for (Lane lane : Lane.values()) {
+                waiting.put(lane, new ArrayDeque<>());
+            }
+        }
+
+        Deque<Ticket> waiting(Lane lane) {
+            return waiting.get(lane);
+        }
+
+        int queued() {
+            return waiting.values().stream().mapToInt(Deque::size).sum();
+        }
+
+        long bytesInFlight() {
+            return running.stream().mapToLong(t -> t.bytes.get()).sum();
+        }
+
+        boolean idle() {
+            return queued() == 0 && running.isEmpty();
+        }
+    }
+
+    private static class Queue {
+        private final int maxRunning;
+        private int running = 0;
+        private int queued = 0;
+
+        Queue(int maxRunning) {
+            this.maxRunning = maxRunning;
+        }
+    }
+
+    private final Executor executor;
+    private final int maxQueued;
+    private final int userMaxRunning;
+    private final int userMaxQueued;
+    private final long userMaxBytes;
+    private final Map<String, Double> weights;
+
+    // a lock and not a monitor: every worker (virtual ones with `--virtual-threads`) goes through here when its
+    // query is done, and a virtual thread blocked on a monitor pins its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Lane, Queue> lanes = new EnumMap<>(Lane.class);
+    // in order of arrival, which is how ties are broken.
+    private final Map<String, User> users = new LinkedHashMap<>();
+    private final Map<String, Ticket> waitingByKey = new HashMap<>();
+    // tickets the executor turned down, to be told once we've let go of the lock.
+    private final List<Runnable> rejections = new ArrayList<>();
+
+    QueryScheduler(Executor executor, ScyllaConf conf) {
+        this(executor, conf.getSchedulerInteractiveRunning(), conf.getSchedulerMaxRunning(),
+                conf.getSchedulerMaxQueued(), conf.getUserMaxRunning(), conf.getUserMaxQueued(),
+                conf.getUserMaxBytesInFlight(), conf.getUserWeights());
+    }
+
+    QueryScheduler(Executor executor, int interactiveRunning, int maxRunning, int maxQueued, int userMaxRunning,
+                   int userMaxQueued, long userMaxBytes, Map<String, Double> weights) {
+        this.executor = executor;
+        this.maxQueued = maxQueued;
+        this.userMaxRunning = userMaxRunning;
+        this.userMaxQueued = userMaxQueued;
+        this.userMaxBytes = userMaxBytes;
+        this.weights = weights != null ? weights : Collections.emptyMap();
+
+        lanes.put(Lane.INTERACTIVE, new Queue(interactiveRunning));
+        lanes.put(Lane.BATCH, new Queue(maxRunning));
+    }
+
+    // `slots` are the backend's, null if it has no limit.
+    Ticket submit(String user, String key, Lane lane, Semaphore slots, Job job) {
+        Ticket t;
+        lock.lock();
+        try {
+            t = enqueue(user, key, lane, slots, job);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        reject();
+        return t;
+    }
+
+    private Ticket enqueue(String user, String key, Lane lane, Semaphore slots, Job job) {
+        Queue q = lanes.get(lane);
+        User u = users.get(user);
+        int userQueued = u != null ? u.queued() : 0;
+
+        if (queued() >= maxQueued) {
+            throw new RejectedExecutionException(String.format("Scylla's queue is full (%d queries waiting), try " +
+                    "again later!", queued()));
+        } else if (userQueued >= userMaxQueued) {
+            throw new RejectedExecutionException(String.format("You have %d queries waiting already, try again " +
+                    "once some of them are done!", userQueued));
+        }
+
+        if (u == null) {
+            u = new User(weights.getOrDefault(user, 1.0));
+            // no credit for the time away.
+            u.spent = users.values().stream().mapToDouble(o -> o.spent).min().orElse(0);
+            users.put(user, u);
+        }
+
+        Ticket t = new Ticket(user, key, lane, slots, job);
+        u.waiting(lane).addLast(t);
+        waitingByKey.put(key, t);
+        q.queued++;
+        return t;
+    }
+
+    // somebody outside the scheduler gave a backend slot back: a query waiting for it might start now.
+    void wakeUp() {
+        lock.lock();
+        try {
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        reject();
+    }
+
+    // takes the query out of the queue, false if it's started already (or it's not here).
+    boolean cancel(String key) {
+        lock.lock();
+        try {
+            Ticket t = waitingByKey.remove(key);
+            if (t == null) {
+                return false;
+            }
+
+            User u = users.get(t.user);
+            u.waiting(t.lane).remove(t);
+            lanes.get(t.lane).queued--;
+            if (u.idle()) {
+                users.remove(t.user);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 1 for the next query to run, 0 if it's not waiting here (it's running, or it's somebody else's). it's where it
+    // is right now: users coming and going (and backends being busy) can change that.
+    //
+    // it's the order queries would start in if nobody hit a quota, without playing it out: a user's i-th waiting query
+    // starts once they've spent `spent + i / weight`, so what goes before the target is, for every other user, how
+    // many of theirs in the same lane start below the target's cost (or at it, for the ones who came first). one pass
+    // over the users. what they start in the other lane counts too, so this is a guess and not a promise.
+    int position(String key) {
+        lock.lock();
+        try {
+            Ticket target = waitingByKey.get(key);
+            if (target == null) {
+                return 0;
+            }
+
+            int position = 1;
+            for (Map.Entry<Lane, Queue> e : lanes.entrySet()) {
+                if (e.getKey() == target.lane) {
+                    break;
+                }
+                position += e.getValue().queued;
+            }
+
+            User owner = users.get(target.user);
+            int i = 0;
+            for (Ticket t : owner.waiting(target.lane)) {
+                if (t == target) {
+                    break;
+                }
+                i++;
+            }
+            double cost = owner.spent + i / owner.weight;
+            position += i;
+
+            boolean earlier = true;
+            for (User u : users.values()) {
+                if (u == owner) {
+                    earlier = false;
+                    continue;
+                }
+                position += Math.min(u.waiting(target.lane).size(), before(u, cost, earlier));
+            }
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // how many of `u`'s queries start before one that costs `cost`: every query they start costs them 1/weight, and
+    // users who came first win ties.
+    private static int before(User u, double cost, boolean earlier) {
+        double n = (cost - u.spent) * u.weight;
+        if (n < 0) {
+            return 0;
+        }
+        return earlier ? (int) Math.floor(n) + 1 : (int) Math.ceil(n);
+    }
+
+    int running() {
+        lock.lock();
+        try {
+            return lanes.values().stream().mapToInt(q -> q.running).sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int queued() {
+        lock.lock();
+        try {
+            return lanes.values().stream().mapToInt(q -> q.queued).sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean withinQuota(User u, Lane lane) {
+        return !u.waiting(lane).isEmpty() && u.running.size() < userMaxRunning &&
+                (userMaxBytes <= 0 || u.bytesInFlight() < userMaxBytes);
+    }
+
+    // the first of the user's queries in the lane whose backend has room, with the slot taken.
+    private static Ticket startable(User u, Lane lane) {
+        for (Ticket t : u.waiting(lane)) {
+            if (t.claimSlot()) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private void dispatch() {
+        for (Map.Entry<Lane, Queue> e : lanes.entrySet()) {
+            Queue q = e.getValue();
+            while (q.running < q.maxRunning && start(e.getKey(), q)) {
+                // next one.
+            }
+        }
+    }
+
+    // false if nothing could start.
+    private boolean start(Lane lane, Queue q) {
+        List<User> candidates = new ArrayList<>();
+        for (User u : users.values()) {
+            if (withinQuota(u, lane)) {
+                candidates.add(u);
+            }
+        }
+        // cheapest first, arrival order breaking ties (the sort is stable).
+        candidates.sort((a, b) -> Double.compare(a.spent, b.spent));
+
+        for (User u : candidates) {
+            Ticket t = startable(u, lane);
+            if (t == null) {
+                continue;
+            }
+
+            u.waiting(lane).remove(t);
+            waitingByKey.remove(t.key, t);
+            q.queued--;
+            u.running.add(t);
+            u.spent += 1.0 / u.weight;
+            q.running++;
+
+            try {
+                executor.execute(() -> run(t));
+            } catch (RejectedExecutionException e) {
+                log.error("Couldn't start a query: " + e.getMessage());
+                done(t);
+                rejections.add(() -> t.job.rejected(t, e));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void run(Ticket t) {
+        try {
+            t.job.run(t);
+        } catch (Exception e) {
+            log.error(Throwables.getStackTraceAsString(e));
+        } finally {
+            lock.lock();
+            try {
+                done(t);
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+            reject();
+        }
+    }
+
+    // tells the jobs the executor turned down, outside the lock (they've got locks and leases to let go of).
+    private void reject() {
+        List<Runnable> l;
+        lock.lock();
+        try {
+            if (rejections.isEmpty()) {
+                return;
+            }
+            l = new ArrayList<>(rejections);
+            rejections.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable r : l) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                log.error(Throwables.getStackTraceAsString(e));
+            }
+        }
+    }
+
+    private void done(Ticket t) {
+        t.releaseSlot();
+        User u = users.get(t.user);
+        u.running.remove(t);
+        lanes.get(t.lane).running--;
+        if (u.idle()) {
+            users.remove(t.user);
+        }
+    }
+}
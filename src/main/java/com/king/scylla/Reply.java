@@ -0,0 +1,234 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.cache.ByteBufferChannel;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ReaderInputStream;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+    This is how answers go back through the socket. There are two flavours:
+
+    - the classic one: the whole answer as a minified one-line JSON, data set included (base64 in 'res', even when it
+      comes from the cache on its own).
+    - the streamed one (`"stream": true` in the question): a one-line JSON header with everything but 'res' (plus
+      'codec'), followed by the raw compressed data set cut into frames. Each frame is a 4-byte big-endian length
+      followed by that many bytes, and a zero-length frame closes the reply (answers without data sets only get
+      the closing frame).
+
+    The streamed flavour never builds the full reply as a string, and clients don't need to base64-decode anything.
+    Cached data sets sitting in files don't even go through the heap: they are sent with `transferTo` (and the ones
+    kept in memory by the in-process cache are written straight from their buffers).
+
+    Replies going through the non-blocking front end don't write to the socket at all: everything is queued in a section
+    of the connection's `Outbound` (files as regions, buffers as they are) and the event loop sends it when it can. On
+    multiplexed connections the answer (or the header) carries the 'id' of the request it answers.
+ */
+class Reply {
+    static final int FRAME_SIZE = 1 << 20;
+
+    // frames sent straight from a file (or an off-heap buffer) don't go through any buffer, so they can be a lot
+    // bigger.
+    static final int FILE_FRAME_SIZE = 1 << 26;
+
+    private final OutputStream os;
+    private final WritableByteChannel ch;
+    private final Outbound outbound;
+    private final boolean stream;
+    // the request this answers, on multiplexed connections.
+    private final Object id;
+
+    Reply(OutputStream os, boolean stream) {
+        this(os, null, stream);
+    }
+
+    // `ch` is the socket's channel (if any): data sets sitting in files are sent through it with `transferTo`.
+    Reply(OutputStream os, WritableByteChannel ch, boolean stream) {
+        this(os, ch, null, stream, null);
+    }
+
+    Reply(Outbound out, boolean stream) {
+        this(out, stream, null);
+    }
+
+    // the reply gets a section of `out` of its own once it's sent, so it goes out whole whatever else is being sent.
+    Reply(Outbound out, boolean stream, Object id) {
+        this(null, null, out, stream, id);
+    }
+
+    private Reply(OutputStream os, WritableByteChannel ch, Outbound out, boolean stream, Object id) {
+        this.os = os;
+        this.ch = ch;
+        this.outbound = out;
+        this.stream = stream;
+        this.id = id;
+    }
+
+    void send(Answer answer) throws IOException {
+        send(answer, null);
+    }
+
+    // the answer with its data set (base64) in it, the way classic replies have it. `payload` is closed.
+    //
+    // not through a reader: older commons-codecs (1.4, which comes with Hadoop) can read 0 bytes at the end of a data
+    // set that's a multiple of 3 bytes long, and readers take that as an error.
+    static Answer inline(Answer answer, ReadableByteChannel payload) throws IOException {
+        try (InputStream in = new Base64InputStream(Channels.newInputStream(payload), true)) {
+            return Answer.answerFromJSONObject(answer.header()).res(new String(IOUtils.toByteArray(in),
+                    StandardCharsets.US_ASCII));
+        }
+    }
+
+    // `payload` is the data set when it isn't in the answer itself (i.e. when it comes straight from the cache). it
+    // gets closed.
+    void send(Answer answer, ReadableByteChannel payload) throws IOException {
+        if (outbound != null) {
+            Outbound.Section section;
+            try {
+                section = outbound.open();
+            } catch (IOException e) {
+                if (payload != null) {
+                    payload.close();
+                }
+                throw e;
+            }
+
+            boolean sent = false;
+            try {
+                new Reply(section.stream(), section, null, stream, id).send(answer, payload);
+                sent = true;
+            } finally {
+                section.end();
+                // half a reply, and the client can't make sense of anything after it.
+                if (!sent) {
+                    outbound.abort();
+                }
+            }
+            return;
+        }
+
+        if (id != null) {
+            answer.id(id);
+        }
+
+        if (!stream) {
+            if (payload != null) {
+                answer = inline(answer, payload);
+            }
+            line(answer.toString());
+        } else {
+            JSONObject header = answer.header();
+            if ((answer.hasRes() || payload != null) && !header.has("codec")) {
+                // everything cached before codecs were a thing is bz2.
+                header.put("codec", "bz2");
+            }
+            line(header.toString());
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, FRAME_SIZE + 4));
+            if (payload instanceof FileChannel && ch instanceof Outbound.Section) {
+                // the regions are sent later on, so the file can only be closed after them.
+                FileChannel fc = (FileChannel) payload;
+                try {
+                    frames(fc, answer.size(), out);
+                } finally {
+                    ((Outbound.Section) ch).closeWhenSent(fc);
+                }
+            } else if (payload instanceof FileChannel && ch != null) {
+                try (FileChannel fc = (FileChannel) payload) {
+                    frames(fc, answer.size(), out);
+                }
+            } else if (payload instanceof ByteBufferChannel && ch != null) {
+                try (ByteBufferChannel bc = (ByteBufferChannel) payload) {
+                    frames(bc.buffer(), out);
+                }
+            } else if (payload != null) {
+                try (InputStream in = Channels.newInputStream(payload)) {
+                    frames(in, out);
+                }
+            } else if (answer.hasRes()) {
+                try (InputStream in = new Base64InputStream(new ReaderInputStream(new StringReader(answer.getRes()),
+                        StandardCharsets.US_ASCII))) {
+                    frames(in, out);
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    // zero-copy: the bytes go from the page cache to the socket without ever being in the heap.
+    private void frames(FileChannel fc, long size, DataOutputStream out) throws IOException {
+        long position = fc.position();
+        long end = position + size;
+
+        while (position < end) {
+            int n = (int) Math.min(FILE_FRAME_SIZE, end - position);
+            out.writeInt(n);
+            out.flush();
+
+            if (ch instanceof Outbound.Section) {
+                ((Outbound.Section) ch).transfer(fc, position, n);
+                position += n;
+                continue;
+            }
+
+            long sent = 0;
+            while (sent < n) {
+                long t = fc.transferTo(position + sent, n - sent, ch);
+                if (t <= 0 && position + sent >= fc.size()) {
+                    throw new EOFException("Data set shorter than expected");
+                }
+                sent += t;
+            }
+            position += n;
+        }
+    }
+
+    private void frames(ByteBuffer buf, DataOutputStream out) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = Math.min(FILE_FRAME_SIZE, buf.remaining());
+            out.writeInt(n);
+            out.flush();
+
+            ByteBuffer frame = buf.duplicate();
+            frame.limit(frame.position() + n);
+            if (ch instanceof Outbound.Section) {
+                ((Outbound.Section) ch).buffer(frame);
+            } else {
+                while (frame.hasRemaining()) {
+                    ch.write(frame);
+                }
+            }
+            buf.position(buf.position() + n);
+        }
+    }
+
+    private static void frames(InputStream in, DataOutputStream out) throws IOException {
+        byte[] buf = new byte[FRAME_SIZE];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            if (n > 0) {
+                out.writeInt(n);
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    private void line(String s) throws IOException {
+        os.write(s.getBytes(StandardCharsets.UTF_8));
+        os.write('\n');
+        os.flush();
+    }
+}
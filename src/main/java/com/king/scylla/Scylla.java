@@ -5,25 +5,48 @@
 package com.king.scylla;
 
 import com.google.common.base.Throwables;
+import com.king.scylla.cache.ByteBufferChannel;
 import com.king.scylla.cache.Cache;
 import com.king.scylla.cache.CacheException;
+import com.king.scylla.cache.Lease;
+import com.king.scylla.cache.Peek;
 import com.king.scylla.connectors.*;
+import com.king.scylla.meta.JobJournal;
 import com.king.scylla.meta.QConfig;
 import com.king.scylla.meta.Scope;
 import com.king.scylla.meta.ScyllaConf;
 
 import com.king.scylla.meta.ScyllaException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.sql.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import static com.king.scylla.Answer.Status.*;
 import static com.king.scylla.Answer.PeekStatus;
@@ -35,8 +58,25 @@ import static org.apache.commons.lang3.StringEscapeUtils.escapeJson;
 
 public class Scylla implements Runnable {
     private static final Logger log = LogManager.getLogger(Scylla.class.getName());
+
+    // queries a `batch` instruction can ask about.
+    private static final int MAX_BATCH = 1000;
+    // the biggest (compressed) data set we take: past that it wouldn't fit in a classic, base64-encoded answer.
+    static final long MAX_DATA_SET = 750000000;
+    // what's in a `batch` instruction that isn't for its queries.
+    private static final Set<String> BATCH_FIELDS = new HashSet<>(Arrays.asList("batch", "get", "id"));
+
+    // queries being launched (or running in the background) from this process, by key.
+    private static final ConcurrentHashMap<String, CompletableFuture<Answer>> flights = new ConcurrentHashMap<>();
+
+    // renews the leases of running queries (the threads running them are busy waiting for the database).
+    private static final ScheduledExecutorService leaseKeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Lease keeper");
+        t.setDaemon(true);
+        return t;
+    });
     private final String addr;
-    private final ExecutorService pool;
+    private final QueryScheduler scheduler;
     private final ScyllaConf conf;
 
     private LogColouriser logColouriser;
@@ -64,15 +104,17 @@ public class Scylla implements Runnable {
     }
 
     private Answer getPeekAnswer(QConfig qc) throws CacheException {
-        Cache fc = conf.cache();
-        String key = qc.getKey();
+        return peekAnswer(conf.cache().peek(Collections.singletonList(qc.getKey()), false).get(0));
+    }
 
+    // a query that's running has a placeholder in the cache already: it's locked, not there.
+    private static Answer peekAnswer(Peek p) {
         Answer peekAnswer = emptyAnswer().ok(true).status(PEEK);
 
-        if (fc.exists(key)) {
-            peekAnswer.peek(PeekStatus.YES);
-        } else if (fc.locked(key)) {
+        if (p.locked()) {
             peekAnswer.peek(PeekStatus.LOCKED);
+        } else if (p.exists()) {
+            peekAnswer.peek(PeekStatus.YES);
         } else {
             peekAnswer.peek(PeekStatus.NO);
         }
@@ -80,10 +122,188 @@ public class Scylla implements Runnable {
         return peekAnswer;
     }
 
+    // what `batch` instructions get: a `peek` for each of their queries, in the same order, and with `"get": true` the
+    // cached answers (data sets included) of the ones that are done. fields the queries don't have are taken from the
+    // instruction itself (so the user only needs saying once), and the cache is asked about all of them in one go.
+    //
+    // the data sets go in the answer as base64, which has to fit in memory: once they'd take more than
+    // `batch_max_inline_bytes` altogether the rest come without theirs (just `size`), and are asked for as usual.
+    //
+    // when `quick` every query is peeked at with `Cache.quickPeek`, and it's null (for a worker to answer the whole
+    // batch) as soon as one of them can't be told that way.
+    private Answer batchAnswer(JSONObject instruction, boolean quick) throws CacheException, IOException {
+        JSONArray batch = instruction.getJSONArray("batch");
+        boolean get = instruction.optBoolean("get", false);
+        if (batch.length() > MAX_BATCH) {
+            return emptyAnswer().ok(false).err(String.format("That's too many queries for one batch (more than %d)!",
+                    MAX_BATCH));
+        }
+
+        List<Answer> answers = new ArrayList<>(batch.length());
+        List<String> keys = new ArrayList<>();
+        List<Integer> asked = new ArrayList<>();
+        for (int i = 0; i < batch.length(); i++) {
+            JSONObject q = batch.optJSONObject(i);
+            if (q == null) {
+                answers.add(emptyAnswer().ok(false).err("That's not a query!"));
+                continue;
+            }
+            for (String field : instruction.keySet()) {
+                if (!BATCH_FIELDS.contains(field) && !q.has(field)) {
+                    q.put(field, instruction.get(field));
+                }
+            }
+
+            QConfig qc;
+            try {
+                qc = QConfig.qcFromInstruction(q, logColouriser);
+            } catch (JSONException | NotImplementedException e) {
+                answers.add(emptyAnswer().ok(false).err(e.getMessage()));
+                continue;
+            }
+            if (qc.getErrorMessage() != null) {
+                answers.add(emptyAnswer().ok(false).err(qc.getErrorMessage()));
+                continue;
+            }
+            qc.setConf(conf);
+            answers.add(null);
+            keys.add(qc.getKey());
+            asked.add(i);
+        }
+
+        Cache fc = conf.cache();
+        List<Peek> peeks;
+        if (quick) {
+            peeks = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                Peek p = fc.quickPeek(key, false);
+                if (p == null) {
+                    return null;
+                }
+                peeks.add(p);
+            }
+        } else {
+            peeks = fc.peek(keys, get);
+        }
+        long inlined = 0;
+        for (int j = 0; j < peeks.size(); j++) {
+            Peek p = peeks.get(j);
+            Answer answer = peekAnswer(p);
+            if (p.getAnswer() != null) {
+                answer = answerFromJSONObject(p.getAnswer()).peek(PeekStatus.YES);
+                // 4 bytes of base64 for every 3 of data set
+                long inline = (answer.size() + 2) / 3 * 4;
+                if (answer.hasPayload() && inlined + inline <= conf.getBatchMaxInlineBytes()) {
+                    ReadableByteChannel payload = fc.payloadChannel(keys.get(j));
+                    if (payload != null) {
+                        answer = Reply.inline(answer, payload);
+                        inlined += inline;
+                    }
+                }
+            }
+            answers.set(asked.get(j), answer);
+        }
+
+        log.debug(logColouriser.cuteLog(addr, String.format("Peeked at %d queries for %s.", keys.size(), addr)));
+        return emptyAnswer().ok(true).status(BATCH).answers(answers);
+    }
+
+    // the answer if the cache can tell without going anywhere (see `Cache.quickPeek`) and it can be sent from here,
+    // null if it's a worker's job: launching it, asking the network, or a classic reply that has to have its data set
+    // inlined.
+    private Answer getQuickAnswer(QConfig qc) throws CacheException {
+        if (qc.isForce() && !qc.isPeek()) {
+            return null;
+        }
+        Peek p = conf.cache().quickPeek(qc.getKey(), !qc.isPeek());
+        if (p == null) {
+            return null;
+        } else if (qc.isPeek()) {
+            return peekAnswer(p);
+        } else if (!p.exists()) {
+            return null;
+        } else if (p.locked()) {
+            return lockedAnswer(qc);
+        }
+
+        Answer answer = answerFromJSONObject(p.getAnswer());
+        if (answer.hasPayload() && !qc.isStream()) {
+            return null;
+        }
+        return found(qc, answer);
+    }
+
+    // what the cache has for this question (the answer, or that it's being run), null if it has to be launched.
+    private Answer getCachedAnswer(QConfig qc) throws CacheException {
+        Cache fc = conf.cache();
+        String key = qc.getKey();
+
+        if (qc.isForce() || !fc.exists(key)) {
+            return null;
+        } else if (fc.locked(key)) {
+            return lockedAnswer(qc);
+        }
+
+        // it can go away between the two (another Scylla sharing the cache threw it away).
+        JSONObject jo = fc.get(key);
+        return jo != null ? found(qc, answerFromJSONObject(jo)) : null;
+    }
+
+    private Answer found(QConfig qc, Answer answer) {
+        log.info(logColouriser.cuteLog(qc.getUser(),
+                String.format("Cached version of query '%s' found ... good!", whiteOnBlack(shorten(qc.getQuery())))));
+        if (answer.hasErr()) {
+            log.warn(logColouriser.cuteLog(qc.getUser(), String.format("Something went wrong with that query, " +
+                    "relaunch maybe? (%s)", answer.getErr())));
+        }
+        return answer;
+    }
+
     private Answer getRealAnswer(QConfig qc) throws IOException, CacheException, SQLException,
             ScyllaException {
+        String key = qc.getKey();
+
+        Answer cached = getCachedAnswer(qc);
+        if (cached != null) {
+            return cached;
+        } else {
+            // if the same query is already being launched from here we go along with it instead.
+            CompletableFuture<Answer> flight = new CompletableFuture<>();
+            CompletableFuture<Answer> inFlight = flights.putIfAbsent(key, flight);
+            if (inFlight != null) {
+                return joinFlight(qc, inFlight);
+            }
+
+            boolean background = false;
+            connector = null;
+            try {
+                // the connector's only needed from here on.
+                connector = connector(qc);
+                Answer answer = launch(qc);
+                background = answer.isPending();
+                flight.complete(answer);
+                return answer;
+            } catch (Exception e) {
+                flight.completeExceptionally(e);
+                if (connector != null) {
+                    connector.close();
+                }
+                throw e;
+            } finally {
+                if (!background) {
+                    flights.remove(key, flight);
+                }
+            }
+        }
+    }
+
+    // what runs `qc` on its database.
+    DBConnector connector(QConfig qc) throws ScyllaException {
+        return qc.getScope() == HIVE && qc.getConf().supportsHive() ? new HiveConnector(qc) : new DBConnector(qc);
+    }
+
+    private Answer launch(QConfig qc) throws IOException, CacheException, SQLException, ScyllaException {
         boolean force = qc.isForce();
-        boolean quiet = qc.isQuiet();
         boolean update = qc.isUpdate();
 
         Cache fc = conf.cache();
@@ -91,60 +311,141 @@ public class Scylla implements Runnable {
         String query = qc.getQuery();
         String key = qc.getKey();
 
-        if (fc.exists(key) && !force) {
-            if (fc.locked(key)) {
-                Answer answer = emptyAnswer().ok(true).status(LOCKED);
-                if (!quiet) {
-                    log.warn(logColouriser.cuteLog(qc.getUser(), String.format("There is a lock on query %s. Maybe it's " +
-                            "already running? Check your favourite monitor.", whiteOnBlack(shorten(query)))));
-                }
-                return answer;
-            } else {
-                log.info(logColouriser.cuteLog(qc.getUser(),
-                        String.format("Cached version of query '%s' found ... good!", whiteOnBlack(shorten(query)))));
-                Answer answer = answerFromJSONObject(fc.get(key));
-                if (answer.hasErr()) {
-                    log.warn(logColouriser.cuteLog(qc.getUser(), String.format("Something went wrong with that query, " +
-                            "relaunch maybe? (%s)", answer.getErr())));
-                }
-                return answer;
-            }
+        if (force) {
+            // not necessary but better to be safe than sorry
+            fc.delete(key);
+            log.info(logColouriser.cuteLog(qc.getUser(),
+                    String.format("Ignoring cached version for %s '%s'. Querying %s.",
+                    logColouriser.colorise("query"), whiteOnBlack(shorten(query)), scope.getName())));
+        } else {
+            log.info(logColouriser.cuteLog(qc.getUser(),
+                    String.format("No cached version found for %s '%s'. Querying %s.",
+                    logColouriser.colorise("query"), whiteOnBlack(shorten(query)), scope.getName())));
+        }
+        VerificationAnswer v = connector.verifyQuery();
+
+        if (v.hasErr()) {
+            log.error(logColouriser.cuteLog(qc.getUser(), String.format("Your query has some issues: %s", v.getErr())));
+            return v;
+        }
+
+        // if we die before it's done, the placeholder and its lock go away on their own once the lease runs out. if
+        // somebody else (another Scylla, say) got there first, it's their query.
+        Lease lease = fc.tryStart(key, emptyAnswer().toString(), conf.getLockLease());
+        if (lease == null) {
+            connector.close();
+            // or they've finished it already.
+            Answer cached = getCachedAnswer(qc);
+            return cached != null ? cached : lockedAnswer(qc);
+        }
+
+        if (v.nobg()) {
+            log.info(logColouriser.cuteLog(qc.getUser(), "You're asking for a 'desc' or a 'show tables', " +
+                    "getting the data straight away ..."));
+            return queryDB(qc, lease, null);
         } else {
-            if (force) {
-                // not necessary but better to be safe than sorry
-                fc.delete(key);
-                log.info(logColouriser.cuteLog(qc.getUser(),
-                        String.format("Ignoring cached version for %s '%s'. Querying %s.",
-                        logColouriser.colorise("query"), whiteOnBlack(shorten(query)), scope.getName())));
+            if (update) {
+                log.info(logColouriser.cuteLog(qc.getUser(), "Working in the background ..."));
             } else {
-                log.info(logColouriser.cuteLog(qc.getUser(),
-                        String.format("No cached version found for %s '%s'. Querying %s.",
-                        logColouriser.colorise("query"), whiteOnBlack(shorten(query)), scope.getName())));
+                log.info(logColouriser.cuteLog(qc.getUser(), "Querying in the background. Come back later :)"));
             }
-            VerificationAnswer v = connector.verifyQuery();
+            Answer answer = enqueue(qc, lease, v);
+            if (update && answer.isPending()) {
+                answer.update(true);
+            }
+            return answer;
+        }
+    }
 
-            if (v.hasErr()) {
-                log.error(logColouriser.cuteLog(qc.getUser(), String.format("Your query has some issues: %s", v.getErr())));
-                return v;
-            } else if (v.nobg()) {
-                log.info(logColouriser.cuteLog(qc.getUser(), "You're asking for a 'desc' or a 'show tables', " +
-                        "getting the data straight away ..."));
-                return queryDB(qc);
-            } else {
-                Answer answer = emptyAnswer().ok(true).status(PENDING);
-                if (update) {
-                    log.info(logColouriser.cuteLog(qc.getUser(), "Working in the background ..."));
-                    answer.update(true);
-                } else {
-                    log.info(logColouriser.cuteLog(qc.getUser(), "Querying in the background. Come back later :)"));
-                }
-                queryInTheBackground(qc);
-                return answer;
+    // into the scheduler (and the journal, so it isn't lost if we go down before it's done). PENDING, or why not.
+    private Answer enqueue(QConfig qc, Lease lease, VerificationAnswer v) throws CacheException, ScyllaException {
+        JobJournal journal = conf.journal();
+        JSONObject instruction = qc.toInstruction();
+        if (journal != null && instruction != null) {
+            journal.submitted(lease.getOwner(), instruction);
+        }
+
+        try {
+            queryInTheBackground(qc, lease, lane(v));
+        } catch (RejectedExecutionException e) {
+            log.warn(logColouriser.cuteLog(qc.getUser(), "Not taking any more queries: " + e.getMessage()));
+            connector.close();
+            conf.cache().release(lease);
+            if (journal != null) {
+                journal.finished(lease.getOwner());
+            }
+            return emptyAnswer().ok(false).err(e.getMessage());
+        }
+
+        Answer answer = emptyAnswer().ok(true).status(PENDING).job(lease.getOwner());
+        int position = scheduler.position(qc.getKey());
+        if (position > 0) {
+            answer.queue(position);
+        }
+        return answer;
+    }
+
+    // the lease is renewed every now and then while the query runs, and if we die it just runs out.
+    // `ticket` is the scheduler's, for queries running in the background (it holds the backend's slot already).
+    private Answer queryDB(QConfig qc, Lease lease, QueryScheduler.Ticket ticket) throws SQLException, CacheException,
+            IOException, ScyllaException {
+        ScheduledFuture<?> heartbeat = keepAlive(qc, conf.cache(), lease);
+        try {
+            Semaphore slots = ticket == null ? conf.querySlots(qc.getScope()) : null;
+            if (slots == null) {
+                return fetch(qc, lease, ticket);
             }
+            waitForSlot(qc, slots, lease);
+            try {
+                return fetch(qc, lease, ticket);
+            } finally {
+                slots.release();
+                // somebody in the scheduler might have been waiting for it.
+                scheduler.wakeUp();
+            }
+        } finally {
+            heartbeat.cancel(false);
+            connector.close();
+        }
+    }
+
+    // the lease keeps being renewed while we wait, the query's as good as running for everybody else.
+    private void waitForSlot(QConfig qc, Semaphore slots, Lease lease) throws CacheException, ScyllaException {
+        if (slots.tryAcquire()) {
+            return;
         }
+        log.info(logColouriser.cuteLog(qc.getUser(), String.format("%s is as busy as we let it be, your %s is " +
+                "waiting for its turn.", qc.getScope().getName(), logColouriser.colorise("query"))));
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            conf.cache().release(lease);
+            throw new ScyllaException(String.format("Interrupted while waiting for %s", qc.getScope().getName()), e);
+        }
+    }
+
+    private ScheduledFuture<?> keepAlive(QConfig qc, Cache fc, Lease lease) {
+        int interval = Math.max(1, lease.getTtl() / 3);
+        return leaseKeeper.scheduleWithFixedDelay(() -> {
+            boolean renewed;
+            try {
+                renewed = fc.renew(lease);
+            } catch (CacheException | RuntimeException e) {
+                log.error(logColouriser.cuteLog(qc.getUser(), "Error renewing the lock on this query: " + e.getMessage()));
+                return;
+            }
+            if (!renewed) {
+                log.warn(logColouriser.cuteLog(qc.getUser(), "Lost the lock on this query (somebody forced it?), " +
+                        "its answer won't be cached."));
+                // that's how a scheduled task stops for good.
+                throw new IllegalStateException("Lease lost");
+            }
+        }, interval, interval, TimeUnit.SECONDS);
     }
 
-    private Answer queryDB(QConfig qc) throws SQLException, CacheException, IOException, ScyllaException {
+    private Answer fetch(QConfig qc, Lease lease, QueryScheduler.Ticket ticket) throws SQLException, CacheException,
+            IOException, ScyllaException {
         boolean update = qc.isUpdate();
         int expire = qc.getExpire();
 
@@ -155,32 +456,42 @@ public class Scylla implements Runnable {
 
         Answer answer = emptyAnswer();
 
-        fc.set(key, answer.toString());
-        fc.lock(key);
+        // the placeholder and its lock are there already (see `launch`).
+        int cacheLifetime = conf.getCacheLifeTimeDays() * 86400;
+
+        // the data set goes straight into the cache while it's being fetched.
+        OutputStream sink = update ? null : capped(fc.payloadSink(lease));
+        if (sink != null && ticket != null) {
+            // it counts towards the user's bytes in flight.
+            sink = ticket.meter(sink);
+        }
 
         try {
-            answer = this.connector.query(update);
-        } catch (JSONException | SQLException | IllegalStateException e) {
+            answer = this.connector.query(update, sink);
+        } catch (JSONException | SQLException | IOException | IllegalStateException | ScyllaException e) {
+            // a query that was stopped can't be read from either, the reason it was stopped is the error then.
+            String stopped = connector.stopped();
+            if (e instanceof ScyllaException && stopped == null) {
+                throw (ScyllaException) e;
+            }
+            String err = stopped != null ? stopped : e.getMessage() != null ? e.getMessage() : "null";
             log.info(logColouriser.cuteLog(qc.getUser(), String.format("Your %s didn't finish! Logging the error ... (%s)",
-                    logColouriser.colorise("query"), e.getMessage())));
-            fc.unlock(key);
-            fc.delete(key);
-            answer.ok(false).err(e.getMessage() != null ? e.getMessage() : "null");
-            fc.set(key, answer.toString());
-            if (e instanceof IllegalStateException) {
-                fc.expire(key, 3 * 86400);
-            } else {
-                fc.expire(key, 20);
+                    logColouriser.colorise("query"), err)));
+            IOUtils.closeQuietly(sink);
+            if (stopped == null) {
+                connector.forgetVerification();
+            }
+            answer.ok(false).err(err);
+            if (fc.release(lease)) {
+                fc.set(key, answer.toString(), e instanceof IllegalStateException ? 3 * 86400 : 20);
             }
 
             return answer;
         }
 
-        fc.unlock(key);
-
-        // if the object is empty (as per creation) delete everything!
+        // if the object is empty (as per creation) delete everything (lock included)!
         if (!answer.isDone()) {
-            fc.delete(key);
+            fc.release(lease);
         } else {
             log.info(logColouriser.cuteLog(qc.getUser(), String.format("Your %s finished!", logColouriser.colorise("query"))));
             answer.ok(true).status(DONE);
@@ -188,85 +499,327 @@ public class Scylla implements Runnable {
             if (update) {
                 // if it's an update statement there's no reason to cache anything (it will most likely fail on
                 // re-execution)
-                fc.delete(key);
-            } else {
-                // if the response size of the answer is too big don't cache it.
-                if(answer.resSize() < 1000000000) {
-                    fc.set(key, answer.toString());
-                } else {
-                    log.warn("Answer is too big to be cached here.");
-                    fc.delete(key);
-                }
-
-                int cacheLifetime = conf.getCacheLifeTimeDays() * 86400;
-                fc.expire(key, expire > 0 ? Math.min(expire, cacheLifetime) : cacheLifetime);
+                fc.release(lease);
+            } else if (!fc.finish(lease, answer.toString(),
+                    expire > 0 ? Math.min(expire, cacheLifetime) : cacheLifetime)) {
+                log.warn(logColouriser.cuteLog(qc.getUser(), "Somebody else holds the lock on this query " +
+                        "now, keeping their answer."));
             }
         }
 
         return answer;
     }
 
-    private Future<?> queryInTheBackground(final QConfig qc)
-            throws SQLException, CacheException, IOException, ScyllaException {
-        return pool.submit(() -> queryDB(qc));
-    }
+    // data sets bigger than `MAX_DATA_SET` stop the query as soon as they get there, instead of being fetched (and
+    // cached) whole only to be thrown away: the error is what the client gets.
+    static OutputStream capped(OutputStream os) {
+        return new FilterOutputStream(os) {
+            private long written = 0;
 
-    @Override
-    public void run() {
-        try {
-            InputStream is = socket.getInputStream();
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
-            PrintWriter ow = new PrintWriter(socket.getOutputStream(), true);
-
-            String rawQuestion = br.readLine();
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
 
-            this.logColouriser = rawQuestion != null ? new LogColouriser(rawQuestion) : new LogColouriser();
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                written += len;
+                if (written > MAX_DATA_SET) {
+                    throw new IOException("Your result set is too big. Please add a limit or try getting the data " +
+                            "some other way (e.g. create a table and export it to a CSV file manually).");
+                }
+                out.write(b, off, len);
+            }
+        };
+    }
 
-            if (rawQuestion == null) {
-                ow.println(emptyAnswer().ok(false).err("I got an empty instruction!"));
-            } else {
-                try {
-                    JSONObject instruction = new JSONObject(rawQuestion);
+    // cheap queries (as far as their plan goes) don't wait behind the batch ones.
+    private QueryScheduler.Lane lane(VerificationAnswer v) {
+        long estimate = v.estimate();
+        return estimate >= 0 && estimate <= conf.getInteractiveMaxBytes() ? QueryScheduler.Lane.INTERACTIVE :
+                QueryScheduler.Lane.BATCH;
+    }
 
-                    QConfig qc = QConfig.qcFromInstruction(instruction, logColouriser);
+    private interface Abandon {
+        void abandon(String why) throws CacheException;
+    }
 
-                    if (qc.getErrorMessage() != null) {
-                        ow.println(emptyAnswer().ok(false).err(qc.getErrorMessage()));
-                    } else {
-                        if (!qc.isQuiet()) {
-                            log.debug(logColouriser.cuteLog(qc.getUser(),
-                                    String.format("Good question from %s, processing ...",
-                                            this.addr)));
-                        }
+    // it waits for its turn in the scheduler (unless there are too many waiting already), and the flight for this
+    // query lands when it's done. whatever the connector kept from the verification is only kept if it starts right
+    // away: a query waiting behind somebody's quota can wait for hours, and it'd be holding a session all that time.
+    private void queryInTheBackground(final QConfig qc, final Lease lease, QueryScheduler.Lane lane)
+            throws CacheException, ScyllaException {
+        String key = qc.getKey();
+        CompletableFuture<Answer> flight = flights.get(key);
+        JobJournal journal = conf.journal();
+        DBConnector connector = this.connector;
+        AtomicBoolean started = new AtomicBoolean();
+        // the lease needs renewing while it waits, too.
+        ScheduledFuture<?> waiting = keepAlive(qc, conf.cache(), lease);
+
+        // a query that isn't going to run after all lets go of everything here, and whoever asks for it gets `why`.
+        Abandon abandon = why -> {
+            waiting.cancel(false);
+            connector.close();
+            Cache fc = conf.cache();
+            if (fc.release(lease)) {
+                fc.set(key, emptyAnswer().ok(false).err(why).toString(), 20);
+            }
+            flights.remove(key, flight);
+            if (journal != null) {
+                journal.finished(lease.getOwner());
+            }
+        };
 
-                        qc.setConf(conf);
+        // cancelled before it gets its turn.
+        Jobs.Job job = Jobs.add(lease.getOwner(), qc.getUser(), key, connector, () -> {
+            if (!scheduler.cancel(key)) {
+                return false;
+            }
+            abandon.abandon("Your query was cancelled before it started.");
+            return true;
+        });
 
-                        if (qc.getScope() == HIVE && qc.getConf().supportsHive()) {
-                            connector = new HiveConnector(qc);
-                        } else if (qc.getConf().isSupported(qc.getScope())) {
-                            connector = new DBConnector(qc);
-                        } else {
-                            throw new ScyllaException(String.format("Scope %s not configured! Check " +
-                                            "'/etc/scylla.properties' and make sure the driver is installed!",
-                                    qc.getScope()));
+        try {
+            scheduler.submit(qc.getUser(), key, lane, conf.querySlots(qc.getScope()), new QueryScheduler.Job() {
+                @Override
+                public void run(QueryScheduler.Ticket ticket) throws Exception {
+                    started.set(true);
+                    waiting.cancel(false);
+                    job.running();
+                    if (journal != null) {
+                        journal.running(lease.getOwner());
+                    }
+                    try {
+                        queryDB(qc, lease, ticket);
+                    } finally {
+                        flights.remove(key, flight);
+                        if (journal != null) {
+                            journal.finished(lease.getOwner());
                         }
-
-                        Answer a = getAnswer(qc);
-                        ow.println(a.toString());
+                        Jobs.remove(job);
                     }
-                } catch (JSONException e) {
-                    ow.println(emptyAnswer().ok(false).err(e.getMessage()));
-                    log.error(logColouriser.cuteLog(addr, String.format("Got a malformed instruction from %s (%s)", this.addr,
-                            e.getMessage())));
-                } catch (CacheException | NotImplementedException | ScyllaException | SQLException e) {
+                }
+
+                // its turn came, but there was no thread to run it on.
+                @Override
+                public void rejected(QueryScheduler.Ticket ticket, RejectedExecutionException e) {
                     try {
-                        ow.println(emptyAnswer().ok(false).err(e.getMessage()));
-                    } catch (JSONException d) {
-                        log.error(logColouriser.cuteLog(addr, "Unhandled error: " + d.getMessage()));
+                        abandon.abandon("Your query couldn't be started: " + e.getMessage());
+                    } catch (CacheException c) {
+                        log.error(logColouriser.cuteLog(qc.getUser(), "Couldn't let go of a query that didn't " +
+                                "start: " + c.getMessage()));
                     }
-                    log.error(logColouriser.cuteLog(addr, "Unhandled error: " + e.getMessage()));
+                    Jobs.remove(job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            waiting.cancel(false);
+            Jobs.remove(job);
+            throw e;
+        }
+
+        if (!started.get()) {
+            // it gets a connection of its own when its turn comes (and if it's just started, it's taken this one).
+            connector.close();
+        }
+    }
+
+    // what `status` and `cancel` instructions get: how the job is doing, or what was done about it. only whoever
+    // launched a query can cancel it.
+    private Answer jobAnswer(JSONObject instruction) throws CacheException {
+        boolean cancel = instruction.has("cancel");
+        String id = instruction.getString(cancel ? "cancel" : "status");
+
+        Jobs.Job job = Jobs.get(id);
+        if (job == null) {
+            return emptyAnswer().ok(false).err("There's no job with that ID here: either it's done (ask for its query " +
+                    "again to get its answer) or it's another Scylla's.");
+        }
+        Answer answer = emptyAnswer().ok(true).status(JOB).job(id);
+
+        if (cancel) {
+            if (!job.getUser().equals(instruction.optString("user"))) {
+                return emptyAnswer().ok(false).err("You can only cancel your own queries!");
+            }
+            log.info(logColouriser.cuteLog(job.getUser(), String.format("Cancelling job %s.", id)));
+            if (job.drop()) {
+                Jobs.remove(job);
+                return answer.state("cancelled");
+            }
+            // it's running (or just about to): the statement is cancelled, and its answer says so.
+            job.getConnector().stop("Your query was cancelled.");
+            return answer.state("cancelling");
+        }
+
+        answer.state(job.getState().toString().toLowerCase());
+        if (job.getState() == Jobs.State.QUEUED) {
+            int position = scheduler.position(job.getKey());
+            if (position > 0) {
+                answer.queue(position);
+            }
+        } else {
+            answer.elapsed((System.currentTimeMillis() - job.getStarted()) / 1000);
+        }
+        return answer;
+    }
+
+    // whoever launched the query tells us how it went: if it's running in the background it's locked for us, and if
+    // it's one of those answered straight away (or it failed) we get the same answer.
+    private Answer joinFlight(QConfig qc, CompletableFuture<Answer> flight) throws ScyllaException {
+        Answer answer;
+        try {
+            answer = flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScyllaException("Interrupted while waiting for the same query to be launched", e);
+        } catch (ExecutionException e) {
+            throw new ScyllaException(e.getCause().getMessage(), e.getCause());
+        }
+
+        return answer.isPending() ? lockedAnswer(qc) : answer;
+    }
+
+    // the background queries this process was looking after when it last went down (see `JobJournal`). the ones that
+    // can run again without anybody asking go back in the queue, holding on to their old lock if it's still theirs;
+    // the rest are let go of, with an answer saying why, instead of staying locked until their lease runs out.
+    static void recover(QueryScheduler scheduler, ScyllaConf conf) throws CacheException, ScyllaException {
+        JobJournal journal = conf.journal();
+        if (journal == null) {
+            return;
+        }
+
+        Cache fc = conf.cache();
+        int requeued = 0;
+        for (JobJournal.Job job : journal.orphans()) {
+            JSONObject instruction = new JSONObject(job.getInstruction().toString());
+            Scope scope;
+            try {
+                scope = Scope.getScopeFromShortName(instruction.getString("scope"));
+            } catch (JSONException | NotImplementedException e) {
+                journal.finished(job.getId());
+                continue;
+            }
+            // the key doesn't depend on it.
+            if (scope.needsPassword()) {
+                instruction.put("password", "");
+            }
+
+            LogColouriser lc = new LogColouriser(instruction.toString());
+            QConfig qc = QConfig.qcFromInstruction(instruction, lc);
+            if (qc.getErrorMessage() != null || !conf.isSupported(scope)) {
+                journal.finished(job.getId());
+                continue;
+            }
+            qc.setConf(conf);
+            String key = qc.getKey();
+
+            Lease lease = fc.recover(key, job.getId(), conf.getLockLease());
+            boolean held = fc.renew(lease);
+
+            String why = null;
+            long age = (System.currentTimeMillis() - job.getSubmitted()) / 1000;
+            if (scope.needsPassword()) {
+                why = "it needs your password, which isn't kept anywhere";
+            } else if (qc.isUpdate()) {
+                why = job.isRunning() ? "it's an update that might have gone through already" : null;
+            } else if (conf.getJournalMaxAge() > 0 && age > conf.getJournalMaxAge()) {
+                why = String.format("it had been around for %d seconds already", age);
+            }
+
+            if (why != null) {
+                log.info(lc.cuteLog(qc.getUser(), String.format("Not running query '%s' again: %s.",
+                        whiteOnBlack(escapeJson(qc.getQuery())), why)));
+                if (held) {
+                    fc.finish(lease, emptyAnswer().ok(false).err(String.format("Scylla restarted before your " +
+                            "query was done, and %s. Ask again!", why)).toString(), 20);
                 }
+                journal.finished(job.getId());
+                continue;
             }
+
+            if (!held) {
+                // somebody else has it (or it's done), unless its lock is just gone.
+                lease = fc.exists(key) ? null : fc.tryStart(key, emptyAnswer().toString(), conf.getLockLease());
+                journal.finished(job.getId());
+                if (lease == null) {
+                    continue;
+                }
+            }
+
+            Scylla scylla = new Scylla("journal", scheduler, conf);
+            scylla.logColouriser = lc;
+            if (scylla.relaunch(qc, lease)) {
+                requeued++;
+            }
+        }
+
+        if (requeued > 0) {
+            log.info(String.format("%d unfinished queries are back in the queue.", requeued));
+        }
+    }
+
+    // a recovered query, with its lease, back in the background: false if it's not going to run after all.
+    private boolean relaunch(QConfig qc, Lease lease) throws CacheException, ScyllaException {
+        Cache fc = conf.cache();
+        CompletableFuture<Answer> flight = new CompletableFuture<>();
+        flights.put(qc.getKey(), flight);
+
+        Answer answer;
+        try {
+            connector = connector(qc);
+            VerificationAnswer v = connector.verifyQuery();
+            if (v.hasErr()) {
+                connector.close();
+                fc.finish(lease, v.toString(), 20);
+                answer = v;
+            } else {
+                answer = enqueue(qc, lease, v);
+            }
+        } catch (SQLException | ScyllaException | RuntimeException e) {
+            log.error(logColouriser.cuteLog(qc.getUser(), "Couldn't run this query again: " + e.getMessage()));
+            if (connector != null) {
+                connector.close();
+            }
+            fc.release(lease);
+            answer = emptyAnswer().ok(false).err(e.getMessage());
+        }
+
+        if (!answer.isPending()) {
+            flights.remove(qc.getKey(), flight);
+            conf.journal().finished(lease.getOwner());
+        }
+        flight.complete(answer);
+        return answer.isPending();
+    }
+
+    private Answer lockedAnswer(QConfig qc) {
+        if (!qc.isQuiet()) {
+            log.warn(logColouriser.cuteLog(qc.getUser(), String.format("There is a lock on query %s. Maybe it's " +
+                    "already running? Check your favourite monitor.", whiteOnBlack(shorten(qc.getQuery())))));
+        }
+        Answer answer = emptyAnswer().ok(true).status(LOCKED);
+        // it might be running from here.
+        Jobs.Job job = Jobs.forKey(qc.getKey());
+        if (job != null) {
+            answer.job(job.getId());
+        }
+        // it might be waiting for its turn here.
+        int position = scheduler.position(qc.getKey());
+        if (position > 0) {
+            answer.queue(position);
+        }
+        return answer;
+    }
+
+    @Override
+    public void run() {
+        try {
+            InputStream is = socket.getInputStream();
+            BufferedReader br = new BufferedReader(new InputStreamReader(is));
+            OutputStream os = socket.getOutputStream();
+
+            answer(br.readLine(), stream -> new Reply(os, socket.getChannel(), stream), false);
         } catch (IOException e) {
             log.error(Throwables.getStackTraceAsString(e));
         }
@@ -279,13 +832,108 @@ public class Scylla implements Runnable {
         }
     }
 
-    public Scylla(Socket s, ExecutorService pool, ScyllaConf conf) {
+    // answers `rawQuestion` with a reply from `replies` (streamed or not). when `quick` it only does so if it doesn't
+    // take the database (or waiting for somebody who's asking it) and returns false otherwise, having sent nothing.
+    boolean answer(String rawQuestion, Function<Boolean, Reply> replies, boolean quick) throws IOException {
+        Reply reply = replies.apply(false);
+
+        this.logColouriser = rawQuestion != null ? new LogColouriser(rawQuestion) : new LogColouriser();
+
+        if (rawQuestion == null) {
+            reply.send(emptyAnswer().ok(false).err("I got an empty instruction!"));
+        } else {
+            try {
+                JSONObject instruction = new JSONObject(rawQuestion);
+
+                if (instruction.has("batch")) {
+                    // the data sets are read from the cache (redis...), that isn't quick.
+                    if (quick && instruction.optBoolean("get", false)) {
+                        return false;
+                    }
+                    Answer a = batchAnswer(instruction, quick);
+                    if (a == null) {
+                        return false;
+                    }
+                    reply.send(a);
+                    return true;
+                }
+
+                if (instruction.has("status") || instruction.has("cancel")) {
+                    // cancelling a running query means talking to its database, that's not quick.
+                    if (quick && instruction.has("cancel")) {
+                        return false;
+                    }
+                    reply.send(jobAnswer(instruction));
+                    return true;
+                }
+
+                QConfig qc = QConfig.qcFromInstruction(instruction, logColouriser);
+
+                if (qc.getErrorMessage() != null) {
+                    reply.send(emptyAnswer().ok(false).err(qc.getErrorMessage()));
+                } else {
+                    reply = replies.apply(qc.isStream());
+
+                    qc.setConf(conf);
+
+                    if (!(qc.getScope() == HIVE && qc.getConf().supportsHive()) &&
+                            !qc.getConf().isSupported(qc.getScope())) {
+                        throw new ScyllaException(String.format("Scope %s not configured! Check " +
+                                        "'/etc/scylla.properties' and make sure the driver is installed!",
+                                qc.getScope()));
+                    }
+
+                    Answer a = quick ? getQuickAnswer(qc) : getAnswer(qc);
+                    if (a == null) {
+                        return false;
+                    }
+
+                    ReadableByteChannel payload = a.hasPayload() ? conf.cache().payloadChannel(qc.getKey()) : null;
+                    // `quickPeek` says it can be sent from a file or a buffer, unless it changed in the meantime.
+                    if (quick && payload != null && !(payload instanceof FileChannel ||
+                            payload instanceof ByteBufferChannel)) {
+                        payload.close();
+                        return false;
+                    }
+
+                    if (!qc.isQuiet()) {
+                        log.debug(logColouriser.cuteLog(qc.getUser(),
+                                String.format("Good question from %s, answering ...", this.addr)));
+                    }
+
+                    reply.send(a, payload);
+                }
+            } catch (JSONException e) {
+                reply.send(emptyAnswer().ok(false).err(e.getMessage()));
+                log.error(logColouriser.cuteLog(addr, String.format("Got a malformed instruction from %s (%s)", this.addr,
+                        e.getMessage())));
+            } catch (CacheException | NotImplementedException | ScyllaException | SQLException e) {
+                try {
+                    reply.send(emptyAnswer().ok(false).err(e.getMessage()));
+                } catch (JSONException d) {
+                    log.error(logColouriser.cuteLog(addr, "Unhandled error: " + d.getMessage()));
+                }
+                log.error(logColouriser.cuteLog(addr, "Unhandled error: " + e.getMessage()));
+            }
+        }
+        return true;
+    }
+
+    public Scylla(Socket s, QueryScheduler scheduler, ScyllaConf conf) {
         this.socket = s;
         this.addr = socket.getInetAddress().toString();
         this.logColouriser = new LogColouriser();
-        this.pool = pool;
+        this.scheduler = scheduler;
         this.conf = conf;
 
         log.debug(String.format("Got connection from [%s].", LogColouriser.whiteOnPink(this.addr)));
     }
+
+    // for the non-blocking front end, which looks after the connection itself.
+    Scylla(String addr, QueryScheduler scheduler, ScyllaConf conf) {
+        this.addr = addr;
+        this.logColouriser = new LogColouriser();
+        this.scheduler = scheduler;
+        this.conf = conf;
+    }
 }
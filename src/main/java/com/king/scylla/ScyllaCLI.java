@@ -4,9 +4,11 @@
 
 package com.king.scylla;
 
+import com.king.scylla.cache.CacheException;
 import com.king.scylla.meta.Format;
 import com.king.scylla.meta.ScyllaConf;
 import com.king.scylla.meta.ScyllaException;
+import com.king.scylla.meta.Threads;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
@@ -15,11 +17,13 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.SQLException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class ScyllaCLI {
     @Option(name = "--port", aliases = {"-p"}, usage = "-p 30666")
@@ -31,9 +35,18 @@ public class ScyllaCLI {
     @Option(name = "--format", aliases = {"-f"}, usage = "-f json")
     private String format = "csv";
 
+    @Option(name = "--event-loops", aliases = {"-e"}, usage = "-e 2")
+    private int eventLoops = 2;
+
+    @Option(name = "--blocking", usage = "one thread per connection, as it used to be")
+    private boolean blocking = false;
+
+    @Option(name = "--virtual-threads", usage = "tentacles and queries on virtual threads (Java 21 or newer)")
+    private boolean virtualThreads = false;
+
     private final Logger log = LogManager.getLogger(ScyllaCLI.class.getName());
 
-    private final ExecutorService pool = Executors.newFixedThreadPool(256);
+    private ExecutorService pool;
 
     @SuppressWarnings("InfiniteLoopStatement")
     private void run(String[] args) throws IOException, CmdLineException, ScyllaException {
@@ -42,23 +55,55 @@ public class ScyllaCLI {
         parser.parseArgument(args);
 
         ScyllaConf conf = new ScyllaConf(config).check();
-        ServerSocket ss = new ServerSocket(port);
+        conf.setPort(port);
+        // a journal some other Scylla is using means this one doesn't start.
+        conf.journal();
+
+        // with virtual threads every background query gets a thread of its own: what limits them is `max_queries`.
+        ThreadFactory tentacles = null;
+        if (virtualThreads) {
+            conf.useVirtualThreads();
+            pool = Threads.perTask(Threads.virtual("Worker "));
+            tentacles = Threads.virtual("Tentacle ");
+        } else {
+            pool = Executors.newFixedThreadPool(256);
+        }
+        QueryScheduler scheduler = new QueryScheduler(pool, conf);
+
+        // sockets accepted through a channel have channels themselves, which is what lets cached data sets be sent
+        // straight from the files.
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.bind(new InetSocketAddress(port));
 
         if (conf.getFormat() == null) {
             conf.setFormat(Format.fromString(format));
         }
 
+        // whatever was left running when we last went down.
+        try {
+            Scylla.recover(scheduler, conf);
+        } catch (CacheException e) {
+            log.error("Couldn't recover the queries left unfinished: " + e.getMessage());
+        }
+
         log.info("Scylla says hi!");
         log.info(String.format("Waiting for connections on port %d ...", port));
 
+        if (!blocking) {
+            new FrontEnd(eventLoops, pool, scheduler, conf).serve(ss);
+        }
+
         int i = 1;
 
         while (true) {
-            Socket cs = ss.accept();
+            Socket cs = ss.accept().socket();
             cs.setSoTimeout(300000);
             log.debug("Cool, one client just connected!");
             String name = String.format("Tentacle %d [%s]", i, cs.getInetAddress().toString());
-            new Thread(new Scylla(cs, pool, conf), name).start();
+            Scylla tentacle = new Scylla(cs, scheduler, conf);
+            Thread t = tentacles != null ? tentacles.newThread(tentacle) : new Thread(tentacle);
+            t.setName(name);
+            t.start();
             i++;
         }
     }
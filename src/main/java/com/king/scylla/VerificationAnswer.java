@@ -12,10 +12,21 @@ public class VerificationAnswer extends Answer {
         return this;
     }
 
-    boolean nobg() {
+    public boolean nobg() {
         return msg.has("nobg") && msg.get("nobg").equals("yes");
     }
 
+    // roughly how much the query reads (in bytes), according to its plan. only some backends tell.
+    public VerificationAnswer estimate(long bytes) {
+        msg.put("estimate", bytes);
+        return this;
+    }
+
+    // -1 if we don't know.
+    public long estimate() {
+        return msg.optLong("estimate", -1);
+    }
+
     public static VerificationAnswer emptyVerificationAnswer() {
         return new VerificationAnswer();
     }
@@ -0,0 +1,46 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// a channel reading from a buffer. whoever wants to can skip the reading and write `buffer()` somewhere directly.
+public class ByteBufferChannel implements ReadableByteChannel {
+    private final ByteBuffer buf;
+    private boolean open = true;
+
+    ByteBufferChannel(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    // what's left to read.
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), buf.remaining());
+        ByteBuffer s = buf.duplicate();
+        s.limit(s.position() + n);
+        dst.put(s);
+        buf.position(buf.position() + n);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
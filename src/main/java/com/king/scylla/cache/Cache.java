@@ -6,11 +6,28 @@ package com.king.scylla.cache;
 
 import org.json.JSONObject;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public abstract class Cache {
+    // who holds each lease taken through the default `tryStart`. a lock rather than `synchronized`: what's done while
+    // holding it is I/O, and virtual threads blocking inside a monitor pin their carrier.
+    private final Map<String, String> holders = new HashMap<>();
+    private final ReentrantLock leases = new ReentrantLock();
+
+    private volatile Consumer<String> dropListener;
+
     abstract public boolean exists(String key) throws CacheException;
 
     abstract public void delete(String key) throws CacheException;
@@ -27,6 +44,179 @@ public abstract class Cache {
 
     abstract public void unlock(String key) throws CacheException;
 
+    // what's known about each of `keys` (same order), with the answers of the ones that are there and aren't locked if
+    // `answers`. a dashboard asks about hundreds of queries at a time: caches that can look them all up in one go
+    // (instead of a round trip or two per key) should.
+    public List<Peek> peek(List<String> keys, boolean answers) throws CacheException {
+        List<Peek> peeks = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            boolean exists = exists(key);
+            boolean locked = locked(key);
+            peeks.add(new Peek(exists, locked, answers && exists && !locked ? get(key) : null));
+        }
+        return peeks;
+    }
+
+    // what's known about `key` if it can be told without going anywhere (memory, an index, a file on the local disk),
+    // with its answer if `answer` and it's there and isn't locked. null if it takes the network (or a trip through the
+    // whole cache) to tell, or if its data set can't be sent from a file or a buffer: the event loop only answers
+    // what it gets from here, everything else goes to a worker.
+    public Peek quickPeek(String key, boolean answer) throws CacheException {
+        return null;
+    }
+
+    // when `key` expires, in seconds since the epoch. 0 if it doesn't (or it isn't there).
+    public long expiration(String key) throws CacheException {
+        return 0;
+    }
+
+    // whoever keeps copies of the entries (`TieredCache`) is told the hash of every entry that goes away on its own
+    // (expired, evicted) and not through one of the calls here. caches that don't see that happen (Redis' TTLs) don't
+    // tell, the copies have to check for themselves.
+    public void onDrop(Consumer<String> listener) {
+        dropListener = listener;
+    }
+
+    void dropped(String h) {
+        Consumer<String> l = dropListener;
+        if (l != null) {
+            l.accept(h);
+        }
+    }
+
+    // compound operations: this is what queries actually do, so caches that can do each of them in one go (instead of
+    // a round trip per step) should.
+
+    // an answer that expires in `offset` seconds.
+    public void set(String key, String val, int offset) throws CacheException {
+        set(key, val);
+        expire(key, offset);
+    }
+
+    // a lock that goes away on its own after `lease` seconds, so that a query dying with its Scylla doesn't stay
+    // locked forever. caches that can't do that just lock.
+    public void lock(String key, int lease) throws CacheException {
+        lock(key);
+    }
+
+    // the placeholder for a query that's about to run, locked. both go away after `lease` seconds unless the query
+    // finishes.
+    public void start(String key, String val, int lease) throws CacheException {
+        set(key, val, lease);
+        lock(key, lease);
+    }
+
+    // same as above, but only if nobody holds the lock already: whoever gets a lease is the one running the query,
+    // everybody else gets null (and nothing is written). the lease needs renewing every now and then, and the run ends
+    // with either `finish` or `release`.
+    //
+    // this is only atomic within this process, and the lock doesn't go away on its own unless `lock(key, lease)`
+    // does: caches shared with other processes should do better.
+    public Lease tryStart(String key, String val, int lease) throws CacheException {
+        leases.lock();
+        try {
+            if (locked(key)) {
+                return null;
+            }
+            start(key, val, lease);
+            Lease l = new Lease(key, lease);
+            holders.put(key, l.getOwner());
+            return l;
+        } finally {
+            leases.unlock();
+        }
+    }
+
+    // the lease `owner` took on `key` before this process went down (see `JobJournal`), to renew or let go of it. it's
+    // only still held if nobody broke the lock in the meantime: here it's taken for ours if it's still locked, as
+    // these locks are only ever taken from this process anyway.
+    public Lease recover(String key, String owner, int ttl) throws CacheException {
+        leases.lock();
+        try {
+            if (!holders.containsKey(key) && locked(key)) {
+                holders.put(key, owner);
+            }
+            return new Lease(key, owner, ttl);
+        } finally {
+            leases.unlock();
+        }
+    }
+
+    // keeps the lock (and the placeholder) for another `ttl` seconds, false if it's not ours anymore.
+    public boolean renew(Lease l) throws CacheException {
+        leases.lock();
+        try {
+            if (!holds(l)) {
+                return false;
+            }
+            expire(l.getKey(), l.getTtl());
+            return true;
+        } finally {
+            leases.unlock();
+        }
+    }
+
+    // the data set of the run holding `l`, it only becomes the entry's data set if the run finishes while still
+    // holding it.
+    public OutputStream payloadSink(Lease l) throws CacheException {
+        return payloadSink(l.getKey());
+    }
+
+    // the final answer of the run holding `l` (see `finish` below), or nothing at all if the lease was lost on the way.
+    public boolean finish(Lease l, String val, int offset) throws CacheException {
+        leases.lock();
+        try {
+            if (!holds(l)) {
+                return false;
+            }
+            holders.remove(l.getKey());
+            finish(l.getKey(), val, offset);
+            return true;
+        } finally {
+            leases.unlock();
+        }
+    }
+
+    // the run holding `l` is giving up: the entry goes away, unless somebody else holds it by now.
+    public boolean release(Lease l) throws CacheException {
+        leases.lock();
+        try {
+            if (!holds(l)) {
+                return false;
+            }
+            holders.remove(l.getKey());
+            delete(l.getKey());
+            return true;
+        } finally {
+            leases.unlock();
+        }
+    }
+
+    private boolean holds(Lease l) throws CacheException {
+        return l.getOwner().equals(holders.get(l.getKey())) && locked(l.getKey());
+    }
+
+    // the final answer of a query, unlocked, expiring in `offset` seconds.
+    public void finish(String key, String val, int offset) throws CacheException {
+        unlock(key);
+        set(key, val, offset);
+    }
+
+    // data sets don't go through `set`: they are written (compressed) to the sink while they're being fetched, and
+    // they're kept until the entry is deleted. the entry needs to exist before opening the sink, and closing the sink
+    // is what makes the data set available.
+    abstract public OutputStream payloadSink(String key) throws CacheException;
+
+    // null if there's no data set for this key.
+    abstract public InputStream payloadSource(String key) throws CacheException;
+
+    // same as above, as a channel positioned at the start of the data set (the answer's 'size' says how long it is).
+    // when the data set sits in a file this is a FileChannel, so it can be sent without copying it around.
+    public ReadableByteChannel payloadChannel(String key) throws CacheException {
+        InputStream is = payloadSource(key);
+        return is != null ? Channels.newChannel(is) : null;
+    }
+
     static String hash(String text) throws CacheException {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
@@ -0,0 +1,562 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+/*
+    A persistent, memory-mapped index for the filesystem cache. Every entry gets a fixed-size slot (open addressing on
+    the hash of its key) with its state, whether it's locked and by whom, its size, when it was last used and its
+    expiration time. Asking whether something exists, is locked or has expired is then a lookup in mapped memory
+    instead of a handful of `stat`s and reads on the cache directory, which are painfully slow on network filesystems.
+
+    Removed entries leave a tombstone behind so that lookups keep probing past them. Tombstones are reused by inserts,
+    but with enough churn they'd end up taking every empty slot and a miss would walk the whole table, so once live
+    and deleted slots together go past LOAD of the table (and there's a fair amount of tombstones) it's rehashed in
+    place.
+
+    The directory tree is still the source of truth: the index is rebuilt from it whenever it's missing or doesn't look
+    right (or when it ran out of room, or was halfway through a rehash, last time). An index belongs to a single Scylla
+    process, which holds an exclusive lock on `<path>.lock` for as long as it's around: it only synchronises within the
+    process, so another one mapping the same file would corrupt it. It only knows about the entries this process wrote
+    (and the ones in the directory when it was built), so with a cache shared by several Scyllas it can say an entry is
+    there but not that it isn't: `FileSystemCache` checks misses against the directory if it's told the cache is shared.
+
+    Layout: a 64-byte header (magic, version, number of slots, live and deleted slots, whether it ever ran out of room,
+    whether it's being rehashed, total size of the entries) followed by the slots.
+
+    | 0 - 31: hash | 32: state | 33: locked | 34 - 35: - | 36: last used (s, unsigned) | 40: data set size |
+    | 48: expiration (s) | 56: lock owner | 60: answer size |
+ */
+class CacheIndex {
+    private static final Logger log = LogManager.getLogger(CacheIndex.class.getName());
+
+    private static final long MAGIC = 0x5343594c4c414958L;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 64;
+
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_SLOTS = 12;
+    private static final int H_LIVE = 16;
+    private static final int H_DELETED = 24;
+    private static final int H_FULL = 32;
+    private static final int H_REHASHING = 33;
+    private static final int H_BYTES = 40;
+
+    private static final int S_HASH = 0;
+    private static final int S_STATE = 32;
+    private static final int S_LOCKED = 33;
+    private static final int S_ACCESS = 36;
+    private static final int S_SIZE = 40;
+    private static final int S_EXPIRE = 48;
+    private static final int S_OWNER = 56;
+    private static final int S_ANSWER_SIZE = 60;
+
+    // rehash once live and deleted slots go past this share of the table...
+    private static final double LOAD = 0.75;
+    // ... and at least this share of it are tombstones, so that every rehash is paid for by that many removals.
+    private static final double TOMBSTONES = 1.0 / 16;
+
+    static final int EXISTS = 1;
+    static final int LOCKED = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final byte EMPTY = 0;
+    private static final byte PRESENT = 1;
+    private static final byte DELETED = 2;
+
+    // one index per file, no matter how many caches use it.
+    private static final Map<Path, CacheIndex> indices = new HashMap<>();
+    // the locks that keep other processes away from them.
+    private static final List<FileLock> locks = new ArrayList<>();
+
+    private final MappedByteBuffer buf;
+    private final int slots;
+
+    private boolean full = false;
+    // how many slots the last lookup looked at.
+    private int probed;
+
+    private CacheIndex(MappedByteBuffer buf, int slots) {
+        this.buf = buf;
+        this.slots = slots;
+    }
+
+    static synchronized CacheIndex open(Path path, Path data, int slots) throws CacheException {
+        path = path.toAbsolutePath();
+        CacheIndex index = indices.get(path);
+
+        if (index == null) {
+            try {
+                claim(path);
+                index = load(path, slots);
+                if (index == null) {
+                    log.info(String.format("Rebuilding the cache index in %s ...", path));
+                    index = rebuild(path, data, slots);
+                }
+            } catch (IOException e) {
+                throw new CacheException("Error opening the cache index", e);
+            }
+            indices.put(path, index);
+        }
+
+        return index;
+    }
+
+    // the index is ours from now on, for as long as the process lives (the lock's never released: indices stay open).
+    private static void claim(Path path) throws IOException, CacheException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        FileChannel ch = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock l = null;
+        try {
+            l = ch.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // this very process has it open already, under another name
+        }
+        if (l == null) {
+            ch.close();
+            throw new CacheException(String.format("The cache index '%s' is being used by another Scylla. Give each " +
+                    "one its own 'cache_index_path'.", path));
+        }
+        locks.add(l);
+    }
+
+    private static MappedByteBuffer map(Path path, int slots, boolean truncate) throws IOException {
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        try (FileChannel ch = truncate
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // null if there's no usable index in `path`.
+    private static CacheIndex load(Path path, int slots) throws IOException {
+        if (!Files.exists(path) || Files.size(path) != HEADER_SIZE + (long) slots * SLOT_SIZE) {
+            return null;
+        }
+
+        MappedByteBuffer buf = map(path, slots, false);
+        if (buf.getLong(H_MAGIC) != MAGIC || buf.getInt(H_VERSION) != VERSION || buf.getInt(H_SLOTS) != slots ||
+                buf.get(H_FULL) != 0 || buf.get(H_REHASHING) != 0) {
+            return null;
+        }
+
+        return new CacheIndex(buf, slots);
+    }
+
+    private static CacheIndex rebuild(Path path, Path data, int slots) throws IOException {
+        MappedByteBuffer buf = map(path, slots, true);
+        buf.putLong(H_MAGIC, MAGIC);
+        buf.putInt(H_VERSION, VERSION);
+        buf.putInt(H_SLOTS, slots);
+
+        CacheIndex index = new CacheIndex(buf, slots);
+
+        String[] l = data.toFile().list();
+        if (l != null) {
+            for (String h : l) {
+                Path loc = data.resolve(h);
+                if (h.length() != 64 || !Files.isDirectory(loc)) {
+                    continue;
+                }
+                index.put(h);
+                if (Files.exists(loc.resolve("data"))) {
+                    index.answerSize(h, (int) Files.size(loc.resolve("data")));
+                    index.touch(h, Files.getLastModifiedTime(loc.resolve("data")).toMillis() / 1000);
+                }
+                if (Files.exists(loc.resolve("lock"))) {
+                    index.lock(h, 0);
+                }
+                if (Files.exists(loc.resolve("payload"))) {
+                    index.size(h, Files.size(loc.resolve("payload")));
+                }
+                if (Files.exists(loc.resolve("expire"))) {
+                    List<String> e = Files.readAllLines(loc.resolve("expire"), StandardCharsets.UTF_8);
+                    if (!e.isEmpty()) {
+                        index.expire(h, Long.valueOf(e.get(0).trim()));
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+    // once the index is full it can't answer for every entry anymore, callers need to go to the filesystem.
+    synchronized boolean isFull() {
+        return full;
+    }
+
+    synchronized boolean exists(String h) {
+        int s = find(h);
+        if (s < 0) {
+            return false;
+        }
+        long expire = buf.getLong(offset(s) + S_EXPIRE);
+        return expire == 0 || expire > System.currentTimeMillis() / 1000;
+    }
+
+    synchronized boolean locked(String h) {
+        int s = find(h);
+        return s >= 0 && buf.get(offset(s) + S_LOCKED) != 0;
+    }
+
+    // `exists` and `locked` for every one of `hs` in one go (one trip through the lock instead of two per entry), as
+    // EXISTS and LOCKED bits.
+    synchronized int[] states(List<String> hs) {
+        int[] states = new int[hs.size()];
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < states.length; i++) {
+            int s = find(hs.get(i));
+            if (s >= 0) {
+                int o = offset(s);
+                long expire = buf.getLong(o + S_EXPIRE);
+                states[i] = (expire == 0 || expire > now ? EXISTS : 0) | (buf.get(o + S_LOCKED) != 0 ? LOCKED : 0);
+            }
+        }
+        return states;
+    }
+
+    // 0 if the entry doesn't exist or doesn't expire.
+    synchronized long expiration(String h) {
+        int s = find(h);
+        return s >= 0 ? buf.getLong(offset(s) + S_EXPIRE) : 0;
+    }
+
+    // what all the entries take, answers and data sets.
+    synchronized long bytes() {
+        return buf.getLong(H_BYTES);
+    }
+
+    // adds the entry (or resets its expiration time if it's there already). false if there's no room left.
+    synchronized boolean put(String h) {
+        int s = find(h);
+        if (s < 0) {
+            if (crowded()) {
+                rehash();
+            }
+            s = insert(h);
+            if (s < 0) {
+                if (!full) {
+                    log.warn("The cache index is full, falling back to the filesystem. Consider raising " +
+                            "'cache_index_slots'.");
+                }
+                full = true;
+                buf.put(H_FULL, (byte) 1);
+                return false;
+            }
+        }
+        buf.putLong(offset(s) + S_EXPIRE, 0);
+        buf.putInt(offset(s) + S_ACCESS, (int) (System.currentTimeMillis() / 1000));
+        return true;
+    }
+
+    synchronized void remove(String h) {
+        int s = find(h);
+        if (s >= 0) {
+            int o = offset(s);
+            buf.putLong(H_BYTES, buf.getLong(H_BYTES) - buf.getLong(o + S_SIZE) - buf.getInt(o + S_ANSWER_SIZE));
+            buf.put(o + S_STATE, DELETED);
+            clear(o);
+            buf.putLong(H_LIVE, buf.getLong(H_LIVE) - 1);
+            buf.putLong(H_DELETED, buf.getLong(H_DELETED) + 1);
+            if (crowded()) {
+                rehash();
+            }
+        }
+    }
+
+    // how many slots a lookup for `h` looks at before it knows the answer.
+    synchronized int probes(String h) {
+        find(h);
+        return probed;
+    }
+
+    private boolean crowded() {
+        long live = buf.getLong(H_LIVE);
+        long deleted = buf.getLong(H_DELETED);
+        return live + deleted > LOAD * slots && deleted >= TOMBSTONES * slots;
+    }
+
+    // puts every live entry back where a lookup will find it soonest and drops the tombstones. the live slots are
+    // copied out first; if we go down halfway through, H_REHASHING makes the next start rebuild the index instead.
+    private void rehash() {
+        long live = buf.getLong(H_LIVE);
+        byte[] copy = new byte[(int) live * SLOT_SIZE];
+        int n = 0;
+        for (int s = 0; s < slots; s++) {
+            int o = offset(s);
+            if (buf.get(o + S_STATE) == PRESENT) {
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    copy[n * SLOT_SIZE + i] = buf.get(o + i);
+                }
+                n++;
+            }
+        }
+
+        buf.put(H_REHASHING, (byte) 1);
+        for (int s = 0; s < slots; s++) {
+            buf.put(offset(s) + S_STATE, EMPTY);
+        }
+        for (int e = 0; e < n; e++) {
+            int s = home(copy, e * SLOT_SIZE);
+            while (buf.get(offset(s) + S_STATE) != EMPTY) {
+                s = (s + 1) % slots;
+            }
+            int o = offset(s);
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                buf.put(o + i, copy[e * SLOT_SIZE + i]);
+            }
+        }
+        buf.putLong(H_DELETED, 0);
+        buf.put(H_REHASHING, (byte) 0);
+
+        log.debug(String.format("Rehashed the cache index (%d entries in %d slots).", n, slots));
+    }
+
+    synchronized void lock(String h, int owner) {
+        int s = find(h);
+        if (s >= 0) {
+            buf.put(offset(s) + S_LOCKED, (byte) 1);
+            buf.putInt(offset(s) + S_OWNER, owner);
+        }
+    }
+
+    synchronized void unlock(String h) {
+        int s = find(h);
+        if (s >= 0) {
+            buf.put(offset(s) + S_LOCKED, (byte) 0);
+            buf.putInt(offset(s) + S_OWNER, 0);
+        }
+    }
+
+    synchronized void expire(String h, long expire) {
+        int s = find(h);
+        if (s >= 0) {
+            buf.putLong(offset(s) + S_EXPIRE, expire);
+        }
+    }
+
+    // size of the data set.
+    synchronized void size(String h, long size) {
+        int s = find(h);
+        if (s >= 0) {
+            int o = offset(s);
+            buf.putLong(H_BYTES, buf.getLong(H_BYTES) - buf.getLong(o + S_SIZE) + size);
+            buf.putLong(o + S_SIZE, size);
+        }
+    }
+
+    // size of the answer (without the data set).
+    synchronized void answerSize(String h, int size) {
+        int s = find(h);
+        if (s >= 0) {
+            int o = offset(s);
+            buf.putLong(H_BYTES, buf.getLong(H_BYTES) - buf.getInt(o + S_ANSWER_SIZE) + size);
+            buf.putInt(o + S_ANSWER_SIZE, size);
+        }
+    }
+
+    synchronized void touch(String h) {
+        touch(h, System.currentTimeMillis() / 1000);
+    }
+
+    private void touch(String h, long at) {
+        int s = find(h);
+        if (s >= 0) {
+            buf.putInt(offset(s) + S_ACCESS, (int) at);
+        }
+    }
+
+    // entries that aren't locked, least recently used first, but only as many as it takes to free `need` bytes (or
+    // all of them, if they don't take that much altogether). only their hashes are copied holding the lock, they're
+    // turned into hex after.
+    List<String> leastRecentlyUsed(long need) {
+        if (need <= 0) {
+            return new ArrayList<>();
+        }
+
+        byte[] hashes;
+        synchronized (this) {
+            // (last used, slot, size), the most recently used of the ones picked so far on top: it's the first to go
+            // once the older ones are enough.
+            PriorityQueue<long[]> picked = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+            long bytes = 0;
+            for (int s = 0; s < slots; s++) {
+                int o = offset(s);
+                if (buf.get(o + S_STATE) != PRESENT || buf.get(o + S_LOCKED) != 0) {
+                    continue;
+                }
+                long access = buf.getInt(o + S_ACCESS) & 0xffffffffL;
+                if (bytes >= need && access >= picked.peek()[0]) {
+                    continue;
+                }
+                long size = buf.getLong(o + S_SIZE) + buf.getInt(o + S_ANSWER_SIZE);
+                picked.add(new long[]{access, s, size});
+                bytes += size;
+                while (bytes - picked.peek()[2] >= need) {
+                    bytes -= picked.poll()[2];
+                }
+            }
+
+            List<long[]> l = new ArrayList<>(picked);
+            l.sort(Comparator.comparingLong(a -> a[0]));
+            hashes = new byte[l.size() * 32];
+            for (int i = 0; i < l.size(); i++) {
+                int o = offset((int) l.get(i)[1]);
+                for (int j = 0; j < 32; j++) {
+                    hashes[i * 32 + j] = buf.get(o + S_HASH + j);
+                }
+            }
+        }
+
+        List<String> l = new ArrayList<>(hashes.length / 32);
+        for (int i = 0; i < hashes.length; i += 32) {
+            l.add(hex(hashes, i));
+        }
+        return l;
+    }
+
+    // every entry with an expiration time, as (hash, expiration).
+    synchronized void forEachExpiration(BiConsumer<String, Long> f) {
+        for (int s = 0; s < slots; s++) {
+            int o = offset(s);
+            long expire = buf.getLong(o + S_EXPIRE);
+            if (buf.get(o + S_STATE) == PRESENT && expire > 0) {
+                f.accept(hex(o), expire);
+            }
+        }
+    }
+
+    private void clear(int o) {
+        buf.put(o + S_LOCKED, (byte) 0);
+        buf.putInt(o + S_ACCESS, 0);
+        buf.putLong(o + S_SIZE, 0);
+        buf.putLong(o + S_EXPIRE, 0);
+        buf.putInt(o + S_OWNER, 0);
+        buf.putInt(o + S_ANSWER_SIZE, 0);
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static byte[] bytes(String h) {
+        byte[] b = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            b[i] = (byte) Integer.parseInt(h.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    private String hex(int o) {
+        char[] c = new char[64];
+        for (int i = 0; i < 32; i++) {
+            int b = buf.get(o + S_HASH + i) & 0xff;
+            c[2 * i] = HEX[b >>> 4];
+            c[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(c);
+    }
+
+    // the 32 bytes of a hash starting at b[from].
+    private static String hex(byte[] b, int from) {
+        char[] c = new char[64];
+        for (int i = 0; i < 32; i++) {
+            int x = b[from + i] & 0xff;
+            c[2 * i] = HEX[x >>> 4];
+            c[2 * i + 1] = HEX[x & 0xf];
+        }
+        return new String(c);
+    }
+
+    private int home(byte[] b) {
+        return home(b, 0);
+    }
+
+    // the slot a hash starting at b[from] belongs in.
+    private int home(byte[] b, int from) {
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            l = (l << 8) | (b[from + i] & 0xff);
+        }
+        return (int) Math.floorMod(l, (long) slots);
+    }
+
+    private boolean matches(int o, byte[] b) {
+        for (int i = 0; i < 32; i++) {
+            if (buf.get(o + S_HASH + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(String h) {
+        byte[] b = bytes(h);
+        int s = home(b);
+        for (int i = 0; i < slots; i++, s = (s + 1) % slots) {
+            int o = offset(s);
+            byte state = buf.get(o + S_STATE);
+            probed = i + 1;
+            if (state == EMPTY) {
+                return -1;
+            } else if (state == PRESENT && matches(o, b)) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(String h) {
+        byte[] b = bytes(h);
+        int s = home(b);
+        for (int i = 0; i < slots; i++, s = (s + 1) % slots) {
+            int o = offset(s);
+            byte state = buf.get(o + S_STATE);
+            if (state != PRESENT) {
+                for (int j = 0; j < 32; j++) {
+                    buf.put(o + S_HASH + j, b[j]);
+                }
+                clear(o);
+                buf.put(o + S_STATE, PRESENT);
+
+                buf.putLong(H_LIVE, buf.getLong(H_LIVE) + 1);
+                if (state == DELETED) {
+                    buf.putLong(H_DELETED, buf.getLong(H_DELETED) - 1);
+                }
+                return s;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,169 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Removes expired entries from the filesystem cache in the background. Every expiration time that gets set ends up in
+    a heap ordered by time, and every `interval` seconds whatever is due gets removed (in batches, so that a big pile of
+    entries expiring at once doesn't hold the heap for ages). Requests never have to look at the whole cache.
+
+    It also keeps the cache under its size budget: after each sweep (or as soon as somebody notices the cache is too
+    big) the least recently used entries are evicted.
+
+    The heap may have stale items (the expiration time of an entry changed, or it's gone already): the cache checks
+    before deleting anything. The ones superseded by a later `schedule` for the same entry (a lease renewed every few
+    seconds for hours) are known, and skipped when they come up; once they outnumber the rest the heap is rebuilt, so
+    it never gets much bigger than the number of entries in it.
+ */
+class ExpirySweeper {
+    private static final Logger log = LogManager.getLogger(ExpirySweeper.class.getName());
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static class Expiry implements Comparable<Expiry> {
+        private final String hash;
+        private final long at;
+
+        Expiry(String hash, long at) {
+            this.hash = hash;
+            this.at = at;
+        }
+
+        @Override
+        public int compareTo(Expiry o) {
+            return Long.compare(at, o.at);
+        }
+    }
+
+    private final FileSystemCache cache;
+    private final int interval;
+    private final PriorityQueue<Expiry> heap = new PriorityQueue<>();
+    // the last expiration time scheduled for each entry in the heap, and how many items in there aren't that.
+    private final Map<String, Long> latest = new HashMap<>();
+    private int superseded = 0;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    ExpirySweeper(FileSystemCache cache, int interval) {
+        this.cache = cache;
+        this.interval = interval;
+    }
+
+    synchronized void schedule(String hash, long at) {
+        if (latest.put(hash, at) != null) {
+            superseded++;
+        }
+        heap.add(new Expiry(hash, at));
+
+        if (superseded > 64 && superseded > heap.size() / 2) {
+            heap.clear();
+            latest.forEach((h, a) -> heap.add(new Expiry(h, a)));
+            superseded = 0;
+        }
+    }
+
+    // entries waiting to be checked.
+    synchronized int pending() {
+        return latest.size();
+    }
+
+    synchronized int heapSize() {
+        return heap.size();
+    }
+
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Cache sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            sweep();
+            evict();
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    // evicts as soon as possible instead of waiting for the next sweep.
+    void wakeUp() {
+        if (scheduler != null && evicting.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::evict);
+            } catch (RejectedExecutionException e) {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private void evict() {
+        try {
+            cache.evict();
+        } catch (CacheException | RuntimeException e) {
+            log.error("Error evicting cache entries: " + e.getMessage());
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // removes everything that's due, returns how many entries were removed.
+    int sweep() {
+        int removed = 0;
+        List<Expiry> due;
+
+        do {
+            due = due(System.currentTimeMillis() / 1000);
+            for (Expiry e : due) {
+                try {
+                    if (cache.sweep(e.hash, e.at)) {
+                        removed++;
+                    }
+                } catch (CacheException | RuntimeException ex) {
+                    log.error(String.format("Error removing expired cache entry %s: %s", e.hash, ex.getMessage()));
+                }
+            }
+        } while (due.size() == BATCH_SIZE);
+
+        if (removed > 0) {
+            log.debug(String.format("Removed %d expired cache entries.", removed));
+        }
+        return removed;
+    }
+
+    private synchronized List<Expiry> due(long now) {
+        List<Expiry> due = new ArrayList<>();
+        while (due.size() < BATCH_SIZE && !heap.isEmpty() && heap.peek().at <= now) {
+            Expiry e = heap.poll();
+            Long at = latest.get(e.hash);
+            if (at != null && at == e.at) {
+                latest.remove(e.hash);
+                due.add(e);
+            } else {
+                superseded--;
+            }
+        }
+        return due;
+    }
+}
@@ -5,23 +5,72 @@
 package com.king.scylla.cache;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 // a generalisation of this thing could be quite useful for normal people to use.
 public class FileSystemCache extends Cache {
+    private static final Logger log = LogManager.getLogger(FileSystemCache.class.getName());
+
+    // 64 bytes per slot, so the default index takes 64MB and has room for about a million entries.
+    public static final int DEFAULT_INDEX_SLOTS = 1 << 20;
+
+    // what goes in the index as lock owner: the pid of this process.
+    private static final int OWNER = owner();
+
+    // milliseconds a guard is held for, at the very most (it's only ever held for a handful of file operations).
+    private static final long GUARD_TIMEOUT = 10000;
+
     private final Path mpath;
+    private final CacheIndex index;
+
+    private ExpirySweeper sweeper;
+
+    // zero means there's no limit to what the cache can take.
+    private long maxBytes = 0;
+
+    // whether other Scyllas write to the same directory (see `setShared`).
+    private boolean shared = false;
 
     public FileSystemCache(String cachePath) throws CacheException {
+        this(cachePath, null, DEFAULT_INDEX_SLOTS);
+    }
+
+    // the index is this process's own (see `CacheIndex`), so it can't be in the cache directory: other Scyllas sharing
+    // the cache would map the very same file. it's on the local disk unless `indexPath` says otherwise.
+    public FileSystemCache(String cachePath, String indexPath, int indexSlots) throws CacheException {
         this.mpath = Paths.get(cachePath);
+        Path ipath = (indexPath != null ? Paths.get(indexPath) : localIndexPath(cachePath, null)).toAbsolutePath()
+                .normalize();
+        if (ipath.startsWith(mpath.toAbsolutePath().normalize())) {
+            throw new CacheException(String.format("The cache index (%s) can't be in the cache directory, other " +
+                    "Scyllas sharing the cache would use it too. Put it on a local disk.", ipath));
+        }
         if (!Files.exists(mpath)) {
             try {
                 Files.createDirectory(mpath);
@@ -38,11 +87,101 @@ public class FileSystemCache extends Cache {
             }
             setPerms(mpath.resolve("data"));
         }
-        cleanup();
+        this.index = CacheIndex.open(ipath, mpath.resolve("data"), indexSlots);
+    }
+
+    // where the index of the cache in `cachePath` goes by default: the temporary directory, named after the cache (and
+    // `name`, if there's one, so that several Scyllas on the same host can each have their own).
+    public static Path localIndexPath(String cachePath, String name) throws CacheException {
+        String id = hash(Paths.get(cachePath).toAbsolutePath().normalize().toString()).substring(0, 16);
+        return Paths.get(System.getProperty("java.io.tmpdir"), "scylla.index." + id + (name != null ? "." + name : ""));
+    }
+
+    // while the index has room for everything it knows about every entry it wrote, otherwise we go back to the
+    // filesystem. what it says about the entries it has is trusted, so a hit is a lookup in memory. it can't know
+    // about the ones other Scyllas sharing the cache wrote, though: if there are any, misses are checked against the
+    // directory.
+    private boolean indexed() {
+        return !index.isFull();
     }
 
     public boolean exists(String key) throws CacheException {
-        return Files.exists(resolveKey(key));
+        if (indexed() && index.exists(hash(key))) {
+            return true;
+        }
+        return (!indexed() || shared) && onDisk(resolveKey(key));
+    }
+
+    // whether the directory has an entry for `loc` that hasn't expired.
+    private boolean onDisk(Path loc) throws CacheException {
+        if (!Files.exists(loc)) {
+            return false;
+        }
+        long expire = expiration(loc);
+        return expire == 0 || expire > System.currentTimeMillis() / 1000;
+    }
+
+    // a single pass through the index for all of them, only the answers asked for (and the entries the index doesn't
+    // know about) are looked for on disk.
+    @Override
+    public List<Peek> peek(List<String> keys, boolean answers) throws CacheException {
+        if (!indexed()) {
+            return super.peek(keys, answers);
+        }
+        List<String> hashes = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            hashes.add(hash(key));
+        }
+        int[] states = index.states(hashes);
+
+        List<Peek> peeks = new ArrayList<>(keys.size());
+        for (int i = 0; i < states.length; i++) {
+            String key = keys.get(i);
+            boolean exists = (states[i] & CacheIndex.EXISTS) != 0;
+            boolean locked = (states[i] & CacheIndex.LOCKED) != 0;
+            if (!exists && shared) {
+                Path loc = resolveKey(key);
+                exists = onDisk(loc);
+                locked = exists && Files.exists(loc.resolve("lock"));
+            }
+            peeks.add(peek(key, exists, locked, answers));
+        }
+        return peeks;
+    }
+
+    private Peek peek(String key, boolean exists, boolean locked, boolean answer) throws CacheException {
+        if (!answer || !exists || locked) {
+            return new Peek(exists, locked, null);
+        }
+        JSONObject jo = get(key);
+        return new Peek(jo != null, false, jo);
+    }
+
+    // whatever the index says, as long as it's on our own: if the cache is shared, a miss might be somebody else's
+    // entry, and the answers are read from a directory that's likely on the network. both are a worker's job.
+    @Override
+    public Peek quickPeek(String key, boolean answer) throws CacheException {
+        if (!indexed()) {
+            return null;
+        }
+        int state = index.states(Collections.singletonList(hash(key)))[0];
+        boolean exists = (state & CacheIndex.EXISTS) != 0;
+        boolean locked = (state & CacheIndex.LOCKED) != 0;
+        if (shared && (!exists || answer && !locked)) {
+            return null;
+        }
+        Peek p = peek(key, exists, locked, answer);
+        // thrown away behind our back.
+        return exists && !p.exists() ? null : p;
+    }
+
+    // the index knows, unless it's somebody else's entry.
+    @Override
+    public long expiration(String key) throws CacheException {
+        if (indexed() && (!shared || index.exists(hash(key)))) {
+            return index.expiration(hash(key));
+        }
+        return expiration(resolveKey(key));
     }
 
     public void delete(String key) throws CacheException {
@@ -53,6 +192,7 @@ public class FileSystemCache extends Cache {
                 throw new CacheException(e.getMessage(), e);
             }
         }
+        index.remove(hash(key));
     }
 
     public void expire(String key, int offset) throws CacheException {
@@ -62,7 +202,12 @@ public class FileSystemCache extends Cache {
                 if (Files.exists(expp)) {
                     Files.delete(expp);
                 }
-                Files.write(expp, ("" + (System.currentTimeMillis() / 1000 + offset)).getBytes(StandardCharsets.UTF_8));
+                long expire = System.currentTimeMillis() / 1000 + offset;
+                Files.write(expp, ("" + expire).getBytes(StandardCharsets.UTF_8));
+                index.expire(hash(key), expire);
+                if (sweeper != null) {
+                    sweeper.schedule(hash(key), expire);
+                }
             } catch (IOException e) {
                 throw new CacheException("Error while setting the new expiration time", e);
             }
@@ -77,13 +222,17 @@ public class FileSystemCache extends Cache {
             try {
                 fin = new FileInputStream(loc.resolve("data").toString());
             } catch (FileNotFoundException e) {
-                throw new CacheException("File '" + loc.resolve("data").toString() + "' not found!", e);
+                // somebody (another Scylla, say) removed it behind our back, the index shouldn't keep saying it's
+                // there.
+                index.remove(hash(key));
+                return null;
             }
             BufferedReader br = new BufferedReader(new InputStreamReader(fin));
             try {
                 JSONObject jo = new JSONObject(br.readLine());
                 br.close();
                 fin.close();
+                index.touch(hash(key));
 
                 return jo;
             } catch (IOException e) {
@@ -94,33 +243,392 @@ public class FileSystemCache extends Cache {
     }
 
     public void set(String key, String val) throws CacheException {
-        if (exists(key) && !locked(key)) {
-            delete(key);
-        } else if (locked(key)) {
+        if (locked(key)) {
             throw new CacheException("You are trying to overwrite a locked key");
         }
         Path loc = resolveKey(key);
+        Path lock = loc.resolve("lock");
 
+        // holding the guard, so that the sweeper can't throw the entry away halfway through.
         try {
-            Files.createDirectory(loc);
-
-            lock(key);
-            Files.write(loc.resolve("key"), key.getBytes(StandardCharsets.UTF_8));
-            setPerms(loc.resolve("key"));
+            boolean written = false;
+            while (!written) {
+                try {
+                    Files.createDirectories(loc);
+                    written = guarded(lock, () -> {
+                        if (Files.exists(lock)) {
+                            throw new CacheException("You are trying to overwrite a locked key");
+                        }
+                        // a new answer starts without an expiration time, same as before.
+                        Files.deleteIfExists(loc.resolve("expire"));
+                        index.put(hash(key));
 
-            FileOutputStream fout = new FileOutputStream(loc.resolve("data").toString());
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fout));
-            bw.write(val);
-            bw.close();
-            fout.close();
-            setPerms(loc.resolve("data"));
-            unlock(key);
+                        lock(key);
+                        write(key, val);
+                        unlock(key);
+                        return true;
+                    });
+                } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                    // the entry went away just now, it starts over.
+                }
+            }
         } catch(IOException e) {
             throw new CacheException(e.getMessage(), e);
         }
     }
 
+    // creating the lock file is what decides who gets to start the query, the filesystem makes sure only one of us
+    // manages (other Scyllas on the same cache included). the lock file says who holds the lease and until when, so
+    // once a lease runs out (its Scylla went down, say) the next one to try breaks it.
+    //
+    // looking at a lock and doing something about it (breaking it, renewing it, letting go of it) happens holding the
+    // entry's guard (see `guarded`), otherwise two of us could both find it stale and both end up thinking it's theirs.
+    //
+    // an answer that's there already (another Scylla finished it while we weren't looking) isn't replaced: somebody
+    // forcing a query deletes it first.
+    @Override
+    public Lease tryStart(String key, String val, int lease) throws CacheException {
+        Path loc = resolveKey(key);
+        Path lock = loc.resolve("lock");
+        Lease l = new Lease(key, lease);
+
+        try {
+            Boolean claimed = null;
+            while (claimed == null) {
+                try {
+                    Files.createDirectories(loc);
+                    claimed = guarded(lock, () -> {
+                        if (!Files.exists(lock) && Files.exists(loc.resolve("data")) && onDisk(loc)) {
+                            return false;
+                        }
+                        if (!claim(lock, l)) {
+                            if (!stale(lock)) {
+                                return false;
+                            }
+                            log.info("Breaking the expired lock on " + hash(key));
+                            Files.delete(lock);
+                            return claim(lock, l);
+                        }
+                        return true;
+                    });
+                } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                    // the entry went away just now, it starts over.
+                }
+            }
+            if (!claimed) {
+                return null;
+            }
+            setPerms(lock);
+
+            Files.deleteIfExists(loc.resolve("expire"));
+            index.put(hash(key));
+            index.lock(hash(key), OWNER);
+            write(key, val);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+        expire(key, lease);
+        return l;
+    }
+
+    // the lock file says who holds it.
+    @Override
+    public Lease recover(String key, String owner, int ttl) {
+        return new Lease(key, owner, ttl);
+    }
+
+    @Override
+    public boolean renew(Lease l) throws CacheException {
+        Path lock = resolveKey(l.getKey()).resolve("lock");
+        try {
+            boolean renewed = guarded(lock, () -> {
+                if (!holds(lock, l)) {
+                    return false;
+                }
+                // replaced in one go, so nobody ever sees it half written.
+                Path tmp = lock.resolveSibling("lock." + l.getOwner());
+                Files.write(tmp, holder(l));
+                Files.move(tmp, lock, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            });
+            if (!renewed) {
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+        expire(l.getKey(), l.getTtl());
+        return true;
+    }
+
+    // every run writes its own data set, the one that finishes holding the lease moves it in place.
+    @Override
+    public OutputStream payloadSink(Lease l) throws CacheException {
+        if (!exists(l.getKey())) {
+            throw new CacheException("You are trying to write a data set for a key that doesn't exist");
+        }
+        Path payload = resolveKey(l.getKey()).resolve("payload." + l.getOwner());
+        try {
+            OutputStream os = Files.newOutputStream(payload);
+            setPerms(payload);
+            return new BufferedOutputStream(os, 1 << 16);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean finish(Lease l, String val, int offset) throws CacheException {
+        String key = l.getKey();
+        String h = hash(key);
+        Path loc = resolveKey(key);
+        Path lock = loc.resolve("lock");
+        Path mine = loc.resolve("payload." + l.getOwner());
+        Path payload = loc.resolve("payload");
+
+        try {
+            boolean finished = guarded(lock, () -> {
+                if (!holds(lock, l)) {
+                    return false;
+                }
+                if (Files.exists(mine)) {
+                    Files.move(mine, payload, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    accountFor(h, Files.size(payload));
+                } else {
+                    // whatever data set the entry had belonged to the answer this one replaces.
+                    Files.deleteIfExists(payload);
+                    accountFor(h, 0);
+                }
+                Files.deleteIfExists(loc.resolve("expire"));
+                index.put(h);
+                write(key, val);
+                expire(key, offset);
+                Files.delete(lock);
+                index.unlock(h);
+                return true;
+            });
+            if (!finished) {
+                Files.deleteIfExists(mine);
+            }
+            return finished;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean release(Lease l) throws CacheException {
+        Path loc = resolveKey(l.getKey());
+        Path lock = loc.resolve("lock");
+        try {
+            boolean released = guarded(lock, () -> {
+                if (!holds(lock, l)) {
+                    return false;
+                }
+                index.remove(hash(l.getKey()));
+                discard(loc);
+                return true;
+            });
+            if (!released) {
+                Files.deleteIfExists(loc.resolve("payload." + l.getOwner()));
+            }
+            return released;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    private interface Guarded<T> {
+        T run() throws IOException, CacheException;
+    }
+
+    // `f` holding the guard of `lock`: a file next to it that only one of us can create at a time, and everybody
+    // changing a lease's lock takes it first. a guard that's been around for longer than GUARD_TIMEOUT was left
+    // behind by a Scylla that went down halfway, and is taken over. NoSuchFileException if the entry isn't there.
+    //
+    // if `f` throws the entry away the guard goes with it, and the one in its place by the time we're done (if any)
+    // is somebody else's: every guard says whose it is, and we only ever delete ours.
+    private static <T> T guarded(Path lock, Guarded<T> f) throws IOException, CacheException {
+        Path guard = lock.resolveSibling("lock.guard");
+        byte[] mine = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        long deadline = System.currentTimeMillis() + 2 * GUARD_TIMEOUT;
+        while (true) {
+            try {
+                Files.write(guard, mine, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out waiting for the guard of " + lock);
+                }
+                breakGuard(guard);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException i) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the guard of " + lock);
+                }
+            }
+        }
+        try {
+            return f.run();
+        } finally {
+            try {
+                if (Arrays.equals(Files.readAllBytes(guard), mine)) {
+                    Files.delete(guard);
+                }
+            } catch (NoSuchFileException e) {
+                // thrown away along with the entry
+            }
+        }
+    }
+
+    private static void breakGuard(Path guard) throws IOException {
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(guard).toMillis() > GUARD_TIMEOUT) {
+                log.warn("Breaking the abandoned guard " + guard);
+                Files.deleteIfExists(guard);
+            }
+        } catch (NoSuchFileException e) {
+            // let go of just now
+        }
+    }
+
+    // an entry's directory goes away in one go (renamed out of the way, then deleted), so a query starting on the same
+    // key meanwhile gets a directory of its own instead of having it emptied under its feet. it's called holding the
+    // entry's guard, and whatever the index says about the entry has to go before (once it's renamed somebody else
+    // may be setting the key again already).
+    private static void discard(Path loc) throws IOException {
+        Path gone = loc.resolveSibling(loc.getFileName() + ".gone." + UUID.randomUUID());
+        try {
+            Files.move(loc, gone, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        FileUtils.deleteDirectory(gone.toFile());
+    }
+
+    private static boolean claim(Path lock, Lease l) throws IOException {
+        try {
+            Files.write(lock, holder(l), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    // what goes in the lock file: the owner of the lease and when it runs out (in milliseconds).
+    private static byte[] holder(Lease l) {
+        long until = System.currentTimeMillis() + l.getTtl() * 1000L;
+        return (l.getOwner() + " " + until).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // null if the lock isn't there, or it's not a lease (or it's being written right now).
+    private static String[] holder(Path lock) throws IOException {
+        try {
+            String[] h = new String(Files.readAllBytes(lock), StandardCharsets.UTF_8).trim().split(" ");
+            if (h.length == 2) {
+                Long.parseLong(h[1]);
+                return h;
+            }
+        } catch (NoSuchFileException | NumberFormatException e) {
+            // not a lease
+        }
+        return null;
+    }
+
+    private static boolean holds(Path lock, Lease l) throws IOException {
+        String[] h = holder(lock);
+        return h != null && h[0].equals(l.getOwner());
+    }
+
+    private static boolean stale(Path lock) throws IOException {
+        String[] h = holder(lock);
+        return h != null && Long.parseLong(h[1]) < System.currentTimeMillis();
+    }
+
+    private void accountFor(String h, long size) {
+        index.size(h, size);
+        if (maxBytes > 0 && index.bytes() > maxBytes && sweeper != null) {
+            sweeper.wakeUp();
+        }
+    }
+
+    // the answer for an entry whose lock we hold.
+    private void write(String key, String val) throws IOException, CacheException {
+        Path loc = resolveKey(key);
+
+        Files.write(loc.resolve("key"), key.getBytes(StandardCharsets.UTF_8));
+        setPerms(loc.resolve("key"));
+
+        // only the answer gets replaced, the data set (if any) stays where it is. it's in the same charset `get` reads
+        // it in, and what it takes on disk (not how many chars it has) is what counts against `maxBytes`.
+        byte[] answer = val.getBytes(Charset.defaultCharset());
+        Path tmp = loc.resolve("data.tmp");
+        Files.write(tmp, answer);
+        setPerms(tmp);
+        Files.move(tmp, loc.resolve("data"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.answerSize(hash(key), answer.length);
+    }
+
+    public OutputStream payloadSink(String key) throws CacheException {
+        if (!exists(key)) {
+            throw new CacheException("You are trying to write a data set for a key that doesn't exist");
+        }
+        Path payload = resolveKey(key).resolve("payload");
+        try {
+            Files.deleteIfExists(payload);
+            Files.createFile(payload);
+            setPerms(payload);
+
+            String h = hash(key);
+            return new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(payload), 1 << 16)) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    accountFor(h, getByteCount());
+                }
+            };
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    public InputStream payloadSource(String key) throws CacheException {
+        Path payload = resolveKey(key).resolve("payload");
+        try {
+            return new BufferedInputStream(Files.newInputStream(payload), 1 << 16);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ReadableByteChannel payloadChannel(String key) throws CacheException {
+        Path payload = resolveKey(key).resolve("payload");
+        try {
+            return FileChannel.open(payload, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
     public boolean locked(String key) throws CacheException {
+        if (indexed()) {
+            int state = index.states(Collections.singletonList(hash(key)))[0];
+            if ((state & (CacheIndex.EXISTS | CacheIndex.LOCKED)) != 0 || !shared) {
+                return (state & CacheIndex.LOCKED) != 0;
+            }
+        }
         return Files.exists(resolveKey(key).resolve("lock"));
     }
 
@@ -132,36 +640,244 @@ public class FileSystemCache extends Cache {
                 throw new CacheException(e.getMessage(), e);
             }
             setPerms(resolveKey(key).resolve("lock"));
+            index.lock(hash(key), OWNER);
         }
     }
 
     public void unlock(String key) throws CacheException {
         if (exists(key) && locked(key)) {
             try {
-                Files.delete(resolveKey(key).resolve("lock"));
+                Files.deleteIfExists(resolveKey(key).resolve("lock"));
+                index.unlock(hash(key));
             } catch (IOException e) {
                 throw new CacheException(e.getMessage(), e);
             }
         }
     }
 
-    private void cleanup() throws CacheException {
-        String[] l = mpath.resolve("data").toFile().list();
-        if (l != null) {
-            for (String dir : l) {
-                Path loc = mpath.resolve("data").resolve(dir);
-                if (Files.exists(loc.resolve("expire"))) {
-                    try {
-                        Long expire = Long.valueOf(Files.readAllLines(loc.resolve("expire"), StandardCharsets.UTF_8).get(0));
-                        if (expire <= System.currentTimeMillis() / 1000) {
-                            FileUtils.deleteDirectory(loc.toFile());
-                        }
-                    } catch (IOException e) {
-                        throw new CacheException(e.getMessage(), e);
+    // expired entries are removed in the background every `interval` seconds from now on. the ones that expired
+    // while nobody was looking go first.
+    public synchronized void startSweeper(int interval) throws CacheException {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = new ExpirySweeper(this, interval);
+
+        if (indexed()) {
+            index.forEachExpiration(sweeper::schedule);
+        } else {
+            String[] l = mpath.resolve("data").toFile().list();
+            if (l != null) {
+                for (String h : l) {
+                    // entries being thrown away have longer names.
+                    if (h.length() != 64) {
+                        continue;
+                    }
+                    long expire = expiration(mpath.resolve("data").resolve(h));
+                    if (expire > 0) {
+                        sweeper.schedule(h, expire);
                     }
                 }
             }
         }
+
+        log.info(String.format("Sweeping expired cache entries every %d seconds (%d scheduled).", interval,
+                sweeper.pending()));
+        sweeper.start();
+    }
+
+    // above `maxBytes` the least recently used entries get evicted (in the background, by the sweeper).
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // other Scyllas write to the same directory: what isn't in the index might still be there (see `indexed`). the
+    // entries the index has are still trusted, leases are always taken (and checked) on the directory.
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public synchronized void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.stop();
+            sweeper = null;
+        }
+    }
+
+    // the sweeper thinks entry `h` expired at `at`: if that's still the case it goes away. locked entries are left
+    // alone for now. true if something was removed.
+    //
+    // it's checked again holding the entry's guard before anything is removed: a query starting (or an answer being
+    // set) on the same key right now either finds it gone or keeps it.
+    boolean sweep(String h, long at) throws CacheException {
+        Path loc = mpath.resolve("data").resolve(h);
+        Path lock = loc.resolve("lock");
+        if (!expired(h, at)) {
+            return false;
+        }
+
+        try {
+            boolean swept = guarded(lock, () -> {
+                if (!expired(h, at)) {
+                    return false;
+                }
+                // a query still running, unless its lease ran out.
+                if (Files.exists(lock) && !stale(lock)) {
+                    ExpirySweeper s = sweeper;
+                    if (s != null) {
+                        s.schedule(h, System.currentTimeMillis() / 1000 + 60);
+                    }
+                    return false;
+                }
+                index.remove(h);
+                discard(loc);
+                return true;
+            });
+            if (swept) {
+                dropped(h);
+            }
+            return swept;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    private boolean expired(String h, long at) throws CacheException {
+        long expire = indexed() ? index.expiration(h) : expiration(mpath.resolve("data").resolve(h));
+        return expire == at && expire <= System.currentTimeMillis() / 1000;
+    }
+
+    // entry `h` goes away unless it's locked, which is checked holding its guard (same as `sweep`). true if it went
+    // away.
+    private boolean evict(String h) throws CacheException {
+        Path loc = mpath.resolve("data").resolve(h);
+        Path lock = loc.resolve("lock");
+        try {
+            boolean evicted = guarded(lock, () -> {
+                if (Files.exists(lock)) {
+                    return false;
+                }
+                index.remove(h);
+                discard(loc);
+                return true;
+            });
+            if (evicted) {
+                dropped(h);
+            }
+            return evicted;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    // what the index says the entries it knows about take, answers and data sets.
+    long bytes() {
+        return index.bytes();
+    }
+
+    // if the cache takes more than `maxBytes`, least recently used entries go away until it's back to 90% of it.
+    // locked entries (queries still running) are never touched. returns how many entries were evicted.
+    int evict() throws CacheException {
+        if (maxBytes <= 0) {
+            return 0;
+        }
+        if (!indexed()) {
+            return evictFromDisk();
+        }
+        if (index.bytes() <= maxBytes) {
+            return 0;
+        }
+
+        long target = maxBytes / 10 * 9;
+        int evicted = 0;
+
+        for (String h : index.leastRecentlyUsed(index.bytes() - target)) {
+            if (index.bytes() <= target) {
+                break;
+            }
+            if (!index.locked(h) && evict(h)) {
+                evicted++;
+            }
+        }
+
+        log.info(String.format("Evicted %d entries, the cache takes %d bytes now.", evicted, index.bytes()));
+        return evicted;
+    }
+
+    // the same, going through the cache directory: once the index ran out of room it doesn't know about every entry.
+    // when an entry was last used is when its answer was last written.
+    private int evictFromDisk() throws CacheException {
+        Path data = mpath.resolve("data");
+        String[] l = data.toFile().list();
+        if (l == null) {
+            return 0;
+        }
+
+        // (last used, size) of the entries that can go, and their hashes
+        List<long[]> entries = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        long bytes = 0;
+        for (String h : l) {
+            // entries being thrown away have longer names.
+            if (h.length() != 64) {
+                continue;
+            }
+            Path loc = data.resolve(h);
+            File answer = loc.resolve("data").toFile();
+            long size = answer.length() + loc.resolve("payload").toFile().length();
+            bytes += size;
+            if (!Files.exists(loc.resolve("lock"))) {
+                entries.add(new long[]{answer.lastModified(), size, hashes.size()});
+                hashes.add(h);
+            }
+        }
+        if (bytes <= maxBytes) {
+            return 0;
+        }
+
+        long target = maxBytes / 10 * 9;
+        int evicted = 0;
+
+        entries.sort(Comparator.comparingLong(e -> e[0]));
+        for (long[] e : entries) {
+            if (bytes <= target) {
+                break;
+            }
+            if (evict(hashes.get((int) e[2]))) {
+                bytes -= e[1];
+                evicted++;
+            }
+        }
+
+        log.info(String.format("Evicted %d entries, the cache takes %d bytes now.", evicted, bytes));
+        return evicted;
+    }
+
+    // 0 if there's no expiration time.
+    private long expiration(Path loc) throws CacheException {
+        Path expp = loc.resolve("expire");
+        try {
+            List<String> l = Files.readAllLines(expp, StandardCharsets.UTF_8);
+            return l.isEmpty() ? 0 : Long.valueOf(l.get(0).trim());
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException | NumberFormatException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    private static int owner() {
+        // "pid@host", and there's no nicer way to get it in java 8.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
     }
 
     private void setPerms(Path path) throws CacheException {
@@ -0,0 +1,68 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+/*
+    A count-min sketch that tells roughly how often a key has been asked for lately (TinyLFU). It takes a few KB no
+    matter how many keys go through it, and every `10 * width` increments all the counters are halved, so that what
+    was hot last week doesn't stay hot forever.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xb8f2a4ed, 0x5bd1e995, 0xc2b2ae35};
+
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+
+    private int additions = 0;
+
+    FrequencySketch(int width) {
+        int w = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+        counters = new int[DEPTH][w];
+        mask = w - 1;
+        sampleSize = 10 * w;
+    }
+
+    synchronized void increment(String key) {
+        int h = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            counters[i][index(h, i)]++;
+        }
+        if (++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    synchronized int frequency(String key) {
+        int h = spread(key.hashCode());
+        int f = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            f = Math.min(f, counters[i][index(h, i)]);
+        }
+        return f;
+    }
+
+    private void reset() {
+        for (int[] row : counters) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] >>>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int h, int i) {
+        int x = h * SEEDS[i];
+        return (x ^ (x >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,40 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import java.util.UUID;
+
+/*
+    The right to run a query and write its answer, for `ttl` seconds unless it's renewed. Every lease has an owner of
+    its own (one per run, not per Scylla), and the cache only takes the final answer from whoever holds the lock right
+    now: a run that lost its lease (it stalled, somebody forced the query again...) can't overwrite a newer answer.
+ */
+public final class Lease {
+    private final String key;
+    private final String owner;
+    private final int ttl;
+
+    Lease(String key, int ttl) {
+        this(key, UUID.randomUUID().toString(), ttl);
+    }
+
+    Lease(String key, String owner, int ttl) {
+        this.key = key;
+        this.owner = owner;
+        this.ttl = ttl;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+}
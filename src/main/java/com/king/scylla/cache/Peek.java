@@ -0,0 +1,36 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.json.JSONObject;
+
+/*
+    What the cache knows about an entry without going anywhere near its data set: whether it's there, whether somebody
+    is running its query right now and, when it was asked for (and it's there and finished), its answer.
+ */
+public final class Peek {
+    private final boolean exists;
+    private final boolean locked;
+    private final JSONObject answer;
+
+    Peek(boolean exists, boolean locked, JSONObject answer) {
+        this.exists = exists;
+        this.locked = locked;
+        this.answer = answer;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean locked() {
+        return locked;
+    }
+
+    // null unless it was asked for and the entry is there and isn't locked.
+    public JSONObject getAnswer() {
+        return answer;
+    }
+}
@@ -3,77 +3,506 @@ package com.king.scylla.cache;
 import org.json.JSONObject;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+// every operation is a single round trip: compound ones go in a MULTI, and the pool's connections are opened on the
+// right database already (no SELECT every time one is borrowed).
 public class RedisCache extends Cache {
+    // data sets are stored as a list of raw chunks of this size, next to the (small) answer that describes them.
+    private static final int CHUNK_SIZE = 1 << 20;
+    // chunks fetched per round trip when reading a data set back.
+    private static final int READ_AHEAD = 8;
+
+    // KEYS: answer, lock. ARGV: placeholder, lease, owner.
+    private static final String TRY_START =
+            "if redis.call('set', KEYS[2], ARGV[3], 'NX', 'EX', ARGV[2]) then " +
+            "redis.call('setex', KEYS[1], ARGV[2], ARGV[1]) return 1 end return 0";
+
+    // KEYS: answer, lock, data set being written. ARGV: owner, lease.
+    private static final String RENEW =
+            "if redis.call('get', KEYS[2]) ~= ARGV[1] then return 0 end " +
+            "for i = 1, 3 do redis.call('expire', KEYS[i], ARGV[2]) end return 1";
+
+    // KEYS: answer, lock, data set, old-style data set, data set being written, run. ARGV: owner, answer, expiration.
+    private static final String FINISH =
+            "if redis.call('get', KEYS[2]) ~= ARGV[1] then redis.call('del', KEYS[5]) return 0 end " +
+            "redis.call('del', KEYS[3], KEYS[4]) " +
+            "if redis.call('exists', KEYS[5]) == 1 then " +
+            "redis.call('rename', KEYS[5], KEYS[3]) redis.call('expire', KEYS[3], ARGV[3]) end " +
+            "redis.call('setex', KEYS[6], ARGV[3], ARGV[1]) " +
+            "redis.call('setex', KEYS[1], ARGV[3], ARGV[2]) redis.call('del', KEYS[2]) return 1";
+
+    // same KEYS as above. ARGV: owner.
+    private static final String RELEASE =
+            "redis.call('del', KEYS[5]) " +
+            "if redis.call('get', KEYS[2]) ~= ARGV[1] then return 0 end " +
+            "redis.call('del', KEYS[1], KEYS[2], KEYS[3], KEYS[4], KEYS[6]) return 1";
+
     private final JedisPool pool;
-    private final int db;
 
-    public RedisCache(JedisPool pool, int db) {
+    public RedisCache(JedisPool pool) {
         this.pool = pool;
-        this.db = db;
     }
 
     private Jedis jedis() {
-        Jedis jedis = pool.getResource();
-        jedis.select(db);
-        return jedis;
+        return pool.getResource();
     }
 
     public boolean exists(String key) throws CacheException {
-        Jedis jedis = jedis();
-        boolean e = jedis.exists(hash(key));
-        jedis.close();
-        return e;
+        try (Jedis jedis = jedis()) {
+            return jedis.exists(hash(key));
+        }
+    }
+
+    // one pipeline for the lot: the answers (whose being there is what `exists` asks) in a single MGET, and the locks.
+    @Override
+    public List<Peek> peek(List<String> keys, boolean answers) throws CacheException {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String[] hashes = new String[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = hash(keys.get(i));
+        }
+
+        List<Response<Boolean>> exist = new ArrayList<>(hashes.length);
+        List<Response<Boolean>> locks = new ArrayList<>(hashes.length);
+        Response<List<String>> vals = null;
+        try (Jedis jedis = jedis()) {
+            Pipeline p = jedis.pipelined();
+            if (answers) {
+                vals = p.mget(hashes);
+            }
+            for (int i = 0; i < hashes.length; i++) {
+                if (!answers) {
+                    exist.add(p.exists(hashes[i]));
+                }
+                locks.add(p.exists(lockname(keys.get(i))));
+            }
+            p.sync();
+        }
+
+        List<Peek> peeks = new ArrayList<>(hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            String val = answers ? vals.get().get(i) : null;
+            boolean exists = answers ? val != null : exist.get(i).get();
+            boolean locked = locks.get(i).get();
+            peeks.add(new Peek(exists, locked, val != null && !locked ? new JSONObject(val) : null));
+        }
+        return peeks;
     }
 
     public void delete(String key) throws CacheException {
-        Jedis jedis = jedis();
-        jedis.del(hash(key));
-        if (locked(key)) {
-            unlock(key);
+        try (Jedis jedis = jedis()) {
+            jedis.del(hash(key), chunksname(key), payloadname(key), lockname(key), runname(key));
         }
-        jedis.close();
     }
 
     public void expire(String key, int offset) throws CacheException {
-        Jedis jedis = jedis();
-        jedis.expire(hash(key), offset);
-        jedis.close();
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            t.expire(hash(key), offset);
+            t.expire(chunksname(key), offset);
+            t.expire(payloadname(key), offset);
+            t.expire(runname(key), offset);
+            t.exec();
+        }
     }
 
     public JSONObject get(String key) throws CacheException {
-        Jedis jedis = jedis();
-        JSONObject o = new JSONObject(jedis.get(hash(key)));
-        jedis.close();
-        return o;
+        try (Jedis jedis = jedis()) {
+            String val = jedis.get(hash(key));
+            return val != null ? new JSONObject(val) : null;
+        }
+    }
+
+    // Redis only says how long it's got left.
+    @Override
+    public long expiration(String key) throws CacheException {
+        try (Jedis jedis = jedis()) {
+            long ttl = jedis.pttl(hash(key));
+            return ttl > 0 ? (System.currentTimeMillis() + ttl) / 1000 : 0;
+        }
     }
 
     public void set(String key, String val) throws CacheException {
-        Jedis jedis = jedis();
-        jedis.set(hash(key), val);
-        jedis.close();
+        try (Jedis jedis = jedis()) {
+            jedis.set(hash(key), val);
+        }
+    }
+
+    @Override
+    public void set(String key, String val, int offset) throws CacheException {
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            t.setex(hash(key), offset, val);
+            t.expire(chunksname(key), offset);
+            t.expire(payloadname(key), offset);
+            t.expire(runname(key), offset);
+            t.exec();
+        }
     }
 
     public boolean locked(String key) throws CacheException {
-        Jedis jedis = jedis();
-        boolean l = jedis.exists(lockname(key));
-        jedis.close();
-        return l;
+        try (Jedis jedis = jedis()) {
+            return jedis.exists(lockname(key));
+        }
     }
 
     public void lock(String key) throws CacheException {
-        Jedis jedis = jedis();
-        jedis.set(lockname(key), "0");
-        jedis.close();
+        try (Jedis jedis = jedis()) {
+            jedis.set(lockname(key), "0");
+        }
+    }
+
+    @Override
+    public void lock(String key, int lease) throws CacheException {
+        try (Jedis jedis = jedis()) {
+            jedis.setex(lockname(key), lease, "0");
+        }
     }
 
     public void unlock(String key) throws CacheException {
-        Jedis jedis = jedis();
-        jedis.del(lockname(key));
-        jedis.close();
+        try (Jedis jedis = jedis()) {
+            jedis.del(lockname(key));
+        }
+    }
+
+    @Override
+    public void start(String key, String val, int lease) throws CacheException {
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            t.setex(hash(key), lease, val);
+            t.setex(lockname(key), lease, "0");
+            t.exec();
+        }
+    }
+
+    // leases are the lock key holding the owner, with a TTL. checking who holds it and acting on it happen in one
+    // script, so a run that lost its lease (or two Scyllas sharing this Redis) can't get in each other's way. every run
+    // writes its data set to a key of its own, renamed into place when it finishes (and the run's owner is left next
+    // to it, see `payloadSource`).
+    @Override
+    public Lease tryStart(String key, String val, int lease) throws CacheException {
+        Lease l = new Lease(key, lease);
+        try (Jedis jedis = jedis()) {
+            Object started = jedis.eval(TRY_START, Arrays.asList(hash(key), lockname(key)),
+                    Arrays.asList(val, Integer.toString(lease), l.getOwner()));
+            return Long.valueOf(1).equals(started) ? l : null;
+        }
+    }
+
+    // the lock says who holds it.
+    @Override
+    public Lease recover(String key, String owner, int ttl) {
+        return new Lease(key, owner, ttl);
+    }
+
+    @Override
+    public boolean renew(Lease l) throws CacheException {
+        String key = l.getKey();
+        try (Jedis jedis = jedis()) {
+            return Long.valueOf(1).equals(jedis.eval(RENEW, Arrays.asList(hash(key), lockname(key), tmpname(l)),
+                    Arrays.asList(l.getOwner(), Integer.toString(l.getTtl()))));
+        }
+    }
+
+    @Override
+    public OutputStream payloadSink(Lease l) throws CacheException {
+        String name = tmpname(l);
+        try (Jedis jedis = jedis()) {
+            jedis.del(name);
+        }
+        return chunkSink(bytes(name), l.getTtl());
+    }
+
+    @Override
+    public boolean finish(Lease l, String val, int offset) throws CacheException {
+        String key = l.getKey();
+        try (Jedis jedis = jedis()) {
+            return Long.valueOf(1).equals(jedis.eval(FINISH, Arrays.asList(hash(key), lockname(key),
+                    chunksname(key), payloadname(key), tmpname(l), runname(key)),
+                    Arrays.asList(l.getOwner(), val, Integer.toString(offset))));
+        }
+    }
+
+    @Override
+    public boolean release(Lease l) throws CacheException {
+        String key = l.getKey();
+        try (Jedis jedis = jedis()) {
+            return Long.valueOf(1).equals(jedis.eval(RELEASE, Arrays.asList(hash(key), lockname(key),
+                    chunksname(key), payloadname(key), tmpname(l), runname(key)),
+                    Collections.singletonList(l.getOwner())));
+        }
+    }
+
+    @Override
+    public void finish(String key, String val, int offset) throws CacheException {
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            t.setex(hash(key), offset, val);
+            t.expire(chunksname(key), offset);
+            t.expire(payloadname(key), offset);
+            t.expire(runname(key), offset);
+            t.del(lockname(key));
+            t.exec();
+        }
+    }
+
+    public OutputStream payloadSink(String key) throws CacheException {
+        final byte[] name = bytes(chunksname(key));
+
+        // a run of its own, in place: whoever's reading the old one finds out.
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            t.del(name, bytes(payloadname(key)));
+            t.set(runname(key), UUID.randomUUID().toString());
+            t.exec();
+        }
+
+        return chunkSink(name, 0);
+    }
+
+    // chunks pushed to the list `name`, which expires in `ttl` seconds from the last one (unless it's zero).
+    private OutputStream chunkSink(final byte[] name, final int ttl) {
+        return new OutputStream() {
+            private final byte[] buf = new byte[CHUNK_SIZE];
+            private int n = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (n == buf.length) {
+                    flush();
+                }
+                buf[n++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (n == buf.length) {
+                        flush();
+                    }
+                    int c = Math.min(len, buf.length - n);
+                    System.arraycopy(b, off, buf, n, c);
+                    n += c;
+                    off += c;
+                    len -= c;
+                }
+            }
+
+            @Override
+            public void flush() {
+                if (n > 0) {
+                    byte[] chunk = new byte[n];
+                    System.arraycopy(buf, 0, chunk, 0, n);
+                    try (Jedis jedis = jedis()) {
+                        if (ttl > 0) {
+                            Transaction t = jedis.multi();
+                            t.rpush(name, chunk);
+                            t.expire(name, ttl);
+                            t.exec();
+                        } else {
+                            jedis.rpush(name, chunk);
+                        }
+                    }
+                    n = 0;
+                }
+            }
+
+            @Override
+            public void close() {
+                flush();
+            }
+        };
+    }
+
+    // every batch of chunks is read in one MULTI with the answer and the run that wrote them: if either isn't what it
+    // was when we started (the entry was deleted, expired, or run again and another list renamed into place) carrying
+    // on would splice two data sets together, so it fails instead. so does a list that ends before the chunks (or the
+    // bytes) it had at the start.
+    public InputStream payloadSource(String key) throws CacheException {
+        final String answer = hash(key);
+        final String run = runname(key);
+        final byte[] name = bytes(chunksname(key));
+
+        Response<List<String>> current;
+        Response<Long> length;
+        Response<List<byte[]>> first;
+        try (Jedis jedis = jedis()) {
+            Transaction t = jedis.multi();
+            current = t.mget(answer, run);
+            length = t.llen(name);
+            first = t.lrange(name, 0, READ_AHEAD - 1);
+            t.exec();
+        }
+
+        if (first.get().isEmpty()) {
+            return legacyPayloadSource(key);
+        } else if (current.get().get(0) == null) {
+            return null;
+        }
+
+        final List<String> version = current.get();
+        final long chunks = length.get();
+        final long size = new JSONObject(version.get(0)).optLong("size", -1);
+
+        return new InputStream() {
+            private List<byte[]> batch = first.get();
+            private long next = batch.size();
+            private long read = 0;
+            private int c = 0;
+            private int i = 0;
+
+            private boolean fill() throws IOException {
+                while (c < batch.size() && i == batch.get(c).length) {
+                    c++;
+                    i = 0;
+                }
+                if (c < batch.size()) {
+                    return true;
+                } else if (next >= chunks) {
+                    if (size >= 0 && read != size) {
+                        throw new IOException(String.format("The data set has %d bytes instead of %d", read, size));
+                    }
+                    return false;
+                }
+
+                Response<List<String>> now;
+                Response<List<byte[]>> more;
+                try (Jedis jedis = jedis()) {
+                    Transaction t = jedis.multi();
+                    now = t.mget(answer, run);
+                    more = t.lrange(name, next, next + READ_AHEAD - 1);
+                    t.exec();
+                }
+                if (!version.equals(now.get())) {
+                    throw new IOException("The data set changed (or went away) while it was being read");
+                } else if (more.get().isEmpty()) {
+                    throw new IOException(String.format("The data set has %d chunks instead of %d", next, chunks));
+                }
+                batch = more.get();
+                next += batch.size();
+                c = 0;
+                i = 0;
+                return fill();
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+                read++;
+                return batch.get(c)[i++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                } else if (!fill()) {
+                    return -1;
+                }
+                byte[] chunk = batch.get(c);
+                int n = Math.min(len, chunk.length - i);
+                System.arraycopy(chunk, i, b, off, n);
+                i += n;
+                read += n;
+                return n;
+            }
+        };
+    }
+
+    // data sets written before they were stored as lists were a single string, read back in ranges.
+    private InputStream legacyPayloadSource(String key) throws CacheException {
+        final byte[] name = bytes(payloadname(key));
+
+        final long size;
+        try (Jedis jedis = jedis()) {
+            size = jedis.strlen(name);
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        return new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int i = 0;
+            private long offset = 0;
+
+            private boolean fill() throws IOException {
+                if (i < chunk.length) {
+                    return true;
+                } else if (offset >= size) {
+                    return false;
+                }
+                try (Jedis jedis = jedis()) {
+                    chunk = jedis.getrange(name, offset, Math.min(offset + CHUNK_SIZE, size) - 1);
+                }
+                if (chunk.length == 0) {
+                    throw new IOException(String.format("The data set has %d bytes instead of %d", offset, size));
+                }
+                offset += chunk.length;
+                i = 0;
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return fill() ? chunk[i++] & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                } else if (!fill()) {
+                    return -1;
+                }
+                int c = Math.min(len, chunk.length - i);
+                System.arraycopy(chunk, i, b, off, c);
+                i += c;
+                return c;
+            }
+        };
     }
 
     private String lockname(String key) throws CacheException {
         return hash(key) + "-lock";
     }
+
+    // the owner of the run whose data set is there now.
+    private String runname(String key) throws CacheException {
+        return hash(key) + "-run";
+    }
+
+    private String tmpname(Lease l) throws CacheException {
+        return chunksname(l.getKey()) + "-" + l.getOwner();
+    }
+
+    private String chunksname(String key) throws CacheException {
+        return hash(key) + "-chunks";
+    }
+
+    private String payloadname(String key) throws CacheException {
+        return hash(key) + "-payload";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -0,0 +1,882 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+    A filesystem cache that doesn't need a directory (and half a dozen files) per entry: everything that happens to an
+    entry is appended as a record to big segment files, and an in-memory map says where the answer and the data set
+    of every entry are. Writes are sequential, and millions of tiny answers (`desc`s, `show tables`) cost a few bytes
+    each instead of a bunch of inodes.
+
+    Records: | magic | type | body length | value | hash of the key (32 bytes) | crc of the body | crc of all that |
+    body |
+
+    When a segment gets bigger than `segmentSize` it's sealed with a footer listing its records (so on startup the map
+    can be rebuilt without reading the whole thing) and a new one is started. The last segment may not have a footer
+    (crashes happen): that one is scanned, records whose body doesn't match its crc are skipped, and whatever is torn
+    at the end is cut off.
+
+    Data sets don't go through the active segment: each one is written straight into a (sealed) segment of its own
+    while it's being fetched, and the entry is pointed at it (a PAYLOAD_REF record) once it's done. Nobody waits for
+    anybody else's data set to be written that way.
+
+    Overwritten, deleted and expired records stay where they are until a compaction: sealed segments where less than
+    half of the bytes are still used get their live records appended again and are removed. Only the room for a record
+    is taken holding the lock, the copying is done without it.
+ */
+public class SegmentCache extends Cache {
+    private static final Logger log = LogManager.getLogger(SegmentCache.class.getName());
+
+    public static final long DEFAULT_SEGMENT_SIZE = 256L << 20;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final int RECORD_MAGIC = 0x53524532;
+    private static final int FOOTER_MAGIC = 0x53465432;
+
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 32 + 4 + 4;
+    private static final int DESCRIPTOR_SIZE = 1 + 32 + 8 + 8 + 8 + 4;
+    private static final int TRAILER_SIZE = 8 + 4;
+
+    // the answer (value: expiration time), the data set (alone in its segment), a new expiration time (value), lock,
+    // unlock, delete and the segment with the entry's data set (value, the body is its length).
+    private static final byte ANSWER = 1;
+    private static final byte PAYLOAD = 2;
+    private static final byte EXPIRE = 3;
+    private static final byte LOCK = 4;
+    private static final byte UNLOCK = 5;
+    private static final byte DELETE = 6;
+    private static final byte PAYLOAD_REF = 7;
+
+    private static class Record {
+        private final byte type;
+        private final String hash;
+        private final long offset;
+        private final long length;
+        private final long value;
+        private final int crc;
+
+        Record(byte type, String hash, long offset, long length, long value, int crc) {
+            this.type = type;
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+            this.value = value;
+            this.crc = crc;
+        }
+
+        long body() {
+            return offset + HEADER_SIZE;
+        }
+    }
+
+    private static class Entry {
+        private int answerSegment;
+        private long answerOffset;
+        private int answerLength;
+        private int answerCrc;
+
+        private int payloadSegment = -1;
+        private long payloadOffset;
+        private long payloadLength;
+
+        private long expire = 0;
+        private boolean locked = false;
+
+        boolean expired(long now) {
+            return expire != 0 && expire <= now;
+        }
+    }
+
+    private final Path segments;
+    private final Path tmp;
+    private final long segmentSize;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Integer> sealed = new TreeSet<>();
+
+    private int active;
+    // segment numbers are handed out in order, to the active segment and to data sets alike.
+    private int next = 0;
+    private FileChannel activeChannel;
+    private long activeSize;
+    private List<Record> activeRecords = new ArrayList<>();
+
+    private ScheduledExecutorService compactor;
+
+    public SegmentCache(String cachePath) throws CacheException {
+        this(cachePath, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentCache(String cachePath, long segmentSize) throws CacheException {
+        this.segmentSize = segmentSize;
+        Path root = Paths.get(cachePath);
+        this.segments = root.resolve("segments");
+        this.tmp = root.resolve("tmp");
+
+        try {
+            Files.createDirectories(segments);
+            // data sets that were being written when we went down are of no use to anybody.
+            FileUtils.deleteDirectory(tmp.toFile());
+            Files.createDirectories(tmp);
+            recover();
+        } catch (IOException e) {
+            throw new CacheException("Error opening the segment cache", e);
+        }
+    }
+
+    public synchronized boolean exists(String key) throws CacheException {
+        Entry e = entries.get(hash(key));
+        return e != null && !e.expired(System.currentTimeMillis() / 1000);
+    }
+
+    // everything's in memory, but data sets are slices of a segment (not a file of their own): the ones with a data set
+    // are a worker's job.
+    @Override
+    public Peek quickPeek(String key, boolean answer) throws CacheException {
+        synchronized (this) {
+            Entry e = entries.get(hash(key));
+            if (e == null || e.expired(System.currentTimeMillis() / 1000)) {
+                return new Peek(false, false, null);
+            } else if (e.locked) {
+                return new Peek(true, true, null);
+            } else if (answer && e.payloadSegment >= 0) {
+                return null;
+            }
+        }
+        return new Peek(true, false, answer ? get(key) : null);
+    }
+
+    public synchronized void delete(String key) throws CacheException {
+        String h = hash(key);
+        if (entries.remove(h) != null) {
+            append(DELETE, h, 0, null);
+        }
+    }
+
+    public synchronized void expire(String key, int offset) throws CacheException {
+        if (exists(key)) {
+            String h = hash(key);
+            long expire = System.currentTimeMillis() / 1000 + offset;
+            append(EXPIRE, h, expire, null);
+            entries.get(h).expire = expire;
+        }
+    }
+
+    @Override
+    public synchronized long expiration(String key) throws CacheException {
+        Entry e = entries.get(hash(key));
+        return e != null ? e.expire : 0;
+    }
+
+    public JSONObject get(String key) throws CacheException {
+        int segment;
+        long offset;
+        int length;
+        int crc;
+
+        synchronized (this) {
+            if (!exists(key)) {
+                return null;
+            }
+            Entry e = entries.get(hash(key));
+            segment = e.answerSegment;
+            offset = e.answerOffset;
+            length = e.answerLength;
+            crc = e.answerCrc;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        try (FileChannel ch = FileChannel.open(segment(segment), StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, offset + buf.position()) < 0) {
+                    throw new CacheException("Answer for " + key + " is shorter than expected");
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // compacted away while we were looking: it's somewhere else now.
+            return get(key);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+        buf.flip();
+
+        CRC32 c = new CRC32();
+        c.update(buf.array(), 0, length);
+        if ((int) c.getValue() != crc) {
+            throw new CacheException("The answer for " + key + " is corrupt");
+        }
+        return new JSONObject(StandardCharsets.UTF_8.decode(buf).toString());
+    }
+
+    public synchronized void set(String key, String val) throws CacheException {
+        if (locked(key)) {
+            throw new CacheException("You are trying to overwrite a locked key");
+        }
+        String h = hash(key);
+        byte[] b = val.getBytes(StandardCharsets.UTF_8);
+
+        Record r = append(ANSWER, h, 0, ByteBuffer.wrap(b));
+
+        Entry e = entries.get(h);
+        if (e == null || e.expired(System.currentTimeMillis() / 1000)) {
+            e = new Entry();
+            entries.put(h, e);
+        }
+        e.answerSegment = active;
+        e.answerOffset = r.body();
+        e.answerLength = b.length;
+        e.answerCrc = r.crc;
+        e.expire = 0;
+    }
+
+    public synchronized boolean locked(String key) throws CacheException {
+        Entry e = entries.get(hash(key));
+        return e != null && e.locked;
+    }
+
+    public synchronized void lock(String key) throws CacheException {
+        if (exists(key) && !locked(key)) {
+            String h = hash(key);
+            append(LOCK, h, 0, null);
+            entries.get(h).locked = true;
+        }
+    }
+
+    public synchronized void unlock(String key) throws CacheException {
+        if (exists(key) && locked(key)) {
+            String h = hash(key);
+            append(UNLOCK, h, 0, null);
+            entries.get(h).locked = false;
+        }
+    }
+
+    // the data set is written straight into a segment of its own (in tmp/ until it's done, so that one that was
+    // being written when we went down doesn't come back), and the entry is pointed at it when it's closed.
+    public OutputStream payloadSink(String key) throws CacheException {
+        if (!exists(key)) {
+            throw new CacheException("You are trying to write a data set for a key that doesn't exist");
+        }
+        final String h = hash(key);
+        final int s;
+        synchronized (this) {
+            s = next++;
+        }
+        final Path f = tmp.resolve(segment(s).getFileName());
+        try {
+            final FileChannel ch = FileChannel.open(f, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ch.position(HEADER_SIZE);
+            final CRC32 crc = new CRC32();
+            return new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(ch), crc), 1 << 16) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    boolean published = false;
+                    try {
+                        Record r;
+                        try {
+                            flush();
+                            r = new Record(PAYLOAD, h, 0, ch.position() - HEADER_SIZE, 0, (int) crc.getValue());
+                            writeHeader(ch, r);
+                            writeFooter(ch, Collections.singletonList(r), r.body() + r.length);
+                            ch.force(true);
+                        } finally {
+                            ch.close();
+                        }
+                        publishPayload(h, s, f, r.length);
+                        published = true;
+                    } catch (CacheException e) {
+                        throw new IOException(e.getMessage(), e);
+                    } finally {
+                        if (!published) {
+                            Files.deleteIfExists(f);
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    public InputStream payloadSource(String key) throws CacheException {
+        ReadableByteChannel ch = payloadChannel(key);
+        return ch != null ? Channels.newInputStream(ch) : null;
+    }
+
+    @Override
+    public ReadableByteChannel payloadChannel(String key) throws CacheException {
+        int segment;
+        long offset;
+        long length;
+
+        synchronized (this) {
+            Entry e = entries.get(hash(key));
+            if (e == null || e.payloadSegment < 0) {
+                return null;
+            }
+            segment = e.payloadSegment;
+            offset = e.payloadOffset;
+            length = e.payloadLength;
+        }
+
+        try {
+            return new SegmentSlice(FileChannel.open(segment(segment), StandardOpenOption.READ), offset, length);
+        } catch (NoSuchFileException e) {
+            return payloadChannel(key);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    // sealed segments that are mostly garbage are compacted every `interval` seconds.
+    public synchronized void startCompactor(int interval) {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Segment compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (CacheException | RuntimeException e) {
+                    log.error("Error compacting the segment cache: " + e.getMessage());
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stopCompactor() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+    }
+
+    public synchronized void close() throws CacheException {
+        stopCompactor();
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    // returns how many segments were compacted.
+    int compact() throws CacheException {
+        List<Integer> candidates = new ArrayList<>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis() / 1000;
+            List<String> expired = new ArrayList<>();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().expired(now) && !e.getValue().locked) {
+                    expired.add(e.getKey());
+                }
+            }
+            // the tombstones make sure they don't come back from older segments after a restart.
+            for (String h : expired) {
+                entries.remove(h);
+                append(DELETE, h, 0, null);
+            }
+
+            Map<Integer, Long> live = new HashMap<>();
+            // a data set that's still used is never moved, its segment stays as it is.
+            Set<Integer> pinned = new HashSet<>();
+            for (Entry e : entries.values()) {
+                live.merge(e.answerSegment, (long) e.answerLength + HEADER_SIZE, Long::sum);
+                if (e.payloadSegment >= 0) {
+                    pinned.add(e.payloadSegment);
+                }
+            }
+            for (int s : sealed) {
+                try {
+                    if (!pinned.contains(s) && live.getOrDefault(s, 0L) < Files.size(segment(s)) / 2) {
+                        candidates.add(s);
+                    }
+                } catch (IOException e) {
+                    throw new CacheException(e.getMessage(), e);
+                }
+            }
+        }
+
+        for (int s : candidates) {
+            compact(s);
+        }
+        return candidates.size();
+    }
+
+    // whatever is still in use in segment `s` is appended again, then `s` goes away. the segment is sealed (nobody
+    // writes there anymore), so it can be read without holding the lock, which is only taken record by record (and
+    // not while answers are copied: see `move`).
+    private void compact(int s) throws CacheException {
+        List<Record> records;
+        try (FileChannel ch = FileChannel.open(segment(s), StandardOpenOption.READ)) {
+            records = records(ch, s, false);
+
+            Set<String> restated = new HashSet<>();
+            for (Record r : records) {
+                if (r.type == ANSWER) {
+                    move(ch, s, r);
+                    continue;
+                }
+                synchronized (this) {
+                    Entry e = entries.get(r.hash);
+                    switch (r.type) {
+                        case PAYLOAD_REF:
+                            if (e != null && e.payloadSegment == r.value && restated.add("p" + r.hash)) {
+                                append(PAYLOAD_REF, r.hash, r.value, length(e.payloadLength));
+                            }
+                            break;
+                        case EXPIRE:
+                        case LOCK:
+                        case UNLOCK:
+                            if (e != null && restated.add(r.hash)) {
+                                append(EXPIRE, r.hash, e.expire, null);
+                                if (e.locked) {
+                                    append(LOCK, r.hash, 0, null);
+                                }
+                            }
+                            break;
+                        case DELETE:
+                            // only needed while there's something older that it hides.
+                            if (e == null && sealed.first() < s) {
+                                append(DELETE, r.hash, 0, null);
+                            }
+                            break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+
+        synchronized (this) {
+            sealed.remove(s);
+            try {
+                // what was moved out of it is on disk for good before it goes.
+                activeChannel.force(false);
+                Files.delete(segment(s));
+            } catch (IOException e) {
+                throw new CacheException(e.getMessage(), e);
+            }
+        }
+        log.debug(String.format("Compacted segment %d (%d records).", s, records.size()));
+    }
+
+    // an answer in segment `s` that's still in use is copied to the active segment: its room there is taken holding
+    // the lock, the bytes are copied without it, and the entry only moves over (holding the lock again) once they're
+    // all there, if it's still where it was.
+    private void move(FileChannel ch, int s, Record r) throws CacheException, IOException {
+        Record c;
+        int to;
+        synchronized (this) {
+            Entry e = entries.get(r.hash);
+            if (e == null || e.answerSegment != s || e.answerOffset != r.body()) {
+                return;
+            }
+            c = reserve(ANSWER, r.hash, e.expire, r.length, r.crc);
+            to = active;
+        }
+
+        try (FileChannel dst = FileChannel.open(segment(to), StandardOpenOption.WRITE)) {
+            long done = 0;
+            while (done < r.length) {
+                long n = ch.transferTo(r.body() + done, r.length - done, dst.position(c.body() + done));
+                if (n <= 0) {
+                    throw new CacheException("Source shorter than expected while moving a record");
+                }
+                done += n;
+            }
+            dst.force(false);
+        }
+
+        synchronized (this) {
+            Entry e = entries.get(r.hash);
+            if (e != null && e.answerSegment == s && e.answerOffset == r.body()) {
+                e.answerSegment = to;
+                e.answerOffset = c.body();
+            }
+        }
+    }
+
+    // the data set for `h` in segment `s` (still in `f`, in tmp/) is the entry's now, unless it went away meanwhile.
+    private void publishPayload(String h, int s, Path f, long length) throws CacheException, IOException {
+        Files.move(f, segment(s), StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            Entry e = entries.get(h);
+            if (e == null) {
+                Files.delete(segment(s));
+                return;
+            }
+            append(PAYLOAD_REF, h, s, length(length));
+            e.payloadSegment = s;
+            e.payloadOffset = HEADER_SIZE;
+            e.payloadLength = length;
+            sealed.add(s);
+        }
+    }
+
+    private Path segment(int s) {
+        return segments.resolve(String.format("%010d.seg", s));
+    }
+
+    private static ByteBuffer length(long length) {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putLong(0, length);
+        return b;
+    }
+
+    private Record append(byte type, String h, long value, ByteBuffer body) throws CacheException {
+        try {
+            long length = body != null ? body.remaining() : 0;
+            CRC32 crc = new CRC32();
+            if (body != null) {
+                crc.update(body.duplicate());
+            }
+            Record r = header(type, h, value, length, (int) crc.getValue());
+            while (body != null && body.hasRemaining()) {
+                activeChannel.write(body, r.body() + length - body.remaining());
+            }
+            return appended(r);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    // a record whose body is written later, by whoever reserved it (and without holding the lock): if we go down
+    // before that, its crc won't match and it's skipped.
+    private Record reserve(byte type, String h, long value, long length, int crc) throws CacheException {
+        try {
+            return appended(header(type, h, value, length, crc));
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage(), e);
+        }
+    }
+
+    // writes the header of a record at the end of the active segment (starting a new one if it's full already).
+    private Record header(byte type, String h, long value, long length, int crc) throws IOException {
+        if (activeSize >= segmentSize) {
+            seal();
+        }
+        Record r = new Record(type, h, activeSize, length, value, crc);
+        writeHeader(activeChannel, r);
+        return r;
+    }
+
+    private static void writeHeader(FileChannel ch, Record r) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(RECORD_MAGIC).put(r.type).putLong(r.length).putLong(r.value).put(unhex(r.hash)).putInt(r.crc);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, HEADER_SIZE - 4);
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        while (header.hasRemaining()) {
+            ch.write(header, r.offset + header.position());
+        }
+    }
+
+    private Record appended(Record r) {
+        activeSize = r.body() + r.length;
+        activeRecords.add(r);
+        return r;
+    }
+
+    private void seal() throws IOException {
+        writeFooter(activeChannel, activeRecords, activeSize);
+        activeChannel.force(true);
+        activeChannel.close();
+
+        sealed.add(active);
+        open(next);
+    }
+
+    // footer: | descriptors of every record | how many there are | where the footer starts | magic |
+    private static void writeFooter(FileChannel ch, List<Record> records, long at) throws IOException {
+        ByteBuffer footer = ByteBuffer.allocate(records.size() * DESCRIPTOR_SIZE + 4 + TRAILER_SIZE);
+        for (Record r : records) {
+            footer.put(r.type).put(unhex(r.hash)).putLong(r.offset).putLong(r.length).putLong(r.value).putInt(r.crc);
+        }
+        footer.putInt(records.size()).putLong(at).putInt(FOOTER_MAGIC);
+        footer.flip();
+        while (footer.hasRemaining()) {
+            ch.write(footer, at + footer.position());
+        }
+    }
+
+    private void open(int s) throws IOException {
+        active = s;
+        next = Math.max(next, s + 1);
+        activeChannel = FileChannel.open(segment(s), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        activeSize = activeChannel.size();
+        activeRecords = new ArrayList<>();
+    }
+
+    private void recover() throws IOException {
+        TreeSet<Integer> found = new TreeSet<>();
+        String[] l = segments.toFile().list();
+        if (l != null) {
+            for (String f : l) {
+                if (f.endsWith(".seg")) {
+                    found.add(Integer.valueOf(f.substring(0, f.length() - 4)));
+                }
+            }
+        }
+
+        for (int s : found) {
+            boolean last = s == found.last();
+            List<Record> records;
+            boolean writable;
+            try (FileChannel ch = FileChannel.open(segment(s), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                records = records(ch, s, last);
+                for (Record r : records) {
+                    replay(ch, s, r);
+                }
+                writable = last && !hasFooter(ch);
+            }
+            if (writable) {
+                // this one's still good for writing.
+                open(s);
+                activeRecords = records;
+            } else {
+                sealed.add(s);
+            }
+        }
+
+        if (activeChannel == null) {
+            open(found.isEmpty() ? 0 : found.last() + 1);
+        }
+
+        long now = System.currentTimeMillis() / 1000;
+        entries.values().removeIf(e -> e.expired(now) && !e.locked);
+        for (Entry e : entries.values()) {
+            if (e.payloadSegment >= 0 && !found.contains(e.payloadSegment)) {
+                e.payloadSegment = -1;
+            }
+        }
+
+        // nobody else writes here, so whatever was locked belonged to queries that went down with us.
+        List<String> orphans = new ArrayList<>();
+        entries.forEach((h, e) -> {
+            if (e.locked) {
+                orphans.add(h);
+            }
+        });
+        for (String h : orphans) {
+            entries.remove(h);
+            try {
+                append(DELETE, h, 0, null);
+            } catch (CacheException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        log.info(String.format("Segment cache: %d entries in %d segments.", entries.size(), sealed.size() + 1));
+    }
+
+    private void replay(FileChannel ch, int s, Record r) throws IOException {
+        Entry e = entries.get(r.hash);
+        switch (r.type) {
+            case ANSWER:
+                if (e == null) {
+                    e = new Entry();
+                    entries.put(r.hash, e);
+                }
+                e.answerSegment = s;
+                e.answerOffset = r.body();
+                e.answerLength = (int) r.length;
+                e.answerCrc = r.crc;
+                e.expire = r.value;
+                break;
+            case PAYLOAD_REF:
+                if (e != null) {
+                    ByteBuffer length = ByteBuffer.allocate(8);
+                    readFully(ch, length, r.body());
+                    e.payloadSegment = (int) r.value;
+                    e.payloadOffset = HEADER_SIZE;
+                    e.payloadLength = length.getLong(0);
+                }
+                break;
+            case EXPIRE:
+                if (e != null) {
+                    e.expire = r.value;
+                }
+                break;
+            case LOCK:
+            case UNLOCK:
+                if (e != null) {
+                    e.locked = r.type == LOCK;
+                }
+                break;
+            case DELETE:
+                entries.remove(r.hash);
+                break;
+        }
+    }
+
+    private static boolean hasFooter(FileChannel ch) throws IOException {
+        if (ch.size() < TRAILER_SIZE + 4) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(ch, trailer, ch.size() - TRAILER_SIZE);
+        return trailer.getInt(8) == FOOTER_MAGIC;
+    }
+
+    // the records in a segment, from its footer if it has one or by going through it otherwise. when `truncate` is
+    // set, a torn record at the end (and whatever follows it) is cut off.
+    private static List<Record> records(FileChannel ch, int s, boolean truncate) throws IOException {
+        List<Record> records = new ArrayList<>();
+
+        if (hasFooter(ch)) {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE + 4);
+            readFully(ch, trailer, ch.size() - TRAILER_SIZE - 4);
+            int count = trailer.getInt(0);
+            long start = trailer.getLong(4);
+
+            ByteBuffer footer = ByteBuffer.allocate(count * DESCRIPTOR_SIZE);
+            readFully(ch, footer, start);
+            byte[] h = new byte[32];
+            for (int i = 0; i < count; i++) {
+                byte type = footer.get();
+                footer.get(h);
+                records.add(new Record(type, hex(h), footer.getLong(), footer.getLong(), footer.getLong(),
+                        footer.getInt()));
+            }
+            return records;
+        }
+
+        long size = ch.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        byte[] h = new byte[32];
+        CRC32 crc = new CRC32();
+
+        while (position < size) {
+            header.clear();
+            if (position + HEADER_SIZE > size || !readFully(ch, header, position)) {
+                break;
+            }
+            crc.reset();
+            crc.update(header.array(), 0, HEADER_SIZE - 4);
+            if (header.getInt(0) != RECORD_MAGIC || header.getInt(HEADER_SIZE - 4) != (int) crc.getValue()) {
+                break;
+            }
+            byte type = header.get(4);
+            long length = header.getLong(5);
+            long value = header.getLong(13);
+            header.position(21);
+            header.get(h);
+            int bodyCrc = header.getInt(53);
+
+            if (position + HEADER_SIZE + length > size) {
+                break;
+            }
+            // the header's fine, so we know where the next one starts even if this one never got its body.
+            if (crc(ch, position + HEADER_SIZE, length) == bodyCrc) {
+                records.add(new Record(type, hex(h), position, length, value, bodyCrc));
+            } else {
+                log.warn(String.format("Skipping a record with a broken body in segment %d at %d.", s, position));
+            }
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            log.warn(String.format("Segment %d is torn at %d (of %d bytes).", s, position, size));
+            if (truncate) {
+                ch.truncate(position);
+            }
+        }
+
+        return records;
+    }
+
+    private static int crc(FileChannel ch, long position, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, 1 << 16));
+        long done = 0;
+        while (done < length) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), length - done));
+            int n = ch.read(buf, position + done);
+            if (n < 0) {
+                break;
+            }
+            buf.flip();
+            crc.update(buf);
+            done += n;
+        }
+        return (int) crc.getValue();
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) {
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+
+    private static byte[] unhex(String h) {
+        byte[] b = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            b[i] = (byte) Integer.parseInt(h.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+
+    private static String hex(byte[] b) {
+        char[] c = new char[2 * b.length];
+        for (int i = 0; i < b.length; i++) {
+            c[2 * i] = HEX[(b[i] >> 4) & 0xf];
+            c[2 * i + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(c);
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+    A read-only view of `length` bytes of a file starting at `offset`, as a FileChannel of its own: whoever reads it
+    sees a file that starts and ends where the data set does, and `transferTo` still goes straight to the underlying
+    file (so data sets in segments are sent without copying them around, like the ones in their own files).
+ */
+class SegmentSlice extends FileChannel {
+    private final FileChannel ch;
+    private final long offset;
+    private final long length;
+
+    private long position = 0;
+
+    SegmentSlice(FileChannel ch, long offset, long length) {
+        this.ch = ch;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = read(dst, position);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int off, int len) throws IOException {
+        long total = 0;
+        for (int i = off; i < off + len; i++) {
+            int n = read(dsts[i]);
+            if (n < 0) {
+                return total > 0 ? total : -1;
+            }
+            total += n;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), length - position);
+        ByteBuffer d = dst.duplicate();
+        d.limit(d.position() + n);
+        int r = ch.read(d, offset + position);
+        if (r > 0) {
+            dst.position(dst.position() + r);
+        }
+        return r;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= length) {
+            return 0;
+        }
+        return ch.transferTo(offset + position, Math.min(count, length - position), target);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        if (mode != MapMode.READ_ONLY) {
+            throw new NonWritableChannelException();
+        }
+        return ch.map(mode, offset + position, Math.min(size, length - position));
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Segment slices can't be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Segment slices can't be locked");
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        ch.close();
+    }
+}
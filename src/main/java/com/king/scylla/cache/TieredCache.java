@@ -0,0 +1,410 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    An in-process tier in front of another cache, for the handful of data sets everybody keeps asking for. Finished
+    answers (and their data sets) are copied into direct buffers, so they don't weigh on the GC no matter how big they
+    are, and as long as they're there their data sets are never read from the disk or Redis again.
+
+    There's room for `maxBytes` and what gets in is decided TinyLFU-style: a key only gets in once it's been asked for
+    a few times, and only if it's asked for more often than the least recently used entries it would push out.
+
+    The lower tier has the last word: whether something exists (or is locked) and what its answer is are always asked
+    there, and a copy whose answer isn't the one there anymore is thrown away. That's how entries that went away (or
+    were run again) behind our back are noticed: another Scylla on the same Redis, Redis' TTLs. Copies also go when
+    they expire, when anything is written through this cache, and when the lower tier says it dropped the entry on its
+    own (the filesystem cache's sweeper and evictions).
+ */
+public class TieredCache extends Cache {
+    private static final Logger log = LogManager.getLogger(TieredCache.class.getName());
+
+    // times a key must have been asked for before it's worth keeping around.
+    private static final int ADMISSION_THRESHOLD = 2;
+
+    private static class Entry {
+        // the answer followed by the data set.
+        private final ByteBuffer buf;
+        private final int headerLength;
+        // the hash of the key (it's what the lower tier says when it drops something) and when it expires there.
+        private final String hash;
+        private final long expire;
+
+        Entry(ByteBuffer buf, int headerLength, String hash, long expire) {
+            this.buf = buf;
+            this.headerLength = headerLength;
+            this.hash = hash;
+            this.expire = expire;
+        }
+
+        boolean expired(long now) {
+            return expire != 0 && expire <= now;
+        }
+
+        JSONObject header() {
+            return new JSONObject(text());
+        }
+
+        // whether `jo` is the answer that was copied. it's compared as text: it was copied as `jo.toString()`, and the
+        // same answer read again prints the same way.
+        boolean answers(JSONObject jo) {
+            return text().equals(jo.toString());
+        }
+
+        private String text() {
+            ByteBuffer h = buf.duplicate();
+            h.limit(headerLength);
+            return StandardCharsets.UTF_8.decode(h).toString();
+        }
+
+        boolean hasPayload() {
+            return buf.capacity() > headerLength;
+        }
+
+        ByteBuffer payload() {
+            ByteBuffer p = buf.duplicate();
+            p.position(headerLength);
+            return p.slice();
+        }
+
+        int size() {
+            return buf.capacity();
+        }
+    }
+
+    private final Cache lower;
+    private final long maxBytes;
+
+    private final FrequencySketch sketch = new FrequencySketch(1 << 12);
+
+    // in access order, so the first one is the least recently used.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    // bumped every time something gets thrown away, so that whatever was being loaded meanwhile doesn't get in.
+    private long invalidations = 0;
+
+    public TieredCache(Cache lower, long maxBytes) {
+        this.lower = lower;
+        this.maxBytes = maxBytes;
+        lower.onDrop(this::forget);
+    }
+
+    public boolean exists(String key) throws CacheException {
+        return lower.exists(key);
+    }
+
+    public void delete(String key) throws CacheException {
+        invalidate(key);
+        lower.delete(key);
+    }
+
+    public void expire(String key, int offset) throws CacheException {
+        invalidate(key);
+        lower.expire(key, offset);
+    }
+
+    // the answer's small and always read from the lower tier: it's how a copy that isn't the entry there anymore is
+    // found out. what a copy saves is reading the data set.
+    public JSONObject get(String key) throws CacheException {
+        sketch.increment(key);
+
+        long gen = generation();
+        JSONObject jo = lower.get(key);
+        Entry e = lookup(key);
+        if (e != null) {
+            if (jo == null || !e.answers(jo)) {
+                invalidate(key);
+            }
+        } else if (jo != null) {
+            admit(key, jo, gen);
+        }
+        return jo;
+    }
+
+    @Override
+    public long expiration(String key) throws CacheException {
+        return lower.expiration(key);
+    }
+
+    // the answers are small (data sets are apart), so they're all asked to the lower tier along with the rest: one trip
+    // there beats two. they count as asked for all the same.
+    @Override
+    public List<Peek> peek(List<String> keys, boolean answers) throws CacheException {
+        long gen = generation();
+        List<Peek> peeks = lower.peek(keys, answers);
+        for (int i = 0; i < peeks.size(); i++) {
+            Peek p = peeks.get(i);
+            if (p.getAnswer() != null) {
+                sketch.increment(keys.get(i));
+            }
+            Entry e = lookup(keys.get(i));
+            if (e != null && !current(e, p)) {
+                invalidate(keys.get(i));
+            } else if (e == null && p.getAnswer() != null) {
+                admit(keys.get(i), p.getAnswer(), gen);
+            }
+        }
+        return peeks;
+    }
+
+    // up to the lower tier (a copy doesn't know if it's still there), the copy's only good for sending the data set
+    // (`payloadChannel`) afterwards. nothing gets copied in from here: that means reading its data set, which is no job
+    // for the event loop.
+    @Override
+    public Peek quickPeek(String key, boolean answer) throws CacheException {
+        Peek p = lower.quickPeek(key, answer);
+        if (p == null) {
+            return null;
+        }
+
+        Entry e = lookup(key);
+        if (e != null && !current(e, p)) {
+            invalidate(key);
+        }
+        if (p.getAnswer() != null) {
+            sketch.increment(key);
+        }
+        return p;
+    }
+
+    // whether what the lower tier says about the entry is what was copied: if it's not there, it's locked or it has
+    // another answer, it expired, was evicted or is being (or was) run again.
+    private static boolean current(Entry e, Peek p) {
+        return p.exists() && !p.locked() && (p.getAnswer() == null || e.answers(p.getAnswer()));
+    }
+
+    public void set(String key, String val) throws CacheException {
+        invalidate(key);
+        lower.set(key, val);
+    }
+
+    @Override
+    public void set(String key, String val, int offset) throws CacheException {
+        invalidate(key);
+        lower.set(key, val, offset);
+    }
+
+    public boolean locked(String key) throws CacheException {
+        return lower.locked(key);
+    }
+
+    public void lock(String key) throws CacheException {
+        invalidate(key);
+        lower.lock(key);
+    }
+
+    @Override
+    public void lock(String key, int lease) throws CacheException {
+        invalidate(key);
+        lower.lock(key, lease);
+    }
+
+    public void unlock(String key) throws CacheException {
+        lower.unlock(key);
+    }
+
+    @Override
+    public void start(String key, String val, int lease) throws CacheException {
+        invalidate(key);
+        lower.start(key, val, lease);
+    }
+
+    @Override
+    public Lease tryStart(String key, String val, int lease) throws CacheException {
+        invalidate(key);
+        return lower.tryStart(key, val, lease);
+    }
+
+    @Override
+    public Lease recover(String key, String owner, int ttl) throws CacheException {
+        return lower.recover(key, owner, ttl);
+    }
+
+    @Override
+    public boolean renew(Lease l) throws CacheException {
+        return lower.renew(l);
+    }
+
+    @Override
+    public OutputStream payloadSink(Lease l) throws CacheException {
+        invalidate(l.getKey());
+        return lower.payloadSink(l);
+    }
+
+    @Override
+    public boolean finish(Lease l, String val, int offset) throws CacheException {
+        invalidate(l.getKey());
+        return lower.finish(l, val, offset);
+    }
+
+    @Override
+    public boolean release(Lease l) throws CacheException {
+        invalidate(l.getKey());
+        return lower.release(l);
+    }
+
+    @Override
+    public void finish(String key, String val, int offset) throws CacheException {
+        invalidate(key);
+        lower.finish(key, val, offset);
+    }
+
+    public OutputStream payloadSink(String key) throws CacheException {
+        invalidate(key);
+        return lower.payloadSink(key);
+    }
+
+    public InputStream payloadSource(String key) throws CacheException {
+        Entry e = lookup(key);
+        if (e != null && e.hasPayload()) {
+            return Channels.newInputStream(new ByteBufferChannel(e.payload()));
+        }
+        return lower.payloadSource(key);
+    }
+
+    @Override
+    public ReadableByteChannel payloadChannel(String key) throws CacheException {
+        Entry e = lookup(key);
+        if (e != null && e.hasPayload()) {
+            return new ByteBufferChannel(e.payload());
+        }
+        return lower.payloadChannel(key);
+    }
+
+    // expired copies go as soon as they're found.
+    private synchronized Entry lookup(String key) {
+        Entry e = entries.get(key);
+        if (e != null && e.expired(System.currentTimeMillis() / 1000)) {
+            invalidate(key);
+            return null;
+        }
+        return e;
+    }
+
+    private synchronized long generation() {
+        return invalidations;
+    }
+
+    private synchronized void invalidate(String key) {
+        invalidations++;
+        Entry e = entries.remove(key);
+        if (e != null) {
+            bytes -= e.size();
+        }
+    }
+
+    // the lower tier dropped the entry with hash `h` on its own. there's only a handful of copies, looking through them
+    // all beats keeping another map.
+    private void forget(String h) {
+        synchronized (this) {
+            invalidations++;
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.hash.equals(h)) {
+                    bytes -= e.size();
+                    it.remove();
+                }
+            }
+        }
+        dropped(h);
+    }
+
+    // only finished answers get in. the data set is copied outside the lock, it can take a while.
+    private void admit(String key, JSONObject jo, long gen) throws CacheException {
+        if (!"done".equals(jo.optString("status"))) {
+            return;
+        }
+
+        byte[] header = jo.toString().getBytes(StandardCharsets.UTF_8);
+        long payloadSize = jo.has("size") && !jo.has("res") ? jo.getLong("size") : 0;
+        long size = header.length + payloadSize;
+
+        String h = hash(key);
+        long expire = lower.expiration(key);
+        if (expire != 0 && expire <= System.currentTimeMillis() / 1000) {
+            return;
+        }
+
+        int freq = sketch.frequency(key);
+        if (size > maxBytes || size > Integer.MAX_VALUE || freq < ADMISSION_THRESHOLD || victims(size, freq) == null) {
+            return;
+        }
+
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.allocateDirect((int) size);
+        } catch (OutOfMemoryError e) {
+            log.warn("Out of direct memory, not keeping a copy of " + key + ". Check -XX:MaxDirectMemorySize.");
+            return;
+        }
+        buf.put(header);
+
+        if (payloadSize > 0) {
+            try (ReadableByteChannel ch = lower.payloadChannel(key)) {
+                if (ch == null) {
+                    return;
+                }
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf) < 0) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                throw new CacheException(e.getMessage(), e);
+            }
+        }
+        buf.flip();
+
+        synchronized (this) {
+            List<String> victims = victims(size, freq);
+            if (gen != invalidations || victims == null || entries.containsKey(key)) {
+                return;
+            }
+            for (String v : victims) {
+                bytes -= entries.remove(v).size();
+            }
+            entries.put(key, new Entry(buf, header.length, h, expire));
+            bytes += size;
+        }
+    }
+
+    // the entries that need to go to make room for `size` bytes, or null if any of them is asked for at least as
+    // often as the newcomer.
+    private synchronized List<String> victims(long size, int freq) {
+        List<String> victims = new ArrayList<>();
+        long free = maxBytes - bytes;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (free < size && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (sketch.frequency(e.getKey()) >= freq) {
+                return null;
+            }
+            victims.add(e.getKey());
+            free += e.getValue().size();
+        }
+
+        return free >= size ? victims : null;
+    }
+}
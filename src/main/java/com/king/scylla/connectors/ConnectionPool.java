@@ -0,0 +1,444 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.connectors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/*
+    JDBC connections kept open between queries, because opening one (Kerberos, HiveServer2 sessions...) can take longer
+    than the query itself. Connections are shared by questions with the same JDBC string, user, password and `hparams`:
+    those are run once, when the connection is opened, so a connection only ever goes to identical sessions. A query
+    that changes the session itself (`use`, `set`, temporary functions and tables...) would break that: a connection
+    that's run one (or had its catalog, schema... changed through JDBC) is closed once it's done instead of going back
+    to the pool.
+
+    At most `maxPerKey` connections per key and `maxTotal` overall are kept by the pool (when it's full the least
+    recently used idle one makes room). Past that, connections are opened as usual and closed once they're done.
+    Connections idle for `idleTimeout` seconds are closed, and the ones that haven't been used for a while are checked
+    before being handed out.
+
+    What the connectors get is a wrapper: closing it gives the connection back.
+
+    The pool's books are kept under a lock and not a monitor, as connections are borrowed and given back from virtual
+    threads (with `--virtual-threads`), and nothing that talks to a server (opening, checking, closing) is done holding
+    it.
+ */
+public class ConnectionPool {
+    private static final Logger log = LogManager.getLogger(ConnectionPool.class.getName());
+
+    // milliseconds a connection can sit idle before it's checked again, and seconds the check can take.
+    private static final long VALIDATE_AFTER = 30000;
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    // statements that leave something behind in the session, and the comments that can come before them. it doesn't
+    // have to be exact: a false positive only costs a new connection.
+    private static final Pattern SESSION = Pattern.compile("^(use|set|reset|unset|add|delete\\s+(jar|file)|" +
+            "alter\\s+session|(open|close)\\s+schema|(create|drop)\\s+(temp|temporary|volatile))\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern COMMENTS = Pattern.compile("^(\\s+|--[^\\n]*(\\n|$)|/\\*.*?\\*/)*", Pattern.DOTALL);
+    // connection methods that change the session.
+    private static final Set<String> SETTERS = new HashSet<>(Arrays.asList("setCatalog", "setSchema", "setReadOnly",
+            "setAutoCommit", "setTransactionIsolation", "setHoldability", "setTypeMap", "setClientInfo"));
+
+    private static class Key {
+        private final String jdbc;
+        private final String user;
+        private final String password;
+        private final List<String> hparams;
+
+        Key(String jdbc, String user, String password, List<String> hparams) {
+            this.jdbc = jdbc;
+            this.user = user;
+            // no need to keep the password itself around.
+            this.password = password != null ? DigestUtils.sha256Hex(password) : null;
+            this.hparams = hparams != null ? new ArrayList<>(hparams) : Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return Objects.equals(jdbc, k.jdbc) && Objects.equals(user, k.user) &&
+                    Objects.equals(password, k.password) && hparams.equals(k.hparams);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(jdbc, user, password, hparams);
+        }
+    }
+
+    private static class Pooled {
+        private final Key key;
+        private final Connection conn;
+        private long lastUsed = System.currentTimeMillis();
+        // set when the driver says the connection itself failed.
+        private volatile boolean broken = false;
+        // set when it's run something that changed the session: it's not the session its key says anymore.
+        private volatile boolean dirty = false;
+
+        Pooled(Key key, Connection conn) {
+            this.key = key;
+            this.conn = conn;
+        }
+    }
+
+    private final int maxPerKey;
+    private final int maxTotal;
+    private final long idleTimeout;
+
+    // most recently used first.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Key, Deque<Pooled>> idle = new HashMap<>();
+    private final Map<Key, Integer> open = new HashMap<>();
+    private int openTotal = 0;
+
+    private ScheduledExecutorService reaper;
+
+    public ConnectionPool(int maxPerKey, int maxTotal, int idleTimeout) {
+        this.maxPerKey = maxPerKey;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = idleTimeout * 1000L;
+
+        if (maxTotal > 0 && idleTimeout > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "Connection reaper");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = Math.min(idleTimeout, 60);
+            reaper.scheduleWithFixedDelay(this::reap, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public Connection borrow(String driver, String jdbc, String user, String password, List<String> hparams)
+            throws SQLException, ClassNotFoundException {
+        Key key = new Key(jdbc, user, password, hparams);
+
+        Pooled p;
+        while ((p = take(key)) != null) {
+            if (valid(p)) {
+                p.lastUsed = System.currentTimeMillis();
+                return wrap(p);
+            }
+            discard(p);
+        }
+
+        List<Pooled> victims = new ArrayList<>();
+        boolean pooled = reserve(key, victims);
+        victims.forEach(ConnectionPool::closeQuietly);
+
+        Connection conn;
+        try {
+            conn = connect(driver, jdbc, user, password, hparams);
+        } catch (SQLException | ClassNotFoundException | RuntimeException e) {
+            if (pooled) {
+                forget(key);
+            }
+            throw e;
+        }
+        return pooled ? wrap(new Pooled(key, conn)) : conn;
+    }
+
+    // idle connections, all of them (as in, for all keys).
+    public int idle() {
+        lock.lock();
+        try {
+            return idle.values().stream().mapToInt(Deque::size).sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        List<Pooled> all = new ArrayList<>();
+        lock.lock();
+        try {
+            idle.values().forEach(all::addAll);
+            idle.clear();
+        } finally {
+            lock.unlock();
+        }
+        all.forEach(this::discard);
+    }
+
+    private static Connection connect(String driver, String jdbc, String user, String password, List<String> hparams)
+            throws SQLException, ClassNotFoundException {
+        Class.forName(driver);
+
+        Connection conn = DriverManager.getConnection(jdbc, user, password);
+        if (hparams != null) {
+            try (Statement stmt = conn.createStatement()) {
+                for (String param : hparams) {
+                    stmt.execute(param);
+                }
+            } catch (SQLException | RuntimeException e) {
+                conn.close();
+                throw e;
+            }
+        }
+        return conn;
+    }
+
+    private Pooled take(Key key) {
+        lock.lock();
+        try {
+            Deque<Pooled> d = idle.get(key);
+            return d != null ? d.pollFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // makes room for a new connection for `key`: false if there's no room and it shouldn't be pooled. the idle
+    // connections that need to go to make room are added to `victims`.
+    private boolean reserve(Key key, List<Pooled> victims) {
+        lock.lock();
+        try {
+            int n = open.getOrDefault(key, 0);
+            if (n >= maxPerKey) {
+                return false;
+            }
+            if (openTotal >= maxTotal) {
+                Pooled lru = leastRecentlyUsed();
+                if (lru == null) {
+                    return false;
+                }
+                idle.get(lru.key).remove(lru);
+                forgetLocked(lru.key);
+                victims.add(lru);
+            }
+            open.put(key, n + 1);
+            openTotal++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Pooled leastRecentlyUsed() {
+        Pooled lru = null;
+        for (Deque<Pooled> d : idle.values()) {
+            Pooled p = d.peekLast();
+            if (p != null && (lru == null || p.lastUsed < lru.lastUsed)) {
+                lru = p;
+            }
+        }
+        return lru;
+    }
+
+    private void release(Pooled p) {
+        boolean healthy;
+        try {
+            healthy = !p.broken && !p.dirty && !p.conn.isClosed();
+        } catch (SQLException e) {
+            healthy = false;
+        }
+
+        if (healthy) {
+            lock.lock();
+            try {
+                p.lastUsed = System.currentTimeMillis();
+                idle.computeIfAbsent(p.key, k -> new ArrayDeque<>()).addFirst(p);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            discard(p);
+        }
+    }
+
+    private void discard(Pooled p) {
+        forget(p.key);
+        closeQuietly(p);
+    }
+
+    private void forget(Key key) {
+        lock.lock();
+        try {
+            forgetLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forgetLocked(Key key) {
+        int n = open.getOrDefault(key, 0) - 1;
+        if (n > 0) {
+            open.put(key, n);
+        } else {
+            open.remove(key);
+        }
+        openTotal--;
+    }
+
+    private boolean valid(Pooled p) {
+        try {
+            if (p.conn.isClosed()) {
+                return false;
+            } else if (System.currentTimeMillis() - p.lastUsed < VALIDATE_AFTER) {
+                return true;
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+
+        try {
+            return p.conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException | AbstractMethodError e) {
+            // some drivers (older Hive ones) don't know how, so we ask something trivial instead.
+            try (Statement stmt = p.conn.createStatement()) {
+                stmt.execute("SELECT 1");
+                return true;
+            } catch (SQLException d) {
+                return false;
+            }
+        }
+    }
+
+    private void reap() {
+        long now = System.currentTimeMillis();
+        List<Pooled> expired = new ArrayList<>();
+
+        lock.lock();
+        try {
+            for (Deque<Pooled> d : idle.values()) {
+                Iterator<Pooled> it = d.descendingIterator();
+                while (it.hasNext()) {
+                    Pooled p = it.next();
+                    if (now - p.lastUsed < idleTimeout) {
+                        break;
+                    }
+                    it.remove();
+                    expired.add(p);
+                }
+            }
+            idle.values().removeIf(Deque::isEmpty);
+        } finally {
+            lock.unlock();
+        }
+
+        expired.forEach(this::discard);
+        if (!expired.isEmpty()) {
+            log.debug(String.format("Closed %d idle connections.", expired.size()));
+        }
+    }
+
+    private Connection wrap(Pooled p) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new Wrapper(p));
+    }
+
+    // what closing `conn` (one of ours) does: it's closed for good instead of going back to the pool. for queries that
+    // change the session, as statements only get their SQL once they're run (and they can't be wrapped themselves,
+    // some connectors need the driver's own).
+    public static void retire(Connection conn) {
+        if (Proxy.isProxyClass(conn.getClass()) && Proxy.getInvocationHandler(conn) instanceof Wrapper) {
+            ((Wrapper) Proxy.getInvocationHandler(conn)).p.dirty = true;
+        }
+    }
+
+    private class Wrapper implements InvocationHandler {
+        private final Pooled p;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Wrapper(Pooled p) {
+            this.p = p;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        release(p);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() || p.conn.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + p.conn;
+            }
+
+            if (closed.get()) {
+                throw new SQLException("This connection has been given back to the pool");
+            }
+            if (SETTERS.contains(method.getName()) || method.getName().startsWith("prepare") && args != null &&
+                    args[0] instanceof String && changesSession((String) args[0])) {
+                p.dirty = true;
+            }
+            try {
+                return method.invoke(p.conn, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // SQL state class 08: connection exception.
+                if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null &&
+                        ((SQLException) cause).getSQLState().startsWith("08")) {
+                    p.broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+
+    // whether any of the statements in `sql` changes the session.
+    public static boolean changesSession(String sql) {
+        if (sql == null) {
+            return false;
+        }
+        for (String statement : sql.split(";")) {
+            if (SESSION.matcher(COMMENTS.matcher(statement).replaceFirst("")).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Pooled p) {
+        try {
+            p.conn.close();
+        } catch (SQLException e) {
+            log.debug("Error closing a connection: " + e.getMessage());
+        }
+    }
+}
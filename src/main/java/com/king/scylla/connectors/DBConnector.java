@@ -11,128 +11,308 @@ import com.king.scylla.meta.ScyllaException;
 import org.json.JSONException;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.king.scylla.VerificationAnswer.emptyVerificationAnswer;
 import static com.king.scylla.meta.Scope.*;
 
-public class DBConnector {
+public class DBConnector implements AutoCloseable {
+    private static final Pattern HIVE_DATA_SIZE = Pattern.compile("Data size: (\\d+)");
+    private static final Pattern IMPALA_SCAN_SIZE = Pattern.compile("\\bsize=(\\d+(?:\\.\\d+)?)([KMGTP]?B)\\b",
+            Pattern.CASE_INSENSITIVE);
+
     final QConfig qc;
     private final String connectorClass;
     private final String connectionString;
 
+    // with `verify_on_query_connection` the connection used to verify the query (and the prepared statement, if that's
+    // how it was verified) is kept to run it: one connection and one compilation less. they can be let go of (`close`)
+    // from another thread while the query's waiting for its turn, hence the lock.
+    private Connection held;
+    private PreparedStatement prepared;
+
+    // cancels queries that run past their deadline, on drivers that don't do it themselves.
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Query watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // the statement the query is running on, while it runs, and why it was stopped (if it was): a `cancel` that
+    // comes before the statement does stops it as soon as it's there.
+    private Statement running;
+    private String stopped;
+    private ScheduledFuture<?> deadline;
+
+    // a connection from the pool, with the `hparams` of the question applied already. closing it gives it back.
     Connection getConnection() throws SQLException, ClassNotFoundException {
-        Class.forName(connectorClass);
+        return qc.getConf().connectionPool().borrow(connectorClass, connectionString, qc.getUser(), qc.getPassword(),
+                qc.getHParams());
+    }
 
-        return DriverManager.getConnection(connectionString, qc.getUser(), qc.getPassword());
+    // the connection kept from the verification if there's one, otherwise a new one. if the query changes the
+    // session, nobody else gets the connection after it.
+    Connection takeConnection() throws SQLException, ClassNotFoundException {
+        Connection conn;
+        synchronized (this) {
+            conn = held;
+            held = null;
+        }
+        return ready(conn);
     }
 
-    private VerificationAnswer verifyQueryWithExplain() throws SQLException, ScyllaException {
+    private Connection ready(Connection conn) throws SQLException, ClassNotFoundException {
+        if (conn == null) {
+            conn = getConnection();
+        }
+        if (ConnectionPool.changesSession(qc.getQuery())) {
+            ConnectionPool.retire(conn);
+        }
+        return conn;
+    }
+
+    private boolean holding() {
+        return qc.getConf().isVerifyOnQueryConnection();
+    }
+
+    private VerificationAnswer verifyQueryWithExplain(String vkey) throws SQLException, ScyllaException {
+        // Use EXPLAIN instead of preparing the statement.
+        String equery = "explain " + qc.getQuery();
+        Connection conn;
         try {
-            // Use EXPLAIN instead of preparing the statement.
-            String equery = "explain " + qc.getQuery();
-            Connection conn = getConnection();
-            PreparedStatement stmt = conn.prepareStatement(equery);
-            VerificationAnswer answer = new VerificationAnswer();
-            try {
-                boolean nobg = false;
+            conn = getConnection();
+        } catch (ClassNotFoundException e) {
+            throw new ScyllaException(qc.getScope().classNotFound());
+        }
 
-                if (qc.getHParams() != null) {
-                    for (String param : qc.getHParams()) {
-                        stmt.execute(param);
-                    }
-                }
+        VerificationAnswer answer = new VerificationAnswer();
+        boolean ok = false;
+        try (PreparedStatement stmt = conn.prepareStatement(equery)) {
+            boolean nobg = false;
+            long estimate = -1;
 
-                ResultSet rs = stmt.executeQuery();
-                while (rs.next()) {
-                    String exp = rs.getString(1);
-                    if (exp.contains("Describe Table Operator") || exp.contains("Show Table Operator")) {
-                        nobg = true;
-                        break;
-                    }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String exp = rs.getString(1);
+                if (exp == null) {
+                    continue;
                 }
-                answer.ok(true);
-                if (nobg) {
-                    answer.nobg(true);
+                if (exp.contains("Describe Table Operator") || exp.contains("Show Table Operator")) {
+                    nobg = true;
+                    break;
                 }
-            } catch (SQLException e) {
-                answer.ok(false).err(e.getMessage());
+                estimate = Math.max(estimate, estimate(exp));
+            }
+            answer.ok(true);
+            if (nobg) {
+                answer.nobg(true);
+            } else if (estimate >= 0) {
+                answer.estimate(estimate);
+            }
+            qc.getConf().verificationCache().verified(vkey, nobg, nobg ? -1 : estimate);
+            ok = true;
+        } catch (SQLException e) {
+            answer.ok(false).err(e.getMessage());
+        } finally {
+            if (ok && holding()) {
+                synchronized (this) {
+                    held = conn;
+                }
+            } else {
+                conn.close();
             }
-            conn.close();
-            return answer;
-        } catch (ClassNotFoundException e) {
-            throw new ScyllaException(qc.getScope().classNotFound());
         }
+        return answer;
     }
 
-    private VerificationAnswer verifyQueryWithPreparedStatement() throws SQLException, ScyllaException {
-        try {
-            Connection conn = getConnection();
+    // what a line of a plan says about how much is read: Hive's "Statistics: Num rows: ... Data size: <bytes>" and
+    // Impala's scans, "partitions=1/1 files=2 size=12.34MB". -1 if it says nothing. the biggest one in the plan is a
+    // good enough guess of how heavy the query is.
+    static long estimate(String line) {
+        long estimate = -1;
+        Matcher m = HIVE_DATA_SIZE.matcher(line);
+        while (m.find()) {
+            estimate = Math.max(estimate, Long.parseLong(m.group(1)));
+        }
+        m = IMPALA_SCAN_SIZE.matcher(line);
+        while (m.find()) {
+            double n = Double.parseDouble(m.group(1));
+            String unit = m.group(2).toUpperCase();
+            int shift = unit.startsWith("K") ? 10 : unit.startsWith("M") ? 20 : unit.startsWith("G") ? 30 :
+                    unit.startsWith("T") ? 40 : unit.startsWith("P") ? 50 : 0;
+            estimate = Math.max(estimate, (long) (n * (1L << shift)));
+        }
+        return estimate;
+    }
 
-            VerificationAnswer answer = emptyVerificationAnswer();
-            try {
+    private VerificationAnswer verifyQueryWithPreparedStatement(String vkey) throws SQLException, ScyllaException {
+        Connection conn;
+        try {
+            conn = getConnection();
+        } catch (ClassNotFoundException e) {
+            throw new ScyllaException(qc.getScope().classNotFound());
+        }
 
-                Statement stmt = conn.createStatement();
-                if (qc.getHParams() != null) {
-                    for (String param : qc.getHParams()) {
-                        stmt.execute(param);
-                    }
+        VerificationAnswer answer = emptyVerificationAnswer();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = conn.prepareStatement(qc.getQuery());
+            answer.ok(true);
+            qc.getConf().verificationCache().verified(vkey, false);
+        } catch (SQLException e) {
+            answer.ok(false).err(e.getMessage());
+        } finally {
+            if (pstmt != null && holding()) {
+                synchronized (this) {
+                    held = conn;
+                    prepared = pstmt;
                 }
-
-                PreparedStatement pstmt = conn.prepareStatement(qc.getQuery());
-                pstmt.close();
-                answer.ok(true);
-            } catch (SQLException e) {
-                answer.ok(false).err(e.getMessage());
+            } else {
+                if (pstmt != null) {
+                    pstmt.close();
+                }
+                conn.close();
             }
-            conn.close();
-            return answer;
-        } catch (ClassNotFoundException e) {
-            throw new ScyllaException(qc.getScope().classNotFound());
         }
+        return answer;
     }
 
     public VerificationAnswer verifyQuery() throws SQLException, ScyllaException {
+        String vkey = VerificationCache.key(qc);
+        VerificationAnswer verdict = qc.getConf().verificationCache().verdict(vkey);
+        if (verdict != null) {
+            return verdict;
+        }
+
         if (qc.getScope() == HIVE || qc.getScope() == IMPALA) {
-            return verifyQueryWithExplain();
+            return verifyQueryWithExplain(vkey);
         }
         else {
-            return verifyQueryWithPreparedStatement();
+            return verifyQueryWithPreparedStatement(vkey);
         }
     }
 
-        private Answer getAnswerFromStatement(Statement stmt, boolean update)
-            throws SQLException, IOException, ScyllaException {
-        if (update) {
-            int n = stmt.executeUpdate(qc.getQuery());
-            return Answer.answerForUpdateStatement(n);
-        } else {
-            ResultSet rs = stmt.executeQuery(qc.getQuery());
-            return Answer.answerFromResultSet(qc, rs);
-        }
+    // the query failed, whatever we thought of it doesn't hold anymore.
+    public void forgetVerification() {
+        qc.getConf().verificationCache().invalidate(VerificationCache.key(qc));
     }
 
-    public Answer query(boolean update) throws SQLException, JSONException, IOException, ScyllaException {
-        try {
-            Connection conn = getConnection();
-            assert !conn.isClosed();
+    // the query is about to run on `stmt`: from now on it can be cancelled, and it runs for `timeout` seconds at most.
+    synchronized void watch(Statement stmt) throws SQLException {
+        if (stopped != null) {
+            throw new SQLException(stopped);
+        }
+        running = stmt;
+
+        int timeout = qc.getTimeout();
+        if (timeout > 0) {
+            try {
+                stmt.setQueryTimeout(timeout);
+            } catch (SQLException e) {
+                // not every driver can (Hive's can't, for one), the watchdog does it then.
+            }
+            // reading the data set counts too, and the driver's timeout doesn't always cover it.
+            deadline = watchdog.schedule(() -> stop(String.format("Your query ran for longer than its %d seconds.",
+                    timeout)), timeout, TimeUnit.SECONDS);
+        }
+    }
 
-            Statement stmt = conn.createStatement();
+    synchronized void unwatch() {
+        running = null;
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
 
-            if (qc.getHParams() != null) {
-                for (String param : qc.getHParams()) {
-                    stmt.execute(param);
-                }
+    // stops the query (or makes sure it doesn't start), saying why.
+    public void stop(String why) {
+        Statement stmt;
+        synchronized (this) {
+            if (stopped != null) {
+                return;
+            }
+            stopped = why;
+            stmt = running;
+        }
+        if (stmt != null) {
+            try {
+                stmt.cancel();
+            } catch (SQLException e) {
+                // it's done (or the connection's gone), either way it's not running anymore.
             }
+        }
+    }
 
-            Answer answer = getAnswerFromStatement(stmt, update);
+    // null unless it was stopped.
+    public synchronized String stopped() {
+        return stopped;
+    }
+
+    private Answer getAnswerFromStatement(Statement stmt, PreparedStatement pstmt, boolean update, OutputStream sink)
+            throws SQLException, IOException, ScyllaException {
+        if (update) {
+            int n = pstmt != null ? pstmt.executeUpdate() : stmt.executeUpdate(qc.getQuery());
+            return Answer.answerForUpdateStatement(n);
+        } else {
+            ResultSet rs = pstmt != null ? pstmt.executeQuery() : stmt.executeQuery(qc.getQuery());
+            return Answer.answerFromResultSet(qc, rs, sink);
+        }
+    }
 
-            stmt.close();
-            conn.close();
+    // the data set (if any) is written to `sink`, the answer only has the metadata.
+    public Answer query(boolean update, OutputStream sink)
+            throws SQLException, JSONException, IOException, ScyllaException {
+        // the statement goes with its connection: both or neither.
+        Connection kept;
+        PreparedStatement pstmt;
+        synchronized (this) {
+            kept = held;
+            pstmt = prepared;
+            held = null;
+            prepared = null;
+        }
 
-            return answer;
+        try (Connection conn = ready(kept);
+             Statement stmt = pstmt != null ? pstmt : conn.createStatement()) {
+            watch(stmt);
+            return getAnswerFromStatement(stmt, pstmt, update, sink);
         } catch (ClassNotFoundException e) {
             throw new ScyllaException(qc.getScope().classNotFound());
+        } finally {
+            unwatch();
+        }
+    }
+
+    // gives back whatever was kept from the verification and isn't being used (a query that's running has taken it
+    // already). the query can still be run afterwards, on a connection of its own.
+    @Override
+    public void close() {
+        Connection conn;
+        PreparedStatement pstmt;
+        synchronized (this) {
+            conn = held;
+            pstmt = prepared;
+            held = null;
+            prepared = null;
+        }
+
+        try {
+            if (pstmt != null) {
+                pstmt.close();
+            }
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            // it was going back to the pool anyway
         }
     }
 
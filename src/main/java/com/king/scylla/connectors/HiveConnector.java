@@ -14,6 +14,7 @@ import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.util.List;
 
@@ -23,12 +24,11 @@ public class HiveConnector extends DBConnector {
     private static final Logger log = LogManager.getLogger(HiveConnector.class.getName());
 
     @Override
-    public Answer query(boolean update) throws SQLException, JSONException, IOException, ScyllaException {
-        try {
-            Connection conn = getConnection();
-            assert !conn.isClosed();
-
-            final HiveStatement stmt = (HiveStatement) conn.createStatement();
+    public Answer query(boolean update, OutputStream sink)
+            throws SQLException, JSONException, IOException, ScyllaException {
+        try (Connection conn = takeConnection(); Statement st = conn.createStatement()) {
+            final HiveStatement stmt = (HiveStatement) st;
+            watch(stmt);
 
             Runnable logthread = () -> {
                 while (stmt.hasMoreLogs()) {
@@ -52,19 +52,12 @@ public class HiveConnector extends DBConnector {
                 }
             };
 
-            Thread thread = new Thread(logthread);
+            Thread thread = qc.getConf().newThread(logthread);
             thread.setName(String.format("HL %d", thread.getId()));
-            thread.setDaemon(true);
             thread.start();
 
             ResultSet rs = null;
 
-            if (qc.getHParams() != null) {
-                for (String param : qc.getHParams()) {
-                    stmt.execute(param);
-                }
-            }
-
             int n = 0;
             if (!update) {
                 rs = stmt.executeQuery(qc.getQuery());
@@ -82,16 +75,16 @@ public class HiveConnector extends DBConnector {
             Answer answer;
 
             if (!update) {
-                answer = Answer.answerFromResultSet(qc, rs);
+                answer = Answer.answerFromResultSet(qc, rs, sink);
             } else {
                 answer = Answer.answerForUpdateStatement(n);
             }
 
-            stmt.close();
-            conn.close();
             return answer;
         } catch (ClassNotFoundException e) {
             throw new ScyllaException(HIVE.classNotFound());
+        } finally {
+            unwatch();
         }
     }
 
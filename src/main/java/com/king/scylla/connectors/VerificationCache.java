@@ -0,0 +1,132 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.connectors;
+
+import com.king.scylla.VerificationAnswer;
+import com.king.scylla.meta.QConfig;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Queries that verified fine lately (and whether they're the kind answered straight away), so that asking for the
+    same thing again (a dashboard, every few minutes) doesn't need another EXPLAIN or prepared statement. Keyed by
+    everything that could change the outcome: JDBC string, user, password, `hparams` and the query, give or take
+    whitespace (outside quotes: inside them it's part of the query).
+
+    Only `maxEntries` are kept (least recently used go first) for `ttl` seconds, and a query that fails when it's run
+    is forgotten right away. Errors aren't kept at all: what failed may work a minute later (somebody created the
+    table).
+ */
+public class VerificationCache {
+    private static class Verdict {
+        private final boolean nobg;
+        private final long estimate;
+        private final long until;
+
+        Verdict(boolean nobg, long estimate, long until) {
+            this.nobg = nobg;
+            this.estimate = estimate;
+            this.until = until;
+        }
+    }
+
+    private final long ttl;
+    private final Map<String, Verdict> verdicts;
+
+    public VerificationCache(final int maxEntries, int ttl) {
+        this.ttl = ttl * 1000L;
+        this.verdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // null if we don't know (or not anymore), otherwise the verification as it was.
+    synchronized VerificationAnswer verdict(String key) {
+        Verdict v = verdicts.get(key);
+        if (v == null) {
+            return null;
+        } else if (v.until < System.currentTimeMillis()) {
+            verdicts.remove(key);
+            return null;
+        }
+
+        VerificationAnswer answer = VerificationAnswer.emptyVerificationAnswer();
+        answer.ok(true);
+        if (v.nobg) {
+            answer.nobg(true);
+        }
+        return v.estimate >= 0 ? answer.estimate(v.estimate) : answer;
+    }
+
+    // null if we don't know, otherwise whether the query is answered straight away.
+    Boolean nobg(String key) {
+        VerificationAnswer v = verdict(key);
+        return v != null ? v.nobg() : null;
+    }
+
+    synchronized void verified(String key, boolean nobg) {
+        verified(key, nobg, -1);
+    }
+
+    // `estimate` is what the plan says the query reads, -1 if it doesn't say.
+    synchronized void verified(String key, boolean nobg, long estimate) {
+        if (ttl > 0) {
+            verdicts.put(key, new Verdict(nobg, estimate, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        verdicts.remove(key);
+    }
+
+    static String key(QConfig qc) {
+        String query = normalise(qc.getQuery());
+        String hparams = qc.getHParams() == null ? "" : qc.getHParams().toString();
+        // hashed: queries can be long, and there's a password in there.
+        return DigestUtils.sha256Hex(String.format("%s|%s|%s|%s|%s", qc.getJDBCString(), qc.getUser(),
+                qc.getPassword(), hparams, query));
+    }
+
+    // runs of whitespace outside string literals and quoted names become one space, and a trailing `;` goes. when in
+    // doubt (a backslash before a quote) it's taken for still being inside: that only costs a verification.
+    static String normalise(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote != 0) {
+                sb.append(c);
+                if (c == '\\' && i + 1 < query.length()) {
+                    sb.append(query.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(c);
+                if (c == '\'' || c == '"' || c == '`') {
+                    quote = c;
+                }
+            }
+        }
+
+        String normalised = sb.toString();
+        if (quote == 0 && normalised.endsWith(";")) {
+            normalised = normalised.substring(0, normalised.length() - 1).trim();
+        }
+        return normalised;
+    }
+}
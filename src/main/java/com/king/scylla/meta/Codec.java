@@ -0,0 +1,99 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.meta;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.lang.NotImplementedException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+    How data sets get compressed. bz2 has the best ratio (and it's what everything used before codecs were a thing),
+    lz4 is the fastest, zstd is a good compromise, and none is there for data sets that don't compress at all.
+
+    lz4 comes from lz4-java rather than commons-compress: the pure Java one in commons-compress is slower than bz2 on
+    very repetitive data, which defeats the purpose.
+ */
+public enum Codec {
+    BZ2("bz2"),
+    GZIP("gzip"),
+    LZ4("lz4"),
+    ZSTD("zstd"),
+    NONE("none");
+
+    private String shortName;
+
+    Codec(String shortName) {
+        this.shortName = shortName;
+    }
+
+    public static Codec fromString(String str) {
+        switch (str.toLowerCase()) {
+            case "bz2":
+            case "bzip2":
+                return BZ2;
+            case "gz":
+            case "gzip":
+                return GZIP;
+            case "lz4":
+                return LZ4;
+            case "zstd":
+                return ZSTD;
+            case "none":
+                return NONE;
+            default:
+                throw new NotImplementedException(String.format("Codec '%s' not implemented", str));
+        }
+    }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    public String toString() {
+        return getShortName();
+    }
+
+    // closing the returned stream closes `os` too.
+    public OutputStream compress(OutputStream os) throws IOException {
+        switch (this) {
+            case BZ2:
+                return new BZip2CompressorOutputStream(os);
+            case GZIP:
+                return new GzipCompressorOutputStream(os);
+            case LZ4:
+                return new LZ4FrameOutputStream(os);
+            case ZSTD:
+                return new ZstdCompressorOutputStream(os);
+            default:
+                return os;
+        }
+    }
+
+    // this reads concatenated streams as well.
+    public InputStream decompress(InputStream is) throws IOException {
+        switch (this) {
+            case BZ2:
+                return new BZip2CompressorInputStream(is, true);
+            case GZIP:
+                return new GzipCompressorInputStream(is, true);
+            case LZ4:
+                return new LZ4FrameInputStream(is);
+            case ZSTD:
+                return new ZstdCompressorInputStream(is);
+            default:
+                return is;
+        }
+    }
+}
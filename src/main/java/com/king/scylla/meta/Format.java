@@ -8,7 +8,8 @@ import org.apache.commons.lang.NotImplementedException;
 
 public enum Format {
     CSV("csv", "CSV"),
-    JSON("json", "JSON");
+    JSON("json", "JSON"),
+    ARROW("arrow", "Arrow IPC stream");
 
     @SuppressWarnings("UnusedParameters")
     Format(String shortName, String name) {
@@ -20,6 +21,8 @@ public enum Format {
                 return CSV;
             case "json":
                 return JSON;
+            case "arrow":
+                return ARROW;
             default:
                 throw new NotImplementedException(String.format("Format '%s' not implemented", str));
         }
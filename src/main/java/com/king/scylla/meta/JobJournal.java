@@ -0,0 +1,264 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.meta;
+
+import com.google.common.base.Throwables;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Background queries that were submitted, started and finished, one JSON line each, so that the ones this process
+    was still looking after when it went down can be found again when it comes back (see `Scylla.recover`). Jobs are
+    known by the owner of their lease, which is what lets their locks be taken back (or let go of).
+
+    A job is on disk before whoever asked for it hears it's pending: that one goes straight to the disk, the rest only
+    matter if they make it (a job that doesn't look finished is checked against the cache anyway). The file is
+    rewritten with only the jobs that aren't finished every now and then, and a last line cut short by a crash is
+    just ignored.
+
+    A journal belongs to a single Scylla: it holds an exclusive lock on `<path>.lock` for as long as it's open (the
+    journal itself gets replaced when it's rewritten), and another one pointed at the same file won't start.
+ */
+public final class JobJournal {
+    private static final Logger log = LogManager.getLogger(JobJournal.class.getName());
+
+    // lines written before the file's rewritten, unless most of them are about jobs still around.
+    static final int COMPACT_AFTER = 1000;
+
+    public static final class Job {
+        private final String id;
+        private final long submitted;
+        private final JSONObject instruction;
+        private boolean running = false;
+
+        private Job(String id, long submitted, JSONObject instruction) {
+            this.id = id;
+            this.submitted = submitted;
+            this.instruction = instruction;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        // milliseconds.
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public JSONObject getInstruction() {
+            return instruction;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private final List<Job> orphans;
+    private FileChannel out;
+    private int lines = 0;
+
+    public JobJournal(Path path) throws ScyllaException {
+        this.path = path;
+        FileChannel ch = null;
+        FileLock l = null;
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            ch = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            try {
+                l = ch.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // this very process has it open already
+            }
+            if (l == null) {
+                ch.close();
+                throw new ScyllaException(String.format("The job journal '%s' is being used by another Scylla. Give " +
+                        "each one its own 'journal_path'.", path));
+            }
+
+            replay();
+            orphans = Collections.unmodifiableList(new ArrayList<>(jobs.values()));
+            rewrite();
+        } catch (IOException e) {
+            if (ch != null) {
+                try {
+                    // and the lock goes with it
+                    ch.close();
+                } catch (IOException c) {
+                    // nothing else to do
+                }
+            }
+            throw new ScyllaException(String.format("Couldn't open the job journal '%s': %s", path, e.getMessage()), e);
+        }
+        lockChannel = ch;
+        lock = l;
+
+        if (!orphans.isEmpty()) {
+            log.info(String.format("%d queries were left unfinished last time.", orphans.size()));
+        }
+    }
+
+    // what wasn't finished when the journal was opened, oldest first. they stay in the journal until they're
+    // `finished` (or submitted again).
+    public List<Job> orphans() {
+        return orphans;
+    }
+
+    public synchronized void submitted(String id, JSONObject instruction) {
+        // a job that's recovered keeps its age.
+        Job old = jobs.get(id);
+        Job job = new Job(id, old != null ? old.submitted : System.currentTimeMillis(), instruction);
+        jobs.put(id, job);
+        append(record("submitted", job).put("submitted", job.submitted).put("instruction", instruction), true);
+    }
+
+    public synchronized void running(String id) {
+        Job job = jobs.get(id);
+        if (job != null) {
+            job.running = true;
+            append(record("running", job), false);
+        }
+    }
+
+    public synchronized void finished(String id) {
+        Job job = jobs.remove(id);
+        if (job != null) {
+            append(record("finished", job), false);
+            if (lines > COMPACT_AFTER && lines > 4 * jobs.size()) {
+                try {
+                    rewrite();
+                } catch (IOException e) {
+                    log.error("Couldn't compact the job journal: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    synchronized int size() {
+        return jobs.size();
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.error(Throwables.getStackTraceAsString(e));
+        }
+    }
+
+    private static JSONObject record(String what, Job job) {
+        return new JSONObject().put("job", what).put("id", job.id).put("at", System.currentTimeMillis());
+    }
+
+    // a journal that can't be written to doesn't stop queries from running, they just won't be recovered.
+    private void append(JSONObject record, boolean sync) {
+        try {
+            write(out, record);
+            if (sync) {
+                out.force(false);
+            }
+            lines++;
+        } catch (IOException e) {
+            log.error("Couldn't write to the job journal: " + e.getMessage());
+        }
+    }
+
+    private static void write(FileChannel ch, JSONObject record) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+
+    private void replay() throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                JSONObject r;
+                try {
+                    r = new JSONObject(line);
+                } catch (JSONException e) {
+                    log.warn("Skipping a broken line in the job journal.");
+                    continue;
+                }
+
+                String id = r.optString("id", null);
+                switch (r.optString("job")) {
+                    case "submitted":
+                        JSONObject instruction = r.optJSONObject("instruction");
+                        if (id != null && instruction != null) {
+                            jobs.put(id, new Job(id, r.optLong("submitted", r.optLong("at")), instruction));
+                        }
+                        break;
+                    case "running":
+                        Job job = jobs.get(id);
+                        if (job != null) {
+                            job.running = true;
+                        }
+                        break;
+                    case "finished":
+                        jobs.remove(id);
+                        break;
+                    default:
+                        log.warn("Skipping a line in the job journal I don't understand.");
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first time
+        }
+    }
+
+    // the jobs that aren't finished, in a new file that replaces the old one in one go.
+    private void rewrite() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Job job : jobs.values()) {
+                write(ch, record("submitted", job).put("submitted", job.submitted).put("instruction", job.instruction));
+                if (job.running) {
+                    write(ch, record("running", job));
+                }
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (out != null) {
+            out.close();
+        }
+        out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lines = jobs.size();
+    }
+}
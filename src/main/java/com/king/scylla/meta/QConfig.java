@@ -23,6 +23,9 @@ public class QConfig {
 
     private int expire = 86400;
 
+    // seconds the query can run for, 0 for the server's default (see `ScyllaConf.getQueryTimeout`).
+    private int timeout = 0;
+
     private boolean force = false;
     private boolean quiet = false;
 
@@ -32,7 +35,13 @@ public class QConfig {
 
     private boolean peek = false;
 
-    private static String[] booleanFields = new String[]{"force", "quiet", "update", "peek", "reckless"};
+    private boolean stream = false;
+
+    private Codec codec;
+
+    private Format format;
+
+    private static String[] booleanFields = new String[]{"force", "quiet", "update", "peek", "reckless", "stream"};
 
     private LogColouriser logColouriser;
 
@@ -85,6 +94,14 @@ public class QConfig {
         this.expire = expire;
     }
 
+    public int getTimeout() {
+        return timeout > 0 ? timeout : getConf().getQueryTimeout();
+    }
+
+    private void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
     public boolean isForce() {
         return force;
     }
@@ -133,6 +150,32 @@ public class QConfig {
         this.peek = peek;
     }
 
+    public boolean isStream() {
+        return stream;
+    }
+
+    private void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    // the codec asked for in the question, or the server's default.
+    public Codec getCodec() {
+        return codec != null ? codec : getConf().getCodec();
+    }
+
+    private void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    // the format asked for in the question, or the server's default.
+    public Format getFormat() {
+        return format != null ? format : getConf().getFormat();
+    }
+
+    private void setFormat(Format format) {
+        this.format = format;
+    }
+
     public String getJDBCString() {
         if (JDBCString != null) {
             return JDBCString;
@@ -159,8 +202,11 @@ public class QConfig {
         this.errorMessage = errorMessage;
     }
 
+    // not every org.json on the classpath is as strict as ours (Hive comes with one that turns anything into a string).
     private static void validateStringParam(JSONObject object, String key) throws JSONException {
-        object.getString(key);
+        if (!(object.get(key) instanceof String)) {
+            throw new JSONException(String.format("JSONObject[\"%s\"] not a string.", key));
+        }
     }
 
     private static void validateIntParam(JSONObject object, String key) throws JSONException {
@@ -214,6 +260,14 @@ public class QConfig {
                 }
             }
 
+            if (o.has("timeout")) {
+                field = "timeout";
+                validateIntParam(o, field);
+                if (o.getInt(field) <= 0) {
+                    return "'timeout' must be greater than zero, how long do you expect it to take?";
+                }
+            }
+
             for (String booleanField : QConfig.booleanFields) {
                 if (o.has(booleanField)) {
                     field = booleanField;
@@ -226,6 +280,18 @@ public class QConfig {
                 validateStringParam(o, field);
             }
 
+            if (o.has("codec")) {
+                field = "codec";
+                validateStringParam(o, field);
+                Codec.fromString(o.getString(field));
+            }
+
+            if (o.has("format")) {
+                field = "format";
+                validateStringParam(o, field);
+                Format.fromString(o.getString(field));
+            }
+
             if (o.has("hparams")) {
                 field = "hparams";
                 validateStringArrayParam(o, field);
@@ -260,6 +326,9 @@ public class QConfig {
             if (instruction.has("expire")) {
                 qc.setExpire(instruction.getInt("expire"));
             }
+            if (instruction.has("timeout")) {
+                qc.setTimeout(instruction.getInt("timeout"));
+            }
             if (instruction.has("force")) {
                 qc.setForce(instruction.getBoolean("force"));
             }
@@ -272,6 +341,9 @@ public class QConfig {
             if (instruction.has("peek")) {
                 qc.setPeek(instruction.getBoolean("peek"));
             }
+            if (instruction.has("stream")) {
+                qc.setStream(instruction.getBoolean("stream"));
+            }
             if (instruction.has("scope")) {
                 sscope = instruction.getString("scope");
                 qc.setScope(Scope.getScopeFromShortName(sscope));
@@ -282,6 +354,12 @@ public class QConfig {
             if (instruction.has("password") && (instruction.getString("password") != null)) {
                 qc.setPassword(instruction.getString("password"));
             }
+            if (instruction.has("codec")) {
+                qc.setCodec(Codec.fromString(instruction.getString("codec")));
+            }
+            if (instruction.has("format")) {
+                qc.setFormat(Format.fromString(instruction.getString("format")));
+            }
 
             if (instruction.has("hparams")) {
                 List<String> hparams = new ArrayList<>();
@@ -299,8 +377,43 @@ public class QConfig {
         return qc;
     }
 
+    // the instruction this came from, for the job journal: no password (scopes that need one can't be run again from
+    // it), and null if it has a JDBC string of its own, as those can have credentials in them too.
+    public JSONObject toInstruction() {
+        if (JDBCString != null) {
+            return null;
+        }
+
+        JSONObject o = new JSONObject();
+        o.put("query", query);
+        o.put("user", user);
+        o.put("scope", scope.getName().toLowerCase());
+        o.put("expire", expire);
+        if (timeout > 0) {
+            o.put("timeout", timeout);
+        }
+        o.put("force", force);
+        o.put("quiet", quiet);
+        o.put("update", update);
+        o.put("stream", stream);
+        if (codec != null) {
+            o.put("codec", codec.toString());
+        }
+        if (format != null) {
+            o.put("format", format.toString().toLowerCase());
+        }
+        if (hparams != null) {
+            o.put("hparams", new JSONArray(hparams));
+        }
+        return o;
+    }
+
     public String getKey() {
         String hparams = this.getHParams() == null ? "" : this.getHParams().toString();
-        return String.format("scylla|%s|%s|%s", this.getJDBCString(), this.getQuery(), hparams);
+        String key = String.format("scylla|%s|%s|%s", this.getJDBCString(), this.getQuery(), hparams);
+        // a data set in a different format is a different data set, but CSV ones (what every data set was before there
+        // were formats) keep the keys they always had, whether the question asks for CSV or gets it by default.
+        Format f = format != null ? format : conf != null ? conf.getFormat() : null;
+        return f == null || f == Format.CSV ? key : String.format("%s|%s", key, f.toString().toLowerCase());
     }
 }
@@ -8,17 +8,30 @@ import com.king.scylla.cache.Cache;
 import com.king.scylla.cache.CacheException;
 import com.king.scylla.cache.FileSystemCache;
 import com.king.scylla.cache.RedisCache;
+import com.king.scylla.cache.SegmentCache;
+import com.king.scylla.cache.TieredCache;
+import com.king.scylla.connectors.ConnectionPool;
+import com.king.scylla.connectors.VerificationCache;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static com.king.scylla.meta.Scope.EXASOL;
@@ -33,13 +46,106 @@ public class ScyllaConf {
     // default value, there needs to be one.
     private String cachePath = "/tmp/scylla.fcache";
 
+    // how the filesystem cache stores things: a directory per entry ("directories") or big append-only segment files
+    // ("segments").
+    private String cacheStore = "directories";
+
+    // where the filesystem cache keeps its index (on the local disk, one for each Scylla, by default) and how many
+    // entries it can hold.
+    private String cacheIndexPath = null;
+    private int cacheIndexSlots = FileSystemCache.DEFAULT_INDEX_SLOTS;
+
+    // whether other Scyllas use the same filesystem cache (so what isn't in the index is looked for in the directory).
+    private boolean cacheShared = false;
+
+    // size budget for the filesystem cache, in bytes. zero means no limit (other than the disk).
+    private long cacheMaxBytes = 0;
+
+    // how often (in seconds) expired entries get removed from the filesystem cache.
+    private int cacheSweepInterval = 60;
+
+    // seconds a running query keeps its lock without renewing it: if its Scylla goes down, that's how long until
+    // somebody else can run it.
+    private int lockLease = 120;
+
+    // where background queries are journaled (`<cache_path>/journal.<host>.<port>` unless it's somewhere else: every
+    // Scylla sharing the cache has a journal of its own), so the ones still around when Scylla goes down are found
+    // again when it comes back. the ones that can be run again are, unless they're older than `journalMaxAge` seconds
+    // (zero means they never are).
+    private boolean journal = true;
+    private String journalPath = null;
+    private int journalMaxAge = 21600;
+    private JobJournal jobJournal;
+
+    // the port this Scylla listens on, which (with the host) tells it apart from the rest sharing the cache.
+    private int port = 30666;
+
+    // bytes of data sets (base64) a `batch` with `"get": true` puts in its answer, the rest are asked for separately.
+    private long batchMaxInlineBytes = 64L << 20;
+
+    // bytes kept in memory (off-heap) in front of the cache. zero means no in-process tier.
+    private long l1MaxBytes = 0;
+
+    // there's only one, everybody shares it.
+    private Cache cache;
+
     // cap for server-side caching, if you really need to store data
     private int cacheLifeTimeDays = 7;
 
     private Format format = null;
 
+    // default codec for data sets, questions can ask for a different one.
+    private Codec codec = Codec.BZ2;
+
+    // threads compressing blocks of data sets in parallel. zero means data sets are compressed as a single stream by
+    // the thread fetching them.
+    private int compressionThreads = 0;
+    private ExecutorService compressionPool;
+
     private Set<Scope> connectors = new HashSet<>();
 
+    // JDBC connections kept open between queries: at most this many per JDBC string/user/session and overall, closed
+    // after this many seconds without being used.
+    private int jdbcPoolMaxPerKey = 4;
+    private int jdbcPoolMaxTotal = 32;
+    private int jdbcPoolIdleTimeout = 300;
+    private ConnectionPool connectionPool;
+
+    // queries that verified fine are remembered for a while, and with `verifyOnQueryConnection` the query runs on the
+    // connection it was verified on.
+    private int verificationCacheSize = 10000;
+    private int verificationCacheTTL = 300;
+    private VerificationCache verificationCache;
+    private boolean verifyOnQueryConnection = false;
+
+    // queries running at once against each backend (`<backend>_max_queries`, or `max_queries` for all of them), the
+    // rest wait their turn. unset means no limit but the worker pool's size, except with virtual threads: there's no
+    // pool to speak of then, so there's a default. zero means no limit.
+    static final int VIRTUAL_MAX_QUERIES = 64;
+    private int maxQueries = -1;
+    private Map<Scope, Integer> maxQueriesPerScope = new HashMap<>();
+    private Map<Scope, Semaphore> querySlots = new HashMap<>();
+
+    // seconds a query can run for unless the question says otherwise, zero means as long as it takes.
+    private int queryTimeout = 0;
+
+    // how many background queries run and wait at once, overall and per user, and how much data a user's running
+    // queries can be holding before their next one has to wait (zero means no limit). users can weigh more (or less)
+    // than the default 1 when taking turns: `user_weights=etl:0.5,boss:2`.
+    private int schedulerMaxRunning = 128;
+    // queries that look cheap (their EXPLAIN says they read at most `interactiveMaxBytes`) have a lane of their own,
+    // with this many slots, ahead of everything else.
+    private int schedulerInteractiveRunning = 16;
+    private long interactiveMaxBytes = 64L << 20;
+    private int schedulerMaxQueued = 1000;
+    private int userMaxRunning = 8;
+    private int userMaxQueued = 200;
+    private long userMaxBytesInFlight = 0;
+    private Map<String, Double> userWeights = new HashMap<>();
+
+    // tentacles, background queries and Hive log pollers on virtual threads (see `ScyllaCLI`).
+    private ThreadFactory virtualThreads;
+
     private static final Logger log = LogManager.getLogger(ScyllaConf.class.getName());
 
     private boolean redis = false;
@@ -94,10 +200,302 @@ public class ScyllaConf {
             setFormat(Format.fromString(properties.getProperty("format")));
         }
 
+        if (properties.containsKey("codec")) {
+            setCodec(Codec.fromString(properties.getProperty("codec")));
+        }
+
+        if (properties.containsKey("compression_threads")) {
+            int compressionThreads = parseUInt(properties.getProperty("compression_threads"));
+
+            if (compressionThreads < 0) {
+                log.warn("Parameter 'compression_threads' wasn't parsed correctly. Compressing in a single thread.");
+            }
+            setCompressionThreads(Math.max(compressionThreads, 0));
+        }
+
+        if (properties.containsKey("jdbc_pool_max_per_key")) {
+            int jdbcPoolMaxPerKey = parseUInt(properties.getProperty("jdbc_pool_max_per_key"));
+
+            if (jdbcPoolMaxPerKey < 0) {
+                log.warn("Parameter 'jdbc_pool_max_per_key' wasn't parsed correctly. Defaulting to 4.");
+            }
+            setJdbcPoolMaxPerKey(jdbcPoolMaxPerKey >= 0 ? jdbcPoolMaxPerKey : this.jdbcPoolMaxPerKey);
+        }
+
+        if (properties.containsKey("jdbc_pool_max_total")) {
+            int jdbcPoolMaxTotal = parseUInt(properties.getProperty("jdbc_pool_max_total"));
+
+            if (jdbcPoolMaxTotal < 0) {
+                log.warn("Parameter 'jdbc_pool_max_total' wasn't parsed correctly. Defaulting to 32.");
+            }
+            setJdbcPoolMaxTotal(jdbcPoolMaxTotal >= 0 ? jdbcPoolMaxTotal : this.jdbcPoolMaxTotal);
+        }
+
+        if (properties.containsKey("jdbc_pool_idle_timeout")) {
+            int jdbcPoolIdleTimeout = parseUInt(properties.getProperty("jdbc_pool_idle_timeout"));
+
+            if (jdbcPoolIdleTimeout <= 0) {
+                log.warn("Parameter 'jdbc_pool_idle_timeout' wasn't parsed correctly. Defaulting to 300 seconds.");
+            }
+            setJdbcPoolIdleTimeout(jdbcPoolIdleTimeout > 0 ? jdbcPoolIdleTimeout : this.jdbcPoolIdleTimeout);
+        }
+
+        if (properties.containsKey("verification_cache_size")) {
+            int verificationCacheSize = parseUInt(properties.getProperty("verification_cache_size"));
+
+            if (verificationCacheSize < 0) {
+                log.warn("Parameter 'verification_cache_size' wasn't parsed correctly. Defaulting to 10000.");
+            }
+            setVerificationCacheSize(verificationCacheSize >= 0 ? verificationCacheSize : this.verificationCacheSize);
+        }
+
+        if (properties.containsKey("verification_cache_ttl")) {
+            int verificationCacheTTL = parseUInt(properties.getProperty("verification_cache_ttl"));
+
+            if (verificationCacheTTL < 0) {
+                log.warn("Parameter 'verification_cache_ttl' wasn't parsed correctly. Defaulting to 300 seconds.");
+            }
+            setVerificationCacheTTL(verificationCacheTTL >= 0 ? verificationCacheTTL : this.verificationCacheTTL);
+        }
+
+        if (properties.containsKey("verify_on_query_connection")) {
+            setVerifyOnQueryConnection(yes(properties.getProperty("verify_on_query_connection")));
+        }
+
+        if (properties.containsKey("max_queries")) {
+            int maxQueries = parseUInt(properties.getProperty("max_queries"));
+
+            if (maxQueries < 0) {
+                log.warn("Parameter 'max_queries' wasn't parsed correctly. Not limiting queries.");
+            }
+            setMaxQueries(maxQueries);
+        }
+
+        for (Scope scope : Scope.values()) {
+            String prop = scope.getName().toLowerCase() + "_max_queries";
+            if (properties.containsKey(prop)) {
+                int maxQueries = parseUInt(properties.getProperty(prop));
+
+                if (maxQueries < 0) {
+                    log.warn(String.format("Parameter '%s' wasn't parsed correctly. Ignoring it.", prop));
+                } else {
+                    maxQueriesPerScope.put(scope, maxQueries);
+                }
+            }
+        }
+
+        if (properties.containsKey("query_timeout")) {
+            int queryTimeout = parseUInt(properties.getProperty("query_timeout"));
+
+            if (queryTimeout < 0) {
+                log.warn("Parameter 'query_timeout' wasn't parsed correctly. Queries take as long as they take.");
+            }
+            setQueryTimeout(Math.max(queryTimeout, 0));
+        }
+
+        if (properties.containsKey("scheduler_max_running")) {
+            int schedulerMaxRunning = parseUInt(properties.getProperty("scheduler_max_running"));
+
+            if (schedulerMaxRunning <= 0) {
+                log.warn("Parameter 'scheduler_max_running' wasn't parsed correctly. Defaulting to 128.");
+            }
+            setSchedulerMaxRunning(schedulerMaxRunning > 0 ? schedulerMaxRunning : this.schedulerMaxRunning);
+        }
+
+        if (properties.containsKey("scheduler_interactive_running")) {
+            int schedulerInteractiveRunning = parseUInt(properties.getProperty("scheduler_interactive_running"));
+
+            if (schedulerInteractiveRunning < 0) {
+                log.warn("Parameter 'scheduler_interactive_running' wasn't parsed correctly. Defaulting to 16.");
+            }
+            setSchedulerInteractiveRunning(schedulerInteractiveRunning >= 0 ? schedulerInteractiveRunning :
+                    this.schedulerInteractiveRunning);
+        }
+
+        if (properties.containsKey("interactive_max_bytes")) {
+            long interactiveMaxBytes;
+            try {
+                interactiveMaxBytes = Long.parseLong(properties.getProperty("interactive_max_bytes"));
+            } catch (NumberFormatException e) {
+                interactiveMaxBytes = -1;
+            }
+
+            if (interactiveMaxBytes < 0) {
+                log.warn("Parameter 'interactive_max_bytes' wasn't parsed correctly. Defaulting to 64 MB.");
+            } else {
+                setInteractiveMaxBytes(interactiveMaxBytes);
+            }
+        }
+
+        if (properties.containsKey("batch_max_inline_bytes")) {
+            long batchMaxInlineBytes;
+            try {
+                batchMaxInlineBytes = Long.parseLong(properties.getProperty("batch_max_inline_bytes"));
+            } catch (NumberFormatException e) {
+                batchMaxInlineBytes = -1;
+            }
+
+            if (batchMaxInlineBytes < 0) {
+                log.warn("Parameter 'batch_max_inline_bytes' wasn't parsed correctly. Defaulting to 64 MB.");
+            } else {
+                setBatchMaxInlineBytes(batchMaxInlineBytes);
+            }
+        }
+
+        if (properties.containsKey("scheduler_max_queued")) {
+            int schedulerMaxQueued = parseUInt(properties.getProperty("scheduler_max_queued"));
+
+            if (schedulerMaxQueued < 0) {
+                log.warn("Parameter 'scheduler_max_queued' wasn't parsed correctly. Defaulting to 1000.");
+            }
+            setSchedulerMaxQueued(schedulerMaxQueued >= 0 ? schedulerMaxQueued : this.schedulerMaxQueued);
+        }
+
+        if (properties.containsKey("user_max_running")) {
+            int userMaxRunning = parseUInt(properties.getProperty("user_max_running"));
+
+            if (userMaxRunning <= 0) {
+                log.warn("Parameter 'user_max_running' wasn't parsed correctly. Defaulting to 8.");
+            }
+            setUserMaxRunning(userMaxRunning > 0 ? userMaxRunning : this.userMaxRunning);
+        }
+
+        if (properties.containsKey("user_max_queued")) {
+            int userMaxQueued = parseUInt(properties.getProperty("user_max_queued"));
+
+            if (userMaxQueued < 0) {
+                log.warn("Parameter 'user_max_queued' wasn't parsed correctly. Defaulting to 200.");
+            }
+            setUserMaxQueued(userMaxQueued >= 0 ? userMaxQueued : this.userMaxQueued);
+        }
+
+        if (properties.containsKey("user_max_bytes_in_flight")) {
+            long userMaxBytesInFlight;
+            try {
+                userMaxBytesInFlight = Long.parseLong(properties.getProperty("user_max_bytes_in_flight"));
+            } catch (NumberFormatException e) {
+                userMaxBytesInFlight = -1;
+            }
+
+            if (userMaxBytesInFlight < 0) {
+                log.warn("Parameter 'user_max_bytes_in_flight' wasn't parsed correctly. Not limiting it.");
+            }
+            setUserMaxBytesInFlight(Math.max(userMaxBytesInFlight, 0));
+        }
+
+        if (properties.containsKey("user_weights")) {
+            for (String w : properties.getProperty("user_weights").split(",")) {
+                String[] kv = w.trim().split(":");
+                double weight;
+                try {
+                    weight = kv.length == 2 ? Double.parseDouble(kv[1].trim()) : -1;
+                } catch (NumberFormatException e) {
+                    weight = -1;
+                }
+
+                if (weight <= 0) {
+                    log.warn(String.format("Couldn't make sense of '%s' in 'user_weights'. Ignoring it.", w.trim()));
+                } else {
+                    userWeights.put(kv[0].trim(), weight);
+                }
+            }
+        }
+
         if (properties.containsKey("cache_path")) {
             setCachePath(properties.getProperty("cache_path"));
         }
 
+        if (properties.containsKey("cache_store")) {
+            String cacheStore = properties.getProperty("cache_store").trim().toLowerCase();
+
+            if (!cacheStore.equals("directories") && !cacheStore.equals("segments")) {
+                log.warn("Parameter 'cache_store' wasn't parsed correctly. Defaulting to 'directories'.");
+            } else {
+                setCacheStore(cacheStore);
+            }
+        }
+
+        if (properties.containsKey("cache_index_path")) {
+            setCacheIndexPath(properties.getProperty("cache_index_path"));
+        }
+
+        if (properties.containsKey("cache_shared")) {
+            setCacheShared(yes(properties.getProperty("cache_shared")));
+        }
+
+        if (properties.containsKey("cache_index_slots")) {
+            int cacheIndexSlots = parseUInt(properties.getProperty("cache_index_slots"));
+
+            if (cacheIndexSlots <= 0) {
+                log.warn(String.format("Parameter 'cache_index_slots' wasn't parsed correctly. Defaulting to %d.",
+                        this.cacheIndexSlots));
+            }
+            setCacheIndexSlots(cacheIndexSlots > 0 ? cacheIndexSlots : this.cacheIndexSlots);
+        }
+
+        if (properties.containsKey("cache_max_bytes")) {
+            long cacheMaxBytes;
+            try {
+                cacheMaxBytes = Long.parseLong(properties.getProperty("cache_max_bytes"));
+            } catch (NumberFormatException e) {
+                cacheMaxBytes = -1;
+            }
+
+            if (cacheMaxBytes < 0) {
+                log.warn("Parameter 'cache_max_bytes' wasn't parsed correctly. The cache won't have a size limit.");
+            }
+            setCacheMaxBytes(Math.max(cacheMaxBytes, 0));
+        }
+
+        if (properties.containsKey("cache_sweep_interval")) {
+            int cacheSweepInterval = parseUInt(properties.getProperty("cache_sweep_interval"));
+
+            if (cacheSweepInterval <= 0) {
+                log.warn("Parameter 'cache_sweep_interval' wasn't parsed correctly. Defaulting to 60 seconds.");
+            }
+            setCacheSweepInterval(cacheSweepInterval > 0 ? cacheSweepInterval : this.cacheSweepInterval);
+        }
+
+        if (properties.containsKey("lock_lease")) {
+            int lockLease = parseUInt(properties.getProperty("lock_lease"));
+
+            if (lockLease <= 0) {
+                log.warn("Parameter 'lock_lease' wasn't parsed correctly. Defaulting to 120 seconds.");
+            }
+            setLockLease(lockLease > 0 ? lockLease : this.lockLease);
+        }
+
+        if (properties.containsKey("journal")) {
+            setJournal(yes(properties.getProperty("journal")));
+        }
+
+        if (properties.containsKey("journal_path")) {
+            setJournalPath(properties.getProperty("journal_path").trim());
+        }
+
+        if (properties.containsKey("journal_max_age")) {
+            int journalMaxAge = parseUInt(properties.getProperty("journal_max_age"));
+
+            if (journalMaxAge < 0) {
+                log.warn("Parameter 'journal_max_age' wasn't parsed correctly. Defaulting to 21600 seconds.");
+            }
+            setJournalMaxAge(journalMaxAge >= 0 ? journalMaxAge : this.journalMaxAge);
+        }
+
+        if (properties.containsKey("l1_max_bytes")) {
+            long l1MaxBytes;
+            try {
+                l1MaxBytes = Long.parseLong(properties.getProperty("l1_max_bytes"));
+            } catch (NumberFormatException e) {
+                l1MaxBytes = -1;
+            }
+
+            if (l1MaxBytes < 0) {
+                log.warn("Parameter 'l1_max_bytes' wasn't parsed correctly. Not keeping anything in memory.");
+            }
+            setL1MaxBytes(Math.max(l1MaxBytes, 0));
+        }
+
         if (properties.containsKey("redis_host")) {
             setRedisHost(properties.getProperty("redis_host"));
         }
@@ -113,7 +511,9 @@ public class ScyllaConf {
         }
 
         if (redis) {
-            pool = new JedisPool(new JedisPoolConfig(), redisHost);
+            // every connection in the pool is on `redisDB` from the start.
+            pool = new JedisPool(new JedisPoolConfig(), redisHost, Protocol.DEFAULT_PORT, Protocol.DEFAULT_TIMEOUT, null,
+                    redisDB);
         }
 
         // sets the cache lifetime. default value is 7.
@@ -203,6 +603,74 @@ public class ScyllaConf {
         this.cachePath = cachePath;
     }
 
+    private void setCacheStore(String cacheStore) {
+        this.cacheStore = cacheStore;
+    }
+
+    private void setCacheIndexPath(String cacheIndexPath) {
+        this.cacheIndexPath = cacheIndexPath;
+    }
+
+    private void setCacheShared(boolean cacheShared) {
+        this.cacheShared = cacheShared;
+    }
+
+    private void setCacheIndexSlots(int cacheIndexSlots) {
+        // the index is mapped in one go, and mappings can't be larger than 2GB.
+        this.cacheIndexSlots = Math.min(cacheIndexSlots, (Integer.MAX_VALUE >> 6) - 1);
+    }
+
+    private void setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    private void setCacheSweepInterval(int cacheSweepInterval) {
+        this.cacheSweepInterval = cacheSweepInterval;
+    }
+
+    private void setLockLease(int lockLease) {
+        this.lockLease = lockLease;
+    }
+
+    public int getLockLease() {
+        return lockLease;
+    }
+
+    private void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    private static String hostname() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    private void setJournalPath(String journalPath) {
+        this.journalPath = journalPath;
+    }
+
+    private void setJournalMaxAge(int journalMaxAge) {
+        this.journalMaxAge = journalMaxAge;
+    }
+
+    public int getJournalMaxAge() {
+        return journalMaxAge;
+    }
+
+    private void setL1MaxBytes(long l1MaxBytes) {
+        if (l1MaxBytes > 0) {
+            log.info(String.format("Keeping up to %d bytes of hot data sets in memory.", l1MaxBytes));
+        }
+        this.l1MaxBytes = l1MaxBytes;
+    }
+
     public Format getFormat() {
         return format;
     }
@@ -212,6 +680,208 @@ public class ScyllaConf {
         log.debug(String.format("Using %s as serialisation format", format));
     }
 
+    public Codec getCodec() {
+        return codec;
+    }
+
+    private void setCodec(Codec codec) {
+        this.codec = codec;
+        log.debug(String.format("Using %s as default codec", codec));
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    private void setCompressionThreads(int compressionThreads) {
+        if (compressionThreads > 0) {
+            log.info(String.format("Compressing data sets in blocks with %d threads.", compressionThreads));
+        }
+        this.compressionThreads = compressionThreads;
+    }
+
+    private void setJdbcPoolMaxPerKey(int jdbcPoolMaxPerKey) {
+        this.jdbcPoolMaxPerKey = jdbcPoolMaxPerKey;
+    }
+
+    private void setJdbcPoolMaxTotal(int jdbcPoolMaxTotal) {
+        if (jdbcPoolMaxTotal == 0) {
+            log.info("Not keeping JDBC connections around, every query opens its own.");
+        }
+        this.jdbcPoolMaxTotal = jdbcPoolMaxTotal;
+    }
+
+    private void setJdbcPoolIdleTimeout(int jdbcPoolIdleTimeout) {
+        this.jdbcPoolIdleTimeout = jdbcPoolIdleTimeout;
+    }
+
+    private void setVerificationCacheSize(int verificationCacheSize) {
+        this.verificationCacheSize = verificationCacheSize;
+    }
+
+    private void setVerificationCacheTTL(int verificationCacheTTL) {
+        this.verificationCacheTTL = verificationCacheTTL;
+    }
+
+    private void setVerifyOnQueryConnection(boolean verifyOnQueryConnection) {
+        if (verifyOnQueryConnection) {
+            log.info("Queries run on the same connection they're verified on.");
+        }
+        this.verifyOnQueryConnection = verifyOnQueryConnection;
+    }
+
+    public boolean isVerifyOnQueryConnection() {
+        return verifyOnQueryConnection;
+    }
+
+    private void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    private void setSchedulerMaxRunning(int schedulerMaxRunning) {
+        this.schedulerMaxRunning = schedulerMaxRunning;
+    }
+
+    public int getSchedulerMaxRunning() {
+        return schedulerMaxRunning;
+    }
+
+    private void setSchedulerInteractiveRunning(int schedulerInteractiveRunning) {
+        this.schedulerInteractiveRunning = schedulerInteractiveRunning;
+    }
+
+    public int getSchedulerInteractiveRunning() {
+        return schedulerInteractiveRunning;
+    }
+
+    private void setInteractiveMaxBytes(long interactiveMaxBytes) {
+        this.interactiveMaxBytes = interactiveMaxBytes;
+    }
+
+    public long getInteractiveMaxBytes() {
+        return interactiveMaxBytes;
+    }
+
+    private void setBatchMaxInlineBytes(long batchMaxInlineBytes) {
+        this.batchMaxInlineBytes = batchMaxInlineBytes;
+    }
+
+    public long getBatchMaxInlineBytes() {
+        return batchMaxInlineBytes;
+    }
+
+    private void setSchedulerMaxQueued(int schedulerMaxQueued) {
+        this.schedulerMaxQueued = schedulerMaxQueued;
+    }
+
+    public int getSchedulerMaxQueued() {
+        return schedulerMaxQueued;
+    }
+
+    private void setUserMaxRunning(int userMaxRunning) {
+        this.userMaxRunning = userMaxRunning;
+    }
+
+    public int getUserMaxRunning() {
+        return userMaxRunning;
+    }
+
+    private void setUserMaxQueued(int userMaxQueued) {
+        this.userMaxQueued = userMaxQueued;
+    }
+
+    public int getUserMaxQueued() {
+        return userMaxQueued;
+    }
+
+    private void setUserMaxBytesInFlight(long userMaxBytesInFlight) {
+        this.userMaxBytesInFlight = userMaxBytesInFlight;
+    }
+
+    public long getUserMaxBytesInFlight() {
+        return userMaxBytesInFlight;
+    }
+
+    public Map<String, Double> getUserWeights() {
+        return userWeights;
+    }
+
+    private void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    // null if there's no limit for this backend.
+    public synchronized Semaphore querySlots(Scope scope) {
+        int n = maxQueriesPerScope.getOrDefault(scope, maxQueries);
+        if (n < 0 && virtualThreads != null) {
+            n = VIRTUAL_MAX_QUERIES;
+        }
+        if (n <= 0) {
+            return null;
+        }
+        final int permits = n;
+        return querySlots.computeIfAbsent(scope, s -> new Semaphore(permits, true));
+    }
+
+    public synchronized void useVirtualThreads() throws ScyllaException {
+        virtualThreads = Threads.virtual("Virtual ");
+        log.info("Running on virtual threads.");
+    }
+
+    public synchronized boolean usesVirtualThreads() {
+        return virtualThreads != null;
+    }
+
+    // a helper thread (not started): virtual if that's what we're running on, a daemon otherwise.
+    public synchronized Thread newThread(Runnable r) {
+        if (virtualThreads != null) {
+            return virtualThreads.newThread(r);
+        }
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public synchronized VerificationCache verificationCache() {
+        if (verificationCache == null) {
+            verificationCache = new VerificationCache(verificationCacheSize,
+                    verificationCacheSize > 0 ? verificationCacheTTL : 0);
+        }
+        return verificationCache;
+    }
+
+    // null if background queries aren't journaled.
+    public synchronized JobJournal journal() throws ScyllaException {
+        if (jobJournal == null && journal) {
+            jobJournal = new JobJournal(journalPath != null ? Paths.get(journalPath) :
+                    Paths.get(getCachePath(), String.format("journal.%s.%d", hostname(), port)));
+        }
+        return jobJournal;
+    }
+
+    public synchronized ConnectionPool connectionPool() {
+        if (connectionPool == null) {
+            connectionPool = new ConnectionPool(jdbcPoolMaxPerKey, jdbcPoolMaxTotal, jdbcPoolIdleTimeout);
+        }
+        return connectionPool;
+    }
+
+    public synchronized ExecutorService compressionPool() {
+        if (compressionPool == null && compressionThreads > 0) {
+            AtomicInteger i = new AtomicInteger(1);
+            compressionPool = Executors.newFixedThreadPool(compressionThreads, r -> {
+                Thread t = new Thread(r, String.format("Compressor %d", i.getAndIncrement()));
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return compressionPool;
+    }
+
     private void setRedis(boolean redis) {
         if (redis) {
             log.info("Using Redis to cache. Query responsibly.");
@@ -227,12 +897,28 @@ public class ScyllaConf {
         this.redisHost = redisHost;
     }
 
-    public Cache cache() throws CacheException {
-        if (redis) {
-            return new RedisCache(pool, redisDB);
-        } else {
-            return new FileSystemCache(getCachePath());
+    public synchronized Cache cache() throws CacheException {
+        if (cache == null) {
+            if (redis) {
+                cache = new RedisCache(pool);
+            } else if (cacheStore.equals("segments")) {
+                SegmentCache sc = new SegmentCache(getCachePath());
+                sc.startCompactor(cacheSweepInterval);
+                cache = sc;
+            } else {
+                FileSystemCache fc = new FileSystemCache(getCachePath(), cacheIndexPath != null ? cacheIndexPath :
+                        FileSystemCache.localIndexPath(getCachePath(), String.valueOf(port)).toString(),
+                        cacheIndexSlots);
+                fc.setMaxBytes(cacheMaxBytes);
+                fc.setShared(cacheShared);
+                fc.startSweeper(cacheSweepInterval);
+                cache = fc;
+            }
+            if (l1MaxBytes > 0) {
+                cache = new TieredCache(cache, l1MaxBytes);
+            }
         }
+        return cache;
     }
 
     private boolean yes(String prop) {
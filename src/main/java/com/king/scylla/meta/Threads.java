@@ -0,0 +1,51 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.meta;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+    Virtual threads, when whatever runs us has them (Java 21 onwards). We're still built for Java 8, so they're
+    reached through reflection: the same package runs everywhere, and the virtual flavour is only there when asked for.
+ */
+public final class Threads {
+    private Threads() {
+    }
+
+    public static boolean virtualAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // virtual threads named `prefix` followed by a counter (from 1).
+    public static ThreadFactory virtual(String prefix) throws ScyllaException {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+            b = builder.getMethod("name", String.class, long.class).invoke(b, prefix, 1L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(b);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException |
+                InvocationTargetException e) {
+            throw new ScyllaException("Virtual threads need Java 21 or newer", e);
+        }
+    }
+
+    // a new thread for each task, no pool.
+    public static ExecutorService perTask(ThreadFactory factory) throws ScyllaException {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new ScyllaException("Virtual threads need Java 21 or newer", e);
+        }
+    }
+}
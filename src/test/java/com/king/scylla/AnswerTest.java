@@ -10,6 +10,11 @@ import com.king.scylla.meta.QConfig;
 import com.king.scylla.meta.ScyllaConf;
 import com.king.scylla.meta.ScyllaException;
 import com.mockrunner.mock.jdbc.MockResultSet;
+import com.mockrunner.mock.jdbc.MockResultSetMetaData;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.joda.time.DateTime;
@@ -21,7 +26,9 @@ import org.junit.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.text.ParseException;
 import java.util.Properties;
 
@@ -125,4 +132,53 @@ public class AnswerTest {
         assertEquals(dt.getMonthOfYear(), 1);
         assertEquals(dt.getDayOfMonth(), 1);
     }
+
+    @Test
+    public void answerFromArrowResultSetTest() throws SQLException, IOException, ScyllaException {
+        MockResultSet rs = new MockResultSet("test");
+        rs.addColumn("intc", new Object[]{1, 2, 3});
+        rs.addColumn("floatc", new Object[]{1.2, 2.4, 3.6});
+        rs.addColumn("strc", new Object[]{"a", "b", "c"});
+
+        // Arrow takes the column types from the metadata.
+        MockResultSetMetaData md = new MockResultSetMetaData();
+        String[] names = {"intc", "floatc", "strc"};
+        int[] types = {Types.INTEGER, Types.DOUBLE, Types.VARCHAR};
+        md.setColumnCount(names.length);
+        for (int i = 1; i <= names.length; i++) {
+            md.setColumnName(i, names[i - 1]);
+            md.setColumnLabel(i, names[i - 1]);
+            md.setColumnType(i, types[i - 1]);
+            md.setNullable(i, ResultSetMetaData.columnNullable);
+        }
+        rs.setResultSetMetaData(md);
+
+        QConfig qc = prepareDummyQConfig();
+        qc.getConf().setFormat(Format.ARROW);
+
+        Answer answer = answerFromResultSet(qc, rs);
+
+        assertTrue(answer.isDone());
+        assertEquals(3, answer.msg.getLong("rows"));
+        assertEquals("arrow", answer.msg.getString("format"));
+
+        byte[] resb = Base64.decodeBase64(answer.msg.getString("res"));
+
+        try (BufferAllocator allocator = new RootAllocator(Long.MAX_VALUE);
+             ArrowStreamReader reader = new ArrowStreamReader(
+                     new BZip2CompressorInputStream(new ByteArrayInputStream(resb)), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertEquals(3, root.getSchema().getFields().size());
+
+            int rows = 0;
+            while (reader.loadNextBatch()) {
+                for (int i = 0; i < root.getRowCount(); i++, rows++) {
+                    assertEquals(rows + 1, root.getVector("intc").getObject(i));
+                    assertEquals(1.2 * (rows + 1), (Double) root.getVector("floatc").getObject(i), 0.001);
+                    assertEquals(String.valueOf((char) ('a' + rows)), root.getVector("strc").getObject(i).toString());
+                }
+            }
+            assertEquals(3, rows);
+        }
+    }
 }
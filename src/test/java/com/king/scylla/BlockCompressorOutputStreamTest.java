@@ -0,0 +1,58 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.meta.Codec;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class BlockCompressorOutputStreamTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    private byte[] prepareData() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i).append("\t").append(i * 1.5).append("\t\"row ").append(i).append("\"\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTripTest() throws IOException {
+        byte[] data = prepareData();
+
+        for (Codec codec : new Codec[]{Codec.BZ2, Codec.GZIP, Codec.LZ4}) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+            // small blocks and a tiny window so that there are plenty of blocks waiting on each other.
+            try (OutputStream cs = new BlockCompressorOutputStream(codec, os, pool, 100000, 2)) {
+                for (int i = 0; i < data.length; i += 4096) {
+                    cs.write(data, i, Math.min(4096, data.length - i));
+                }
+            }
+
+            try (InputStream is = codec.decompress(new ByteArrayInputStream(os.toByteArray()))) {
+                assertArrayEquals(IOUtils.toByteArray(is), data);
+            }
+        }
+    }
+
+    @After
+    public void cleanup() {
+        pool.shutdownNow();
+    }
+}
@@ -6,6 +6,9 @@ package com.king.scylla;
 
 import com.king.scylla.cache.FileSystemCache;
 import com.king.scylla.cache.CacheException;
+import com.king.scylla.cache.Lease;
+import com.king.scylla.cache.Peek;
+import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
@@ -13,13 +16,29 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class FileSystemCacheTest {
@@ -69,10 +88,369 @@ public class FileSystemCacheTest {
         cleanElement(k);
     }
 
+    @Test
+    public void startAndFinishTest() throws IOException, CacheException {
+        String k = getRandomKey();
+
+        fc.start(k, "{}", 3600);
+        assertTrue(fc.exists(k));
+        assertTrue(fc.locked(k));
+
+        fc.finish(k, "{\"status\":\"done\"}", 3600);
+        assertTrue(fc.exists(k));
+        assertFalse(fc.locked(k));
+
+        cleanElement(k);
+    }
+
+    @Test
+    public void leaseTest() throws IOException, CacheException, InterruptedException {
+        String k = getRandomKey();
+
+        Lease l = fc.tryStart(k, "{}", 3600);
+        assertNotNull(l);
+        assertTrue(fc.exists(k));
+        assertTrue(fc.locked(k));
+
+        // somebody else is running it already
+        assertNull(fc.tryStart(k, "{\"status\":\"other\"}", 3600));
+        assertEquals("{}", fc.get(k).toString());
+        assertTrue(fc.renew(l));
+
+        try (OutputStream os = fc.payloadSink(l)) {
+            os.write("some data set".getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(fc.finish(l, "{\"status\":\"done\"}", 3600));
+        assertFalse(fc.locked(k));
+        try (InputStream is = fc.payloadSource(k)) {
+            assertEquals("some data set", IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+
+        // a finished answer isn't run again unless it's forced (which throws it away first)
+        assertNull(fc.tryStart(k, "{}", 3600));
+        fc.delete(k);
+
+        // a lease that ran out can be taken over, and its owner can't write anything anymore
+        Lease stale = fc.tryStart(k, "{}", 1);
+        assertNotNull(stale);
+        Thread.sleep(1100);
+        Lease fresh = fc.tryStart(k, "{}", 3600);
+        assertNotNull(fresh);
+        assertFalse(fc.renew(stale));
+        assertFalse(fc.finish(stale, "{\"status\":\"stale\"}", 3600));
+        assertTrue(fc.locked(k));
+        assertTrue(fc.release(fresh));
+        assertFalse(fc.exists(k));
+
+        cleanElement(k);
+    }
+
+    @Test
+    public void leaseRaceTest() throws Exception {
+        // two Scyllas sharing the cache (each with its index), a few threads each, all after the same stale lock
+        FileSystemCache other = new FileSystemCache(path, path + ".other-index", 1024);
+        fc.setShared(true);
+        other.setShared(true);
+        FileSystemCache[] nodes = {fc, other};
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 20; round++) {
+                String k = getRandomKey();
+                Lease stale = fc.tryStart(k, "{}", 0);
+                assertNotNull(stale);
+                Thread.sleep(5);
+
+                CyclicBarrier start = new CyclicBarrier(8);
+                List<Future<Lease>> tries = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    FileSystemCache node = nodes[i % 2];
+                    tries.add(pool.submit(() -> {
+                        start.await();
+                        Lease l = node.tryStart(k, "{}", 3600);
+                        // whoever gets it gets it for real, everybody else can't even renew it
+                        if (l != null) {
+                            assertTrue(node.renew(l));
+                        }
+                        return l;
+                    }));
+                }
+                List<Lease> won = new ArrayList<>();
+                for (Future<Lease> f : tries) {
+                    if (f.get() != null) {
+                        won.add(f.get());
+                    }
+                }
+                assertEquals(1, won.size());
+                assertFalse(other.renew(stale));
+                assertFalse(other.finish(stale, "{\"status\":\"stale\"}", 3600));
+                assertTrue(other.finish(won.get(0), "{\"status\":\"done\"}", 3600));
+                assertEquals("done", other.get(k).getString("status"));
+                cleanElement(k);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void recoverTest() throws IOException, CacheException {
+        String k = getRandomKey();
+
+        Lease l = fc.tryStart(k, "{}", 3600);
+        assertNotNull(l);
+
+        // the same run, after a restart: the lock file says it's still ours
+        Lease back = new FileSystemCache(path).recover(k, l.getOwner(), 3600);
+        assertTrue(fc.renew(back));
+        assertFalse(fc.renew(fc.recover(k, "somebody else", 3600)));
+        assertTrue(fc.release(back));
+        assertFalse(fc.exists(k));
+
+        cleanElement(k);
+    }
+
+    @Test
+    public void peekTest() throws IOException, CacheException {
+        String done = getRandomKey();
+        String running = getRandomKey();
+        String missing = getRandomKey();
+
+        fc.set(done, "{\"ok\":\"yes\",\"status\":\"done\"}");
+        Lease l = fc.tryStart(running, "{}", 3600);
+
+        List<Peek> peeks = fc.peek(Arrays.asList(done, running, missing), true);
+        assertEquals(peeks.size(), 3);
+        assertTrue(peeks.get(0).exists());
+        assertFalse(peeks.get(0).locked());
+        assertEquals(peeks.get(0).getAnswer().getString("status"), "done");
+        // the placeholder's there, but it's nobody's answer yet
+        assertTrue(peeks.get(1).locked());
+        assertNull(peeks.get(1).getAnswer());
+        assertFalse(peeks.get(2).exists());
+        assertNull(peeks.get(2).getAnswer());
+
+        // only asked for when wanted
+        assertNull(fc.peek(Collections.singletonList(done), false).get(0).getAnswer());
+
+        fc.release(l);
+        cleanElement(done);
+    }
+
+    @Test
+    public void payloadTest() throws IOException, CacheException {
+        String k = getRandomKey();
+        byte[] payload = "some data set".getBytes(StandardCharsets.UTF_8);
+
+        createElement(k);
+        assertNull(fc.payloadSource(k));
+
+        fc.lock(k);
+        try (OutputStream os = fc.payloadSink(k)) {
+            os.write(payload);
+        }
+        fc.unlock(k);
+
+        // replacing the answer keeps the data set
+        fc.set(k, "test again");
+
+        try (InputStream is = fc.payloadSource(k)) {
+            assertArrayEquals(IOUtils.toByteArray(is), payload);
+        }
+
+        cleanElement(k);
+        assertFalse(fc.exists(k));
+    }
+
+    @Test
+    public void indexTest() throws IOException, CacheException {
+        String k = getRandomKey();
+
+        createElement(k);
+        fc.lock(k);
+        fc.expire(k, 3600);
+
+        // a second index in a different place gets built from what's in the directory
+        FileSystemCache rebuilt = new FileSystemCache(path, path + ".index.rebuilt", 1024);
+        assertTrue(rebuilt.exists(k));
+        assertTrue(rebuilt.locked(k));
+
+        fc.unlock(k);
+        fc.expire(k, -1);
+        assertFalse(fc.exists(k));
+
+        cleanElement(k);
+    }
+
+    @Test
+    public void indexHitTest() throws IOException, CacheException {
+        String k = getRandomKey();
+        fc.set(k, "{\"status\":\"done\"}");
+
+        // a lock file the index doesn't know about (nobody else writes here) isn't even looked at
+        Path lock;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(path, "data"))) {
+            lock = ds.iterator().next().resolve("lock");
+        }
+        Files.write(lock, "locked!".getBytes(StandardCharsets.UTF_8));
+        assertFalse(fc.locked(k));
+        Peek p = fc.quickPeek(k, true);
+        assertFalse(p.locked());
+        assertEquals("done", p.getAnswer().getString("status"));
+        p = fc.peek(Collections.singletonList(k), true).get(0);
+        assertFalse(p.locked());
+        assertEquals("done", p.getAnswer().getString("status"));
+
+        // and a miss is one for sure
+        p = fc.quickPeek(getRandomKey(), true);
+        assertFalse(p.exists());
+        assertNull(p.getAnswer());
+
+        Files.delete(lock);
+        cleanElement(k);
+    }
+
+    @Test
+    public void sharedCacheTest() throws IOException, CacheException {
+        // another Scylla on the same cache, with an index of its own
+        FileSystemCache other = new FileSystemCache(path, path + ".other-index", 1024);
+        fc.setShared(true);
+        other.setShared(true);
+        String k = getRandomKey();
+
+        // what it finished isn't in our index, but it's there all the same: it isn't run again
+        Lease l = other.tryStart(k, "{}", 3600);
+        assertTrue(fc.exists(k));
+        assertTrue(fc.locked(k));
+        assertNull(fc.tryStart(k, "{}", 3600));
+        assertTrue(other.finish(l, "{\"status\":\"done\"}", 3600));
+        assertTrue(fc.exists(k));
+        assertFalse(fc.locked(k));
+        assertNull(fc.tryStart(k, "{}", 3600));
+        assertEquals("done", fc.get(k).getString("status"));
+        Peek p = fc.peek(Collections.singletonList(k), true).get(0);
+        assertTrue(p.exists());
+        assertEquals("done", p.getAnswer().getString("status"));
+        // finding out takes the directory, which is a worker's job, and so does reading an answer from there
+        assertNull(fc.quickPeek(k, false));
+        assertNull(other.quickPeek(k, true));
+        assertTrue(other.quickPeek(k, false).exists());
+
+        // and what we threw away isn't there anymore: its index only finds out once it goes for the answer
+        fc.delete(k);
+        assertTrue(other.exists(k));
+        assertNull(other.get(k));
+        assertFalse(other.exists(k));
+        assertNull(other.quickPeek(k, false));
+
+        // not shared, the index is all there is
+        other.set(k, "{\"status\":\"done\"}");
+        assertTrue(fc.exists(k));
+        fc.setShared(false);
+        assertFalse(fc.exists(k));
+        assertFalse(fc.quickPeek(k, false).exists());
+        other.delete(k);
+
+        // an index in the cache directory would be everybody's
+        try {
+            new FileSystemCache(path, path + "/index", 1024);
+            throw new AssertionError("an index in the cache directory");
+        } catch (CacheException e) {
+            assertTrue(e.getMessage().contains("can't be in the cache directory"));
+        }
+    }
+
+    @Test
+    public void sweeperTest() throws IOException, CacheException, InterruptedException {
+        String k = getRandomKey();
+
+        createElement(k);
+        fc.expire(k, -1);
+
+        // the first sweep happens right away
+        fc.startSweeper(3600);
+        for (int i = 0; i < 50 && Paths.get(path, "data").toFile().list().length > 0; i++) {
+            Thread.sleep(100);
+        }
+        fc.stopSweeper();
+
+        assertEquals(Paths.get(path, "data").toFile().list().length, 0);
+    }
+
+    @Test
+    public void evictionTest() throws IOException, CacheException, InterruptedException {
+        String[] ks = {getRandomKey(), getRandomKey(), getRandomKey()};
+
+        for (String k : ks) {
+            createElement(k);
+            try (OutputStream os = fc.payloadSink(k)) {
+                os.write(new byte[100]);
+            }
+        }
+        fc.lock(ks[0]);
+
+        // a bit over 300 bytes in total: one of the two that aren't locked has to go
+        fc.setMaxBytes(250);
+        fc.startSweeper(3600);
+        for (int i = 0; i < 50 && Paths.get(path, "data").toFile().list().length > 2; i++) {
+            Thread.sleep(100);
+        }
+        fc.stopSweeper();
+
+        assertEquals(Paths.get(path, "data").toFile().list().length, 2);
+        assertTrue(fc.exists(ks[0]));
+
+        fc.unlock(ks[0]);
+        for (String k : ks) {
+            cleanElement(k);
+        }
+    }
+
+    @Test
+    public void fullIndexEvictionTest() throws IOException, CacheException, InterruptedException {
+        // an index with room for a single entry: past that, eviction has to look at the directory instead
+        FileSystemCache small = new FileSystemCache(path, path + ".small-index", 1);
+        String[] ks = {getRandomKey(), getRandomKey(), getRandomKey()};
+
+        for (String k : ks) {
+            small.set(k, "test");
+            try (OutputStream os = small.payloadSink(k)) {
+                os.write(new byte[100]);
+            }
+        }
+        small.lock(ks[0]);
+
+        small.setMaxBytes(250);
+        small.startSweeper(3600);
+        for (int i = 0; i < 50 && Paths.get(path, "data").toFile().list().length > 2; i++) {
+            Thread.sleep(100);
+        }
+        small.stopSweeper();
+
+        assertEquals(Paths.get(path, "data").toFile().list().length, 2);
+        assertTrue(small.exists(ks[0]));
+
+        small.unlock(ks[0]);
+        for (String k : ks) {
+            small.delete(k);
+        }
+    }
+
     @After
-    public void cleanup() throws IOException {
+    public void cleanup() throws IOException, CacheException {
         Path p = Paths.get(path);
         Files.walk(p).map(Path::toFile).forEach(File::delete);
         Files.delete(p);
+
+        // the indices (and their locks): next to it, or in the temporary directory
+        String index = FileSystemCache.localIndexPath(path, null).toString();
+        for (Path dir : Arrays.asList(p.getParent(), Paths.get(index).getParent())) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path f : ds) {
+                    if (f.toString().startsWith(path + ".") || f.toString().startsWith(index)) {
+                        Files.deleteIfExists(f);
+                    }
+                }
+            }
+        }
     }
 }
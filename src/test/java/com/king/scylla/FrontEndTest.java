@@ -0,0 +1,332 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrontEndTest {
+    private static JSONObject ask(int port, String question) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            if (question != null) {
+                s.getOutputStream().write(question.getBytes(StandardCharsets.UTF_8));
+            }
+            s.shutdownOutput();
+            BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            JSONObject answer = new JSONObject(br.readLine());
+            // and then it's closed
+            assertEquals(br.read(), -1);
+            return answer;
+        }
+    }
+
+    @Test
+    public void questionsTest() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) ss.getLocalAddress()).getPort();
+
+        FrontEnd fe = new FrontEnd(2, pool, null, null);
+        Thread acceptor = new Thread(() -> {
+            try {
+                fe.serve(ss);
+            } catch (IOException e) {
+                // closed, we're done
+            }
+        });
+        acceptor.start();
+
+        try {
+            JSONObject a = ask(port, null);
+            assertEquals(a.getString("ok"), "no");
+            assertEquals(a.getString("err"), "I got an empty instruction!");
+
+            // not even json, answered without bothering any worker
+            a = ask(port, "this is not a question\r\n");
+            assertEquals(a.getString("ok"), "no");
+
+            // a question in pieces (and way bigger than the read buffer)
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < 10000; i++) {
+                sb.append("\"").append(i).append("\",");
+            }
+            a = ask(port, sb.append("]\n").toString());
+            assertEquals(a.getString("ok"), "no");
+        } finally {
+            fe.shutdown();
+            ss.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void multiplexedTest() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) ss.getLocalAddress()).getPort();
+
+        FrontEnd fe = new FrontEnd(2, pool, null, null);
+        Thread acceptor = new Thread(() -> {
+            try {
+                fe.serve(ss);
+            } catch (IOException e) {
+                // closed, we're done
+            }
+        });
+        acceptor.start();
+
+        try (Socket s = new Socket("localhost", port)) {
+            OutputStream os = s.getOutputStream();
+            BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+
+            os.write("{\"multiplex\": true}\n".getBytes(StandardCharsets.UTF_8));
+            JSONObject a = new JSONObject(br.readLine());
+            assertEquals(a.getString("ok"), "yes");
+            assertEquals(a.getString("multiplex"), "yes");
+
+            // still there after answering: all of these in one go
+            os.write("{\"id\": 1}\n{\"id\": \"two\", \"query\": 3}\nnot json\n".getBytes(StandardCharsets.UTF_8));
+            Set<Object> ids = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                a = new JSONObject(br.readLine());
+                assertEquals(a.getString("ok"), "no");
+                ids.add(a.opt("id") == null ? "none" : a.opt("id").toString());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("1", "two", "none")), ids);
+
+            // once the client's done, so is the connection
+            s.shutdownOutput();
+            assertEquals(br.read(), -1);
+        } finally {
+            fe.shutdown();
+            ss.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void outboundTest() throws IOException {
+        byte[] payload = new byte[Reply.FRAME_SIZE + 666];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 3);
+        }
+        Path f = Files.createTempFile("scylla.outbound.", ".payload");
+        Files.write(f, payload);
+
+        EventLoop loop = new EventLoop("Test loop");
+        Outbound out = new Outbound(loop, () -> {
+        });
+
+        FileChannel fc = FileChannel.open(f, StandardOpenOption.READ);
+        Outbound.Section first = out.open();
+        Outbound.Section second = out.open();
+        // the second one is ready first, but it waits for the first one to be done
+        second.stream().write("second\n".getBytes(StandardCharsets.UTF_8));
+        second.end();
+        first.stream().write("header\n".getBytes(StandardCharsets.UTF_8));
+        first.transfer(fc, 0, payload.length);
+        first.closeWhenSent(fc);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        assertEquals(out.drain(Channels.newChannel(received)), true);
+        assertFalse(fc.isOpen());
+        assertEquals(received.size(), 7 + payload.length);
+
+        first.buffer(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        first.end();
+        assertEquals(out.drain(Channels.newChannel(received)), true);
+
+        byte[] r = received.toByteArray();
+        assertEquals(new String(r, 0, 7, StandardCharsets.UTF_8), "header\n");
+        byte[] data = new byte[payload.length];
+        System.arraycopy(r, 7, data, 0, payload.length);
+        assertArrayEquals(data, payload);
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOfRange(r, 7 + payload.length, 10 + payload.length));
+        assertEquals(new String(r, 10 + payload.length, 7, StandardCharsets.UTF_8), "second\n");
+        assertEquals(r.length, 7 + payload.length + 3 + 7);
+
+        // gone: nothing else gets queued
+        Outbound.Section third = out.open();
+        out.close();
+        try {
+            third.stream().write(1);
+            throw new AssertionError("queued after closing");
+        } catch (IOException e) {
+            // good
+        }
+
+        Files.delete(f);
+    }
+
+    @Test
+    public void inFlightTest() throws Exception {
+        // workers that don't get going until we say so
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger();
+        ExecutorService workers = Executors.newCachedThreadPool();
+        ExecutorService pool = new AbstractExecutorService() {
+            @Override
+            public void execute(Runnable r) {
+                started.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    r.run();
+                });
+            }
+
+            @Override
+            public void shutdown() {
+                workers.shutdownNow();
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                return workers.shutdownNow();
+            }
+
+            @Override
+            public boolean isShutdown() {
+                return workers.isShutdown();
+            }
+
+            @Override
+            public boolean isTerminated() {
+                return workers.isTerminated();
+            }
+
+            @Override
+            public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+                return workers.awaitTermination(timeout, unit);
+            }
+        };
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        ss.bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) ss.getLocalAddress()).getPort();
+
+        FrontEnd fe = new FrontEnd(1, pool, null, null);
+        Thread acceptor = new Thread(() -> {
+            try {
+                fe.serve(ss);
+            } catch (IOException e) {
+                // closed, we're done
+            }
+        });
+        acceptor.start();
+
+        try (Socket s = new Socket("localhost", port)) {
+            OutputStream os = s.getOutputStream();
+            BufferedReader br = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+
+            os.write("{\"multiplex\": true}\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(new JSONObject(br.readLine()).getString("multiplex"), "yes");
+
+            // batches that need a worker (and are too big anyway), way more than can be in flight, in one go
+            StringBuilder batch = new StringBuilder("0");
+            for (int i = 1; i <= 1000; i++) {
+                batch.append(',').append(i);
+            }
+            StringBuilder sb = new StringBuilder();
+            int n = 3 * Conversation.MAX_IN_FLIGHT;
+            for (int i = 0; i < n; i++) {
+                sb.append(String.format("{\"id\": %d, \"get\": true, \"batch\": [%s]}\n", i, batch));
+            }
+            Future<?> writing = Executors.newSingleThreadExecutor().submit(() -> {
+                os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+
+            // the ones past the limit aren't even parsed until there's room
+            Thread.sleep(500);
+            assertEquals(started.get(), Conversation.MAX_IN_FLIGHT);
+
+            go.countDown();
+            writing.get(10, TimeUnit.SECONDS);
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < n; i++) {
+                JSONObject a = new JSONObject(br.readLine());
+                assertTrue(a.getString("err").contains("too many queries"));
+                ids.add(a.getInt("id"));
+            }
+            assertEquals(ids.size(), n);
+            assertEquals(started.get(), n);
+
+            s.shutdownOutput();
+            assertEquals(br.read(), -1);
+        } finally {
+            fe.shutdown();
+            ss.close();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void connectionPendingTest() throws Exception {
+        EventLoop loop = new EventLoop("Test loop");
+        Outbound out = new Outbound(loop, () -> {
+        });
+
+        Outbound.Section first = out.open();
+        Outbound.Section second = out.open();
+        Outbound.Section third = out.open();
+        byte[] half = new byte[(int) (Outbound.MAX_PENDING / 2) + 1];
+        second.stream().write(half);
+        third.stream().write(half);
+
+        // neither is over its own limit, but together they are: the third waits for the ones before it
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<?> more = pool.submit(() -> {
+            third.stream().write(1);
+            return null;
+        });
+        Thread.sleep(300);
+        assertFalse(more.isDone());
+
+        // the one going out doesn't wait for anybody
+        first.stream().write(half);
+        first.end();
+        second.end();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        out.drain(Channels.newChannel(received));
+        more.get(10, TimeUnit.SECONDS);
+        third.end();
+        out.drain(Channels.newChannel(received));
+        assertEquals(received.size(), 3 * half.length + 1);
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,245 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.king.scylla.QueryScheduler.Lane.BATCH;
+import static com.king.scylla.QueryScheduler.Lane.INTERACTIVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuerySchedulerTest {
+    @Test
+    public void fairnessTest() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        QueryScheduler qs = new QueryScheduler(pool, 1, 1, 10, 4, 3, 0, null);
+
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+
+        QueryScheduler.Job first = t -> {
+            go.await();
+            ran.add("a1");
+            done.countDown();
+        };
+        qs.submit("a", "a1", BATCH, null, first);
+        for (String key : Arrays.asList("a2", "a3", "a4")) {
+            qs.submit("a", key, BATCH, null, t -> {
+                ran.add(key);
+                done.countDown();
+            });
+        }
+        qs.submit("b", "b1", BATCH, null, t -> {
+            ran.add("b1");
+            done.countDown();
+        });
+
+        // "a" has had one go already, "b" doesn't wait for all of them
+        assertEquals(1, qs.running());
+        assertEquals(4, qs.queued());
+        assertEquals(0, qs.position("a1"));
+        assertEquals(1, qs.position("a2"));
+        assertEquals(2, qs.position("b1"));
+        assertEquals(3, qs.position("a3"));
+
+        // "a" can't have more than 3 waiting
+        try {
+            qs.submit("a", "a5", BATCH, null, t -> {
+            });
+            throw new AssertionError("a fourth query was queued");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("3 queries waiting"));
+        }
+
+        // it never runs, and whoever was behind it moves up
+        assertTrue(qs.cancel("a3"));
+        assertFalse(qs.cancel("a3"));
+        assertFalse(qs.cancel("a1"));
+        assertEquals(3, qs.position("a4"));
+
+        go.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a1", "a2", "b1", "a4"), ran);
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void boundsTest() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        // one each at a time, no more than two waiting overall
+        QueryScheduler qs = new QueryScheduler(pool, 4, 4, 2, 1, 10, 0, null);
+
+        CountDownLatch go = new CountDownLatch(1);
+        QueryScheduler.Job blocked = t -> go.await();
+
+        qs.submit("a", "a1", BATCH, null, blocked);
+        qs.submit("a", "a2", BATCH, null, blocked);
+        qs.submit("b", "b1", BATCH, null, blocked);
+        assertEquals(2, qs.running());
+        assertEquals(1, qs.queued());
+
+        qs.submit("c", "c1", BATCH, null, blocked);
+        qs.submit("a", "a3", BATCH, null, blocked);
+        assertEquals(3, qs.running());
+        assertEquals(2, qs.queued());
+
+        try {
+            qs.submit("d", "d1", BATCH, null, blocked);
+            throw new AssertionError("queued past the limit");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("queue is full"));
+        }
+
+        go.countDown();
+        for (int i = 0; i < 100 && qs.running() + qs.queued() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, qs.running());
+        assertEquals(0, qs.queued());
+        pool.shutdown();
+    }
+
+    @Test
+    public void lanesTest() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        // plenty of room in the lanes, one slot for "hive"
+        QueryScheduler qs = new QueryScheduler(pool, 4, 4, 10, 10, 10, 0, null);
+        Semaphore hive = new Semaphore(1, true);
+
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        qs.submit("a", "h1", BATCH, hive, t -> {
+            go.await();
+            ran.add("h1");
+        });
+        qs.submit("a", "h2", BATCH, hive, t -> {
+            ran.add("h2");
+            done.countDown();
+        });
+        // waiting for hive doesn't hold up anybody else
+        CountDownLatch exasol = new CountDownLatch(1);
+        qs.submit("a", "e1", BATCH, null, t -> exasol.countDown());
+        assertTrue(exasol.await(10, TimeUnit.SECONDS));
+
+        // and the cheap ones go first
+        qs.submit("b", "i1", INTERACTIVE, hive, t -> {
+            ran.add("i1");
+            done.countDown();
+        });
+        assertEquals(1, qs.position("i1"));
+        assertEquals(2, qs.position("h2"));
+
+        go.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("h1", "i1", "h2"), ran);
+        for (int i = 0; i < 100 && qs.running() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, hive.availablePermits());
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void usersAcrossLanesTest() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        // plenty of room in the lanes, one running and two waiting per user
+        QueryScheduler qs = new QueryScheduler(pool, 4, 4, 10, 1, 2, 0, null);
+
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+
+        qs.submit("a", "a1", INTERACTIVE, null, t -> {
+            go.await();
+            ran.add("a1");
+            done.countDown();
+        });
+        // "a" is running something already, it doesn't matter which lane
+        qs.submit("a", "a2", BATCH, null, t -> {
+            ran.add("a2");
+            done.countDown();
+        });
+        qs.submit("a", "a3", INTERACTIVE, null, t -> {
+            ran.add("a3");
+            done.countDown();
+        });
+        assertEquals(1, qs.running());
+        assertEquals(2, qs.queued());
+
+        // and its waiting queries add up across lanes too
+        try {
+            qs.submit("a", "a4", BATCH, null, t -> {
+            });
+            throw new AssertionError("a third query was queued");
+        } catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage().contains("2 queries waiting"));
+        }
+
+        // what "a" spent in the interactive lane counts in the batch one: "b" goes first
+        CountDownLatch b = new CountDownLatch(1);
+        qs.submit("b", "b1", BATCH, null, t -> b.countDown());
+        assertTrue(b.await(10, TimeUnit.SECONDS));
+
+        go.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a1", "a3", "a2"), ran);
+        for (int i = 0; i < 100 && qs.running() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, qs.running());
+        assertEquals(0, qs.queued());
+
+        pool.shutdown();
+    }
+
+    @Test
+    public void rejectedTest() throws InterruptedException {
+        // an executor that's been shut down
+        QueryScheduler qs = new QueryScheduler(r -> {
+            throw new RejectedExecutionException("shutting down");
+        }, 4, 4, 10, 10, 10, 0, null);
+        Semaphore hive = new Semaphore(1, true);
+
+        List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+        QueryScheduler.Job job = new QueryScheduler.Job() {
+            @Override
+            public void run(QueryScheduler.Ticket ticket) {
+                throw new AssertionError("a rejected query ran");
+            }
+
+            @Override
+            public void rejected(QueryScheduler.Ticket ticket, RejectedExecutionException e) {
+                rejected.add(e.getMessage());
+            }
+        };
+        qs.submit("a", "a1", BATCH, hive, job);
+        qs.submit("a", "a2", INTERACTIVE, hive, job);
+
+        // nobody is left waiting for a query that will never run
+        assertEquals(Arrays.asList("shutting down", "shutting down"), rejected);
+        assertEquals(0, qs.running());
+        assertEquals(0, qs.queued());
+        assertEquals(0, qs.position("a1"));
+        assertEquals(1, hive.availablePermits());
+    }
+}
@@ -0,0 +1,120 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReplyTest {
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) != '\n') {
+            line.write(c);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void classicReplyTest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Reply(os, false).send(Answer.emptyAnswer().ok(true));
+
+        assertEquals(new String(os.toByteArray(), StandardCharsets.UTF_8), "{\"ok\":\"yes\"}\n");
+    }
+
+    @Test
+    public void streamedReplyTest() throws IOException {
+        byte[] payload = new byte[Reply.FRAME_SIZE + 666];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        JSONObject jo = new JSONObject();
+        jo.put("ok", "yes");
+        jo.put("res", Base64.encodeBase64String(payload));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Reply(os, true).send(Answer.answerFromJSONObject(jo));
+
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(os.toByteArray()));
+
+        JSONObject header = new JSONObject(readLine(is));
+        assertFalse(header.has("res"));
+        assertEquals(header.getString("codec"), "bz2");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int n;
+        while ((n = is.readInt()) > 0) {
+            byte[] frame = new byte[n];
+            is.readFully(frame);
+            received.write(frame);
+        }
+
+        assertArrayEquals(received.toByteArray(), payload);
+        assertEquals(is.read(), -1);
+    }
+
+    @Test
+    public void streamedReplyFromFileTest() throws IOException {
+        byte[] payload = new byte[Reply.FRAME_SIZE * 3 + 666];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 7);
+        }
+
+        Path f = Files.createTempFile("scylla.reply.", ".payload");
+        Files.write(f, payload);
+
+        JSONObject jo = new JSONObject();
+        jo.put("ok", "yes");
+        jo.put("codec", "none");
+        jo.put("size", payload.length);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Reply(os, Channels.newChannel(os), true).send(Answer.answerFromJSONObject(jo),
+                FileChannel.open(f, StandardOpenOption.READ));
+        Files.delete(f);
+
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(os.toByteArray()));
+
+        assertEquals(new JSONObject(readLine(is)).getString("codec"), "none");
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int n;
+        while ((n = is.readInt()) > 0) {
+            byte[] frame = new byte[n];
+            is.readFully(frame);
+            received.write(frame);
+        }
+
+        assertArrayEquals(received.toByteArray(), payload);
+        assertEquals(is.read(), -1);
+    }
+
+    @Test
+    public void streamedReplyWithoutDataTest() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new Reply(os, true).send(Answer.emptyAnswer().ok(false).err("nope"));
+
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(os.toByteArray()));
+
+        assertEquals(new JSONObject(readLine(is)).getString("err"), "nope");
+        assertEquals(is.readInt(), 0);
+        assertEquals(is.read(), -1);
+    }
+}
@@ -0,0 +1,345 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.cache.Cache;
+import com.king.scylla.cache.CacheException;
+import com.king.scylla.connectors.DBConnector;
+import com.king.scylla.meta.QConfig;
+import com.king.scylla.meta.ScyllaConf;
+import com.king.scylla.meta.ScyllaException;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.king.scylla.VerificationAnswer.emptyVerificationAnswer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScyllaTest {
+    String path = "/tmp/test.scylla.batch." + Math.abs(new Random().nextLong()) + "." + new Date().getTime();
+    ScyllaConf conf;
+
+    @Before
+    public void init() {
+        Properties properties = new Properties();
+        properties.setProperty("cache_path", path);
+        properties.setProperty("cache_index_path", path + ".index");
+        properties.setProperty("hive_jdbcstring", "jdbc:hive2://localhost");
+        // room for the first data set below (80 bytes of base64), but not for the second one as well
+        properties.setProperty("batch_max_inline_bytes", "100");
+        conf = new ScyllaConf(properties);
+    }
+
+    private String key(String query) {
+        JSONObject q = new JSONObject();
+        q.put("user", "test");
+        q.put("query", query);
+        QConfig qc = QConfig.qcFromInstruction(q, null);
+        qc.setConf(conf);
+        return qc.getKey();
+    }
+
+    // a finished answer with a data set of its own
+    private void cache(String query, byte[] payload) throws IOException, CacheException {
+        Cache cache = conf.cache();
+        String k = key(query);
+        cache.set(k, String.format("{\"ok\":\"yes\",\"status\":\"done\",\"size\":%d}", payload.length));
+        try (OutputStream os = cache.payloadSink(k)) {
+            os.write(payload);
+        }
+    }
+
+    private JSONObject ask(String question) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Scylla("test", null, conf).answer(question, stream -> new Reply(out, stream), false);
+        return new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8).trim());
+    }
+
+    // what a quick answer sends, null if it left the question for a worker (having sent nothing).
+    private String askQuickly(String question) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean answered = new Scylla("test", null, conf).answer(question, stream -> new Reply(out, stream), true);
+        assertEquals(answered, out.size() > 0);
+        return answered ? new String(out.toByteArray(), StandardCharsets.UTF_8) : null;
+    }
+
+    @Test
+    public void quickTest() throws IOException, CacheException, ScyllaException {
+        conf.check();
+        byte[] payload = new byte[60];
+        new Random().nextBytes(payload);
+        cache("select 1", payload);
+        conf.cache().set(key("select 2"), "{\"ok\":\"yes\",\"status\":\"done\"}");
+        conf.cache().set(key("select 3"), "{}");
+        conf.cache().lock(key("select 3"));
+
+        // straight from the index, and a data set that's in a file is streamed from there
+        assertEquals(new JSONObject(askQuickly("{\"user\": \"test\", \"query\": \"select 2\"}").trim())
+                .getString("status"), "done");
+        assertNotNull(askQuickly("{\"user\": \"test\", \"query\": \"select 1\", \"stream\": true}"));
+        assertEquals(new JSONObject(askQuickly("{\"user\": \"test\", \"query\": \"select 3\", \"peek\": true}")
+                .trim()).getString("peek"), "locked");
+
+        // the cache isn't shared, so a miss is one for sure
+        assertEquals(new JSONObject(askQuickly("{\"user\": \"test\", \"query\": \"select 4\", \"peek\": true}")
+                .trim()).getString("peek"), "no");
+
+        // a classic reply has its data set inlined, and misses and forced ones get launched: that's all a worker's job
+        assertNull(askQuickly("{\"user\": \"test\", \"query\": \"select 1\"}"));
+        assertNull(askQuickly("{\"user\": \"test\", \"query\": \"select 4\"}"));
+        assertNull(askQuickly("{\"user\": \"test\", \"query\": \"select 2\", \"force\": true}"));
+    }
+
+    @Test
+    public void batchTest() throws IOException, CacheException {
+        byte[] first = new byte[60];
+        byte[] second = new byte[60];
+        new Random().nextBytes(first);
+        new Random().nextBytes(second);
+        cache("select 1", first);
+        cache("select 2", second);
+        conf.cache().set(key("select 3"), "{}");
+        conf.cache().lock(key("select 3"));
+
+        String batch = "[{\"query\": \"select 1\"}, {\"query\": \"select 2\"}, {\"query\": \"select 3\"}, " +
+                "{\"query\": \"select 4\"}, \"not a query\", {\"query\": \"select 5\", \"user\": 5}]";
+
+        // just peeking
+        JSONObject a = ask("{\"user\": \"test\", \"batch\": " + batch + "}");
+        assertEquals(a.getString("ok"), "yes");
+        assertEquals(a.getString("status"), "batch");
+        JSONArray answers = a.getJSONArray("answers");
+        assertEquals(answers.length(), 6);
+        assertEquals(answers.getJSONObject(0).getString("peek"), "yes");
+        assertFalse(answers.getJSONObject(0).has("res"));
+        assertEquals(answers.getJSONObject(1).getString("peek"), "yes");
+        assertEquals(answers.getJSONObject(2).getString("peek"), "locked");
+        assertEquals(answers.getJSONObject(3).getString("peek"), "no");
+        assertEquals(answers.getJSONObject(4).getString("ok"), "no");
+        assertEquals(answers.getJSONObject(5).getString("ok"), "no");
+
+        // from the event loop only when every query can be told from the index (the cache isn't shared, so that's
+        // misses too), otherwise the whole batch is a worker's
+        answers = new JSONObject(askQuickly("{\"user\": \"test\", \"batch\": " + batch + "}").trim())
+                .getJSONArray("answers");
+        assertEquals(answers.length(), 6);
+        assertEquals(answers.getJSONObject(0).getString("peek"), "yes");
+        assertEquals(answers.getJSONObject(2).getString("peek"), "locked");
+        assertEquals(answers.getJSONObject(3).getString("peek"), "no");
+        assertEquals(answers.getJSONObject(4).getString("ok"), "no");
+        assertNull(askQuickly("{\"user\": \"test\", \"get\": true, \"batch\": " + batch + "}"));
+
+        // and getting: the first data set fits in the answer, the second one doesn't anymore
+        answers = ask("{\"user\": \"test\", \"get\": true, \"batch\": " + batch + "}").getJSONArray("answers");
+        assertEquals(answers.length(), 6);
+        JSONObject done = answers.getJSONObject(0);
+        assertEquals(done.getString("peek"), "yes");
+        assertEquals(done.getString("status"), "done");
+        assertArrayEquals(Base64.getMimeDecoder().decode(done.getString("res")), first);
+
+        JSONObject big = answers.getJSONObject(1);
+        assertEquals(big.getString("peek"), "yes");
+        assertFalse(big.has("res"));
+        assertEquals(big.getLong("size"), 60);
+
+        assertEquals(answers.getJSONObject(2).getString("peek"), "locked");
+        assertFalse(answers.getJSONObject(2).has("res"));
+        assertEquals(answers.getJSONObject(3).getString("peek"), "no");
+
+        // too many of them
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i <= 1000; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"query\": \"select ").append(i).append("\"}");
+        }
+        a = ask("{\"user\": \"test\", \"batch\": " + sb.append("]").toString() + "}");
+        assertEquals(a.getString("ok"), "no");
+        assertTrue(a.getString("err").contains("too many"));
+    }
+
+    // launches whatever it's asked once `go` opens: in the foreground (a data set of its own) unless `background`,
+    // and not at all if `fail`. `launches` counts the connectors it builds.
+    private Scylla launcher(QueryScheduler scheduler, AtomicInteger launches, CountDownLatch go, boolean background,
+                            boolean fail) {
+        return new Scylla("test", scheduler, conf) {
+            @Override
+            DBConnector connector(QConfig qc) throws ScyllaException {
+                launches.incrementAndGet();
+                return new DBConnector(qc) {
+                    @Override
+                    public VerificationAnswer verifyQuery() throws ScyllaException {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            throw new ScyllaException("interrupted", e);
+                        }
+                        if (fail) {
+                            throw new ScyllaException("no database here");
+                        }
+                        return emptyVerificationAnswer().nobg(!background);
+                    }
+
+                    @Override
+                    public Answer query(boolean update, OutputStream sink) throws IOException {
+                        try (OutputStream os = sink) {
+                            os.write(new byte[]{1, 2, 3});
+                        }
+                        return Answer.answerFromJSONObject(new JSONObject().put("size", 3));
+                    }
+                };
+            }
+        };
+    }
+
+    private Thread asking(Scylla scylla, String question, JSONObject[] answer) {
+        Thread t = new Thread(() -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                scylla.answer(question, stream -> new Reply(out, stream), false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            answer[0] = new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8).trim());
+        });
+        t.start();
+        return t;
+    }
+
+    // the first of two identical questions is launched (and held back), the second one comes along: it has to wait
+    // for the first one's flight instead of launching its own.
+    private JSONObject[] together(Scylla first, Scylla second, String question, AtomicInteger launches,
+                                  CountDownLatch go) throws InterruptedException {
+        JSONObject[] a = new JSONObject[1];
+        JSONObject[] b = new JSONObject[1];
+        Thread ta = asking(first, question, a);
+        while (launches.get() == 0) {
+            Thread.sleep(1);
+        }
+        Thread tb = asking(second, question, b);
+        while (tb.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        go.countDown();
+        ta.join();
+        tb.join();
+        return new JSONObject[]{a[0], b[0]};
+    }
+
+    @Test
+    public void flightsTest() throws InterruptedException, ScyllaException, CacheException {
+        conf.check();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        QueryScheduler scheduler = new QueryScheduler(pool, 4, 4, 10, 10, 10, 0, null);
+        try {
+            // in the foreground: both get the data set
+            AtomicInteger launches = new AtomicInteger();
+            CountDownLatch go = new CountDownLatch(1);
+            JSONObject[] answers = together(launcher(scheduler, launches, go, false, false),
+                    launcher(scheduler, launches, go, false, false), "{\"user\": \"test\", \"query\": \"select 1\"}",
+                    launches, go);
+            assertEquals(launches.get(), 1);
+            assertEquals(answers[0].getString("status"), "done");
+            assertEquals(answers[1].getString("status"), "done");
+            assertEquals(answers[1].getString("res"), answers[0].getString("res"));
+
+            // in the background: the second one finds it locked
+            launches.set(0);
+            go = new CountDownLatch(1);
+            answers = together(launcher(scheduler, launches, go, true, false),
+                    launcher(scheduler, launches, go, true, false), "{\"user\": \"test\", \"query\": \"select 2\"}",
+                    launches, go);
+            assertEquals(launches.get(), 1);
+            assertEquals(answers[0].getString("status"), "pending");
+            assertEquals(answers[1].getString("status"), "locked");
+            String k = key("select 2");
+            while (conf.cache().locked(k)) {
+                Thread.sleep(1);
+            }
+            assertEquals(conf.cache().get(k).getLong("size"), 3);
+
+            // a failed launch doesn't leave its flight behind: the next one goes again
+            launches.set(0);
+            go = new CountDownLatch(0);
+            String question = "{\"user\": \"test\", \"query\": \"select 3\"}";
+            JSONObject[] a = new JSONObject[1];
+            asking(launcher(scheduler, launches, go, false, true), question, a).join();
+            asking(launcher(scheduler, launches, go, false, true), question, a).join();
+            assertEquals(launches.get(), 2);
+            assertEquals(a[0].getString("ok"), "no");
+            assertEquals(a[0].getString("err"), "no database here");
+        } finally {
+            // the background query lets go of its entry's guard only after unlocking it, it's waited for before the
+            // cache goes away.
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(new File(path));
+        FileUtils.deleteQuietly(new File(path + ".index"));
+        FileUtils.deleteQuietly(new File(path + ".index.lock"));
+    }
+
+    @Test
+    public void cappedTest() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long[] passed = {0};
+        OutputStream counting = new OutputStream() {
+            @Override
+            public void write(int b) {
+                passed[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                passed[0] += len;
+            }
+        };
+
+        // small ones go through untouched
+        try (OutputStream os = Scylla.capped(out)) {
+            os.write("hello".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("hello", out.toString("UTF-8"));
+
+        // big ones stop right there, and what's past the limit never gets written
+        byte[] chunk = new byte[1 << 20];
+        OutputStream os = Scylla.capped(counting);
+        try {
+            for (long n = 0; n <= Scylla.MAX_DATA_SET; n += chunk.length) {
+                os.write(chunk);
+            }
+            throw new AssertionError("a data set past the limit went through");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("too big"));
+        }
+        assertTrue(passed[0] <= Scylla.MAX_DATA_SET);
+    }
+}
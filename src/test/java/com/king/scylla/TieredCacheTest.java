@@ -0,0 +1,147 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla;
+
+import com.king.scylla.cache.CacheException;
+import com.king.scylla.cache.FileSystemCache;
+import com.king.scylla.cache.TieredCache;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TieredCacheTest {
+    FileSystemCache fc;
+    TieredCache tc;
+    String path = "/tmp/test.scylla.tcache." + Math.abs(new Random().nextLong()) + "." + new Date().getTime();
+
+    @Before
+    public void init() throws CacheException {
+        fc = new FileSystemCache(path, path + ".index", 1024);
+        tc = new TieredCache(fc, 1 << 20);
+    }
+
+    private void write(OutputStream os, byte[] b) throws IOException {
+        try (OutputStream o = os) {
+            o.write(b);
+        }
+    }
+
+    private byte[] read(InputStream is) throws IOException {
+        try (InputStream i = is) {
+            return IOUtils.toByteArray(i);
+        }
+    }
+
+    @Test
+    public void hotEntryTest() throws IOException, CacheException {
+        String k = "junit_test_" + new Random().nextLong();
+        byte[] payload = "some data set".getBytes(StandardCharsets.UTF_8);
+        byte[] other = "some other data set".getBytes(StandardCharsets.UTF_8);
+
+        tc.set(k, "{}");
+        write(tc.payloadSink(k), payload);
+        tc.set(k, "{\"status\":\"done\",\"size\":" + payload.length + "}");
+
+        // asked for twice, so it's kept in memory from now on
+        tc.get(k);
+        tc.get(k);
+        assertEquals(tc.quickPeek(k, true).getAnswer().getString("status"), "done");
+        // and what isn't there isn't, as far as the index knows (nobody else writes to the cache)
+        assertFalse(tc.quickPeek(k + "_not_there", true).exists());
+
+        // changes behind its back aren't seen ...
+        write(fc.payloadSink(k), other);
+        assertArrayEquals(read(tc.payloadSource(k)), payload);
+
+        // ... the ones going through it are
+        tc.set(k, "{\"status\":\"done\",\"size\":" + other.length + "}");
+        assertArrayEquals(read(tc.payloadSource(k)), other);
+
+        tc.delete(k);
+    }
+
+    // a finished entry with `payload` as its data set, asked for often enough to be kept in memory.
+    private void hot(String k, byte[] payload, int offset) throws IOException, CacheException {
+        fc.set(k, "{}");
+        write(fc.payloadSink(k), payload);
+        fc.set(k, "{\"status\":\"done\",\"size\":" + payload.length + "}", offset);
+        tc.get(k);
+        tc.get(k);
+    }
+
+    private boolean hasPayload(String k) throws IOException, CacheException {
+        try (InputStream is = tc.payloadSource(k)) {
+            return is != null;
+        }
+    }
+
+    @Test
+    public void behindItsBackTest() throws IOException, CacheException, InterruptedException {
+        String[] ks = {"junit_test_" + new Random().nextLong(), "junit_test_" + new Random().nextLong(),
+                "junit_test_" + new Random().nextLong(), "junit_test_" + new Random().nextLong()};
+        byte[] payload = "some data set".getBytes(StandardCharsets.UTF_8);
+        byte[] other = "a data set run again".getBytes(StandardCharsets.UTF_8);
+
+        // deleted by somebody else
+        hot(ks[0], payload, 3600);
+        fc.delete(ks[0]);
+        assertNull(tc.get(ks[0]));
+        assertNull(tc.payloadSource(ks[0]));
+
+        // run again by somebody else: another answer, and the data set that goes with it
+        hot(ks[1], payload, 3600);
+        write(fc.payloadSink(ks[1]), other);
+        fc.set(ks[1], "{\"status\":\"done\",\"size\":" + other.length + "}", 3600);
+        assertEquals(tc.quickPeek(ks[1], true).getAnswer().getInt("size"), other.length);
+        assertArrayEquals(read(tc.payloadSource(ks[1])), other);
+
+        // expired, even if nobody swept it away yet
+        hot(ks[2], payload, 1);
+        write(fc.payloadSink(ks[2]), other);
+        assertArrayEquals(read(tc.payloadSource(ks[2])), payload);
+        Thread.sleep(1100);
+        assertArrayEquals(read(tc.payloadSource(ks[2])), other);
+
+        // swept away by the lower tier
+        hot(ks[3], payload, 3600);
+        fc.expire(ks[3], -1);
+        fc.startSweeper(3600);
+        for (int i = 0; i < 50 && hasPayload(ks[3]); i++) {
+            Thread.sleep(100);
+        }
+        fc.stopSweeper();
+        assertNull(tc.payloadSource(ks[3]));
+
+        for (String k : ks) {
+            tc.delete(k);
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        Path p = Paths.get(path);
+        Files.walk(p).map(Path::toFile).forEach(File::delete);
+        Files.delete(p);
+        Files.deleteIfExists(Paths.get(path + ".index"));
+        Files.deleteIfExists(Paths.get(path + ".index.lock"));
+    }
+}
@@ -0,0 +1,92 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheIndexTest {
+    Path path = Paths.get("/tmp/test.scylla.index." + Math.abs(new Random().nextLong()) + "." + new Date().getTime());
+    CacheIndex index;
+
+    @Before
+    public void init() throws IOException, CacheException {
+        Files.createDirectories(path.resolve("data"));
+        index = CacheIndex.open(path.resolve("index"), path.resolve("data"), 1024);
+    }
+
+    @Test
+    public void churnTest() {
+        // a few hundred entries that stay, and a lot more that come and go
+        for (int i = 0; i < 300; i++) {
+            assertTrue(index.put(DigestUtils.sha256Hex("stays" + i)));
+            index.size(DigestUtils.sha256Hex("stays" + i), i);
+        }
+        for (int i = 0; i < 100000; i++) {
+            String h = DigestUtils.sha256Hex("goes" + i);
+            assertTrue(index.put(h));
+            index.remove(h);
+        }
+
+        // without getting rid of the tombstones every miss would end up going through the whole table
+        int probes = 0;
+        for (int i = 0; i < 100; i++) {
+            String h = DigestUtils.sha256Hex("missing" + i);
+            assertFalse(index.exists(h));
+            probes += index.probes(h);
+        }
+        assertTrue(probes / 100 < 32);
+
+        long bytes = 0;
+        for (int i = 0; i < 300; i++) {
+            assertTrue(index.exists(DigestUtils.sha256Hex("stays" + i)));
+            bytes += i;
+        }
+        assertEquals(index.bytes(), bytes);
+        assertFalse(index.isFull());
+    }
+
+    @Test
+    public void leastRecentlyUsedTest() {
+        for (int i = 0; i < 10; i++) {
+            String h = DigestUtils.sha256Hex("k" + i);
+            index.put(h);
+            index.size(h, 100);
+        }
+        index.lock(DigestUtils.sha256Hex("k0"), 0);
+
+        // just enough of them to free what's needed, and never a locked one
+        List<String> l = index.leastRecentlyUsed(250);
+        assertEquals(l.size(), 3);
+        assertFalse(l.contains(DigestUtils.sha256Hex("k0")));
+        for (String h : l) {
+            assertTrue(index.exists(h));
+        }
+
+        assertEquals(index.leastRecentlyUsed(10000).size(), 9);
+        assertTrue(index.leastRecentlyUsed(0).isEmpty());
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(new File(path.toString()));
+    }
+}
@@ -0,0 +1,132 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpirySweeperTest {
+    FileSystemCache fc;
+    String path = "/tmp/test.scylla.sweeper." + Math.abs(new Random().nextLong()) + "." + new Date().getTime();
+
+    @Before
+    public void init() throws CacheException {
+        fc = new FileSystemCache(path, path + ".index", 1024);
+    }
+
+    @Test
+    public void sweepTest() throws IOException, CacheException {
+        fc.set("gone", "{}");
+        fc.set("stays", "{}");
+        fc.expire("gone", -1);
+        fc.expire("stays", 3600);
+
+        ExpirySweeper sweeper = new ExpirySweeper(fc, 3600);
+        sweeper.schedule(Cache.hash("gone"), expiration("gone"));
+        sweeper.schedule(Cache.hash("stays"), expiration("stays"));
+
+        assertEquals(sweeper.sweep(), 1);
+        assertEquals(sweeper.pending(), 1);
+        assertTrue(!fc.exists("gone"));
+        assertTrue(fc.exists("stays"));
+    }
+
+    @Test
+    public void renewTest() throws IOException, CacheException {
+        fc.set("renewed", "{}");
+        fc.expire("renewed", 3600);
+        ExpirySweeper sweeper = new ExpirySweeper(fc, 3600);
+
+        // a long query's lease, renewed over and over: the old expiration times don't pile up
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < 10000; i++) {
+            sweeper.schedule(Cache.hash("renewed"), now - 10000 + i);
+            sweeper.schedule(Cache.hash("other" + (i % 10)), now + 3600 + i);
+        }
+        assertEquals(sweeper.pending(), 11);
+        assertTrue(sweeper.heapSize() <= 2 * 11 + 64);
+
+        // what's due is only looked at once
+        fc.expire("renewed", -1);
+        sweeper.schedule(Cache.hash("renewed"), expiration("renewed"));
+        assertEquals(sweeper.sweep(), 1);
+        assertEquals(sweeper.pending(), 10);
+        assertTrue(!fc.exists("renewed"));
+    }
+
+    @Test
+    public void sizeTest() throws IOException, CacheException {
+        // what counts against the budget is what the answers take on disk, not how many chars they have
+        fc.set("ascii", "{\"a\":\"plain\"}");
+        fc.set("other", "{\"a\":\"\u00e9t\u00e9 \u6771\u4eac \ud83d\ude00\"}");
+        long size = 0;
+        for (String k : new String[]{"ascii", "other"}) {
+            size += Files.size(Paths.get(path, "data", Cache.hash(k), "data"));
+        }
+        assertEquals(fc.bytes(), size);
+    }
+
+    @Test
+    public void sweepRaceTest() throws Exception {
+        // an expired entry being set again while the sweeper is on it: whichever goes first, the new answer stays.
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ExpirySweeper sweeper = new ExpirySweeper(fc, 3600);
+        try {
+            for (int i = 0; i < 200; i++) {
+                String val = String.format("{\"round\":%d}", i);
+                fc.set("k", "{}");
+                fc.expire("k", -1);
+                sweeper.schedule(Cache.hash("k"), expiration("k"));
+
+                CyclicBarrier barrier = new CyclicBarrier(2);
+                Future<?> sweep = pool.submit(() -> {
+                    barrier.await();
+                    return sweeper.sweep();
+                });
+                Future<?> set = pool.submit(() -> {
+                    barrier.await();
+                    fc.set("k", val);
+                    return null;
+                });
+                sweep.get();
+                set.get();
+
+                assertTrue(fc.exists("k"));
+                assertEquals(fc.get("k").getInt("round"), i);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private long expiration(String key) throws IOException, CacheException {
+        byte[] b = Files.readAllBytes(Paths.get(path, "data", Cache.hash(key), "expire"));
+        return Long.parseLong(new String(b, StandardCharsets.UTF_8).trim());
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(new File(path));
+        Files.deleteIfExists(Paths.get(path + ".index"));
+        Files.deleteIfExists(Paths.get(path + ".index.lock"));
+    }
+}
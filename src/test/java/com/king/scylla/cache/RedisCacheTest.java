@@ -0,0 +1,696 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedisCacheTest {
+    // just enough of a Redis to talk to (strings, lists, TTLs, MULTI, SELECT and scripts, run by luaj), so there's no
+    // need for a real one.
+    private static class FakeRedis implements Runnable {
+        private static final Object OK = "OK";
+        private static final Object QUEUED = "QUEUED";
+
+        private static class Failure {
+            private final String message;
+
+            Failure(String message) {
+                this.message = message;
+            }
+        }
+
+        private final ServerSocket ss;
+        private final Map<Integer, Db> dbs = new HashMap<>();
+        // how many times a connection changed databases.
+        private int selects = 0;
+
+        FakeRedis() throws IOException {
+            ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(this, "Fake redis");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int port() {
+            return ss.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Socket s;
+                try {
+                    s = ss.accept();
+                } catch (IOException e) {
+                    // closed, we're done
+                    return;
+                }
+                Thread t = new Thread(() -> serve(s), "Fake redis connection");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void serve(Socket s) {
+            try (Socket socket = s) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                Db db = db(0);
+                // the commands of a MULTI, until its EXEC.
+                List<List<byte[]>> queued = null;
+                while (true) {
+                    List<byte[]> command = command(in);
+                    if (command == null) {
+                        return;
+                    }
+                    String name = str(command.get(0)).toUpperCase();
+                    if (name.equals("SELECT")) {
+                        synchronized (this) {
+                            selects++;
+                        }
+                        db = db(Integer.parseInt(str(command.get(1))));
+                        write(out, OK);
+                    } else if (name.equals("MULTI")) {
+                        queued = new ArrayList<>();
+                        write(out, OK);
+                    } else if (name.equals("EXEC") && queued != null) {
+                        List<Object> replies = new ArrayList<>();
+                        synchronized (this) {
+                            for (List<byte[]> c : queued) {
+                                replies.add(call(db, c));
+                            }
+                        }
+                        queued = null;
+                        write(out, replies);
+                    } else if (queued != null) {
+                        queued.add(command);
+                        write(out, QUEUED);
+                    } else {
+                        Object reply;
+                        synchronized (this) {
+                            reply = call(db, command);
+                        }
+                        write(out, reply);
+                    }
+                    // pipelined commands are answered in one go
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            }
+        }
+
+        // what Redis would answer: strings are status replies, byte arrays bulk ones.
+        private static Object call(Db db, List<byte[]> c) {
+            String name = str(c.get(0)).toUpperCase();
+            String key = c.size() > 1 ? str(c.get(1)) : null;
+            switch (name) {
+                case "PING":
+                    return "PONG";
+                case "GET":
+                    return db.string(key);
+                case "SET":
+                    // NX and EX, the only options used
+                    List<String> options = new ArrayList<>();
+                    for (byte[] o : c.subList(3, c.size())) {
+                        options.add(str(o).toUpperCase());
+                    }
+                    if (options.contains("NX") && db.get(key) != null) {
+                        return null;
+                    }
+                    int ex = options.indexOf("EX");
+                    db.put(key, c.get(2), ex >= 0 ? Long.parseLong(options.get(ex + 1)) : 0);
+                    return OK;
+                case "SETEX":
+                    db.put(key, c.get(3), Long.parseLong(str(c.get(2))));
+                    return OK;
+                case "MGET":
+                    List<Object> vals = new ArrayList<>();
+                    for (byte[] k : c.subList(1, c.size())) {
+                        vals.add(db.string(str(k)));
+                    }
+                    return vals;
+                case "EXISTS":
+                case "DEL":
+                    long n = 0;
+                    for (byte[] k : c.subList(1, c.size())) {
+                        if (db.get(str(k)) != null) {
+                            n++;
+                            if (name.equals("DEL")) {
+                                db.data.remove(str(k));
+                                db.expires.remove(str(k));
+                            }
+                        }
+                    }
+                    return n;
+                case "EXPIRE":
+                    if (db.get(key) == null) {
+                        return 0L;
+                    }
+                    db.expires.put(key, System.currentTimeMillis() + Long.parseLong(str(c.get(2))) * 1000);
+                    return 1L;
+                case "PTTL":
+                    if (db.get(key) == null) {
+                        return -2L;
+                    }
+                    return db.expires.containsKey(key) ? db.expires.get(key) - System.currentTimeMillis() : -1L;
+                case "STRLEN":
+                    byte[] s = db.string(key);
+                    return s != null ? (long) s.length : 0L;
+                case "GETRANGE":
+                    s = db.string(key);
+                    int from = Integer.parseInt(str(c.get(2)));
+                    int to = Integer.parseInt(str(c.get(3)));
+                    return s == null || from >= s.length ? new byte[0] : Arrays.copyOfRange(s, from,
+                            Math.min(to + 1, s.length));
+                case "RPUSH":
+                    List<byte[]> l = db.list(key, true);
+                    l.addAll(c.subList(2, c.size()));
+                    return (long) l.size();
+                case "LLEN":
+                    l = db.list(key, false);
+                    return l != null ? (long) l.size() : 0L;
+                case "LRANGE":
+                    l = db.list(key, false);
+                    List<Object> range = new ArrayList<>();
+                    if (l != null) {
+                        int stop = Integer.parseInt(str(c.get(3)));
+                        stop = stop < 0 ? l.size() + stop : Math.min(stop, l.size() - 1);
+                        for (int i = Integer.parseInt(str(c.get(2))); i <= stop; i++) {
+                            range.add(l.get(i));
+                        }
+                    }
+                    return range;
+                case "RENAME":
+                    if (db.get(key) == null) {
+                        return new Failure("ERR no such key");
+                    }
+                    String dst = str(c.get(2));
+                    db.data.put(dst, db.data.remove(key));
+                    db.expires.remove(dst);
+                    if (db.expires.containsKey(key)) {
+                        db.expires.put(dst, db.expires.remove(key));
+                    }
+                    return OK;
+                case "EVAL":
+                    return eval(db, c);
+                default:
+                    return new Failure("ERR unknown command '" + name + "'");
+            }
+        }
+
+        // the script gets `redis.call`, and replies are converted both ways the way Redis does it (a missing bulk reply
+        // is false, a status reply is {ok = ...}, and so on).
+        private static Object eval(Db db, List<byte[]> c) {
+            int n = Integer.parseInt(str(c.get(2)));
+            Globals g = JsePlatform.standardGlobals();
+            g.set("KEYS", table(c.subList(3, 3 + n)));
+            g.set("ARGV", table(c.subList(3 + n, c.size())));
+
+            LuaTable redis = new LuaTable();
+            redis.set("call", new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    List<byte[]> command = new ArrayList<>();
+                    for (int i = 1; i <= args.narg(); i++) {
+                        command.add(bytes(args.checkstring(i)));
+                    }
+                    Object reply = FakeRedis.call(db, command);
+                    if (reply instanceof Failure) {
+                        throw new LuaError(((Failure) reply).message);
+                    }
+                    return lua(reply);
+                }
+            });
+            g.set("redis", redis);
+
+            try {
+                return redis(g.load(str(c.get(1))).call());
+            } catch (LuaError e) {
+                return new Failure("ERR " + e.getMessage());
+            }
+        }
+
+        private static LuaTable table(List<byte[]> l) {
+            LuaTable t = new LuaTable();
+            for (int i = 0; i < l.size(); i++) {
+                t.set(i + 1, LuaString.valueOf(l.get(i)));
+            }
+            return t;
+        }
+
+        private static LuaValue lua(Object reply) {
+            if (reply == null) {
+                return LuaValue.FALSE;
+            } else if (reply instanceof String) {
+                LuaTable t = new LuaTable();
+                t.set("ok", (String) reply);
+                return t;
+            } else if (reply instanceof Long) {
+                return LuaValue.valueOf((Long) reply);
+            } else if (reply instanceof byte[]) {
+                return LuaString.valueOf((byte[]) reply);
+            }
+            LuaTable t = new LuaTable();
+            List<?> l = (List<?>) reply;
+            for (int i = 0; i < l.size(); i++) {
+                t.set(i + 1, lua(l.get(i)));
+            }
+            return t;
+        }
+
+        private static Object redis(LuaValue v) {
+            if (v.isnil() || v == LuaValue.FALSE) {
+                return null;
+            } else if (v == LuaValue.TRUE) {
+                return 1L;
+            } else if (v.type() == LuaValue.TNUMBER) {
+                return v.tolong();
+            } else if (v.type() == LuaValue.TSTRING) {
+                return bytes(v.checkstring());
+            } else if (!v.get("ok").isnil()) {
+                return v.get("ok").tojstring();
+            }
+            List<Object> l = new ArrayList<>();
+            for (int i = 1; !v.get(i).isnil(); i++) {
+                l.add(redis(v.get(i)));
+            }
+            return l;
+        }
+
+        // one of the numbered databases.
+        private static class Db {
+            // strings are byte arrays, lists are lists of them.
+            private final Map<String, Object> data = new HashMap<>();
+            // when keys expire, in milliseconds.
+            private final Map<String, Long> expires = new HashMap<>();
+
+            // the value of `key`, unless it's expired (then it goes away).
+            private Object get(String key) {
+                Long at = expires.get(key);
+                if (at != null && at <= System.currentTimeMillis()) {
+                    data.remove(key);
+                    expires.remove(key);
+                }
+                return data.get(key);
+            }
+
+            private byte[] string(String key) {
+                Object v = get(key);
+                return v instanceof byte[] ? (byte[]) v : null;
+            }
+
+            @SuppressWarnings("unchecked")
+            private List<byte[]> list(String key, boolean create) {
+                Object v = get(key);
+                if (v == null && create) {
+                    v = new ArrayList<byte[]>();
+                    data.put(key, v);
+                }
+                return v instanceof List ? (List<byte[]>) v : null;
+            }
+
+            private void put(String key, byte[] val, long seconds) {
+                data.put(key, val);
+                if (seconds > 0) {
+                    expires.put(key, System.currentTimeMillis() + seconds * 1000);
+                } else {
+                    expires.remove(key);
+                }
+            }
+        }
+
+        private synchronized Db db(int n) {
+            return dbs.computeIfAbsent(n, i -> new Db());
+        }
+
+        synchronized int selects() {
+            return selects;
+        }
+
+        private static void write(OutputStream out, Object reply) throws IOException {
+            if (reply == null) {
+                out.write(bytes("$-1\r\n"));
+            } else if (reply instanceof String) {
+                out.write(bytes("+" + reply + "\r\n"));
+            } else if (reply instanceof Failure) {
+                out.write(bytes("-" + ((Failure) reply).message + "\r\n"));
+            } else if (reply instanceof Long) {
+                out.write(bytes(":" + reply + "\r\n"));
+            } else if (reply instanceof byte[]) {
+                byte[] b = (byte[]) reply;
+                out.write(bytes("$" + b.length + "\r\n"));
+                out.write(b);
+                out.write(bytes("\r\n"));
+            } else {
+                List<?> l = (List<?>) reply;
+                out.write(bytes("*" + l.size() + "\r\n"));
+                for (Object o : l) {
+                    write(out, o);
+                }
+            }
+        }
+
+        // null once the client's done.
+        private static List<byte[]> command(InputStream in) throws IOException {
+            String l = line(in);
+            if (l == null) {
+                return null;
+            }
+            if (!l.startsWith("*")) {
+                throw new IOException("Not a command: " + l);
+            }
+            int n = Integer.parseInt(l.substring(1));
+            List<byte[]> c = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int len = Integer.parseInt(line(in).substring(1));
+                byte[] b = new byte[len + 2];
+                for (int r = 0; r < b.length; ) {
+                    int got = in.read(b, r, b.length - r);
+                    if (got < 0) {
+                        throw new EOFException();
+                    }
+                    r += got;
+                }
+                c.add(Arrays.copyOf(b, len));
+            }
+            return c;
+        }
+
+        private static String line(InputStream in) throws IOException {
+            ByteArrayOutputStream l = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                if (b != '\r') {
+                    l.write(b);
+                }
+            }
+            return new String(l.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        private static String str(byte[] b) {
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        private static byte[] bytes(String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] bytes(LuaString s) {
+            byte[] b = new byte[s.m_length];
+            s.copyInto(0, b, 0, b.length);
+            return b;
+        }
+
+        void close() throws IOException {
+            ss.close();
+        }
+    }
+
+    FakeRedis redis;
+    JedisPool pool;
+    RedisCache rc;
+
+    @Before
+    public void init() throws IOException {
+        redis = new FakeRedis();
+        pool = new JedisPool(new JedisPoolConfig(), "localhost", redis.port(), 2000, null, 0);
+        rc = new RedisCache(pool);
+    }
+
+    private static byte[] random(int size) {
+        byte[] b = new byte[size];
+        new Random().nextBytes(b);
+        return b;
+    }
+
+    private static String done(byte[] payload) {
+        return "{\"status\":\"done\",\"size\":" + payload.length + "}";
+    }
+
+    private void write(String key, byte[] payload) throws IOException, CacheException {
+        rc.set(key, "{}");
+        try (OutputStream os = rc.payloadSink(key)) {
+            os.write(payload);
+        }
+        rc.set(key, done(payload));
+    }
+
+    @Test
+    public void peekTest() throws CacheException {
+        rc.set("done", "{\"n\":1}");
+        rc.set("running", "{\"n\":2}");
+        rc.lock("running");
+
+        List<String> keys = Arrays.asList("done", "running", "missing");
+        List<Peek> peeks = rc.peek(keys, false);
+        assertEquals(peeks.size(), 3);
+
+        assertTrue(peeks.get(0).exists());
+        assertFalse(peeks.get(0).locked());
+        assertNull(peeks.get(0).getAnswer());
+
+        assertTrue(peeks.get(1).exists());
+        assertTrue(peeks.get(1).locked());
+
+        assertFalse(peeks.get(2).exists());
+        assertFalse(peeks.get(2).locked());
+
+        // with the answers: only the ones that are done
+        peeks = rc.peek(keys, true);
+        assertTrue(peeks.get(0).exists());
+        assertEquals(peeks.get(0).getAnswer().getInt("n"), 1);
+        assertTrue(peeks.get(1).locked());
+        assertNull(peeks.get(1).getAnswer());
+        assertFalse(peeks.get(2).exists());
+        assertNull(peeks.get(2).getAnswer());
+
+        assertTrue(rc.peek(Collections.emptyList(), true).isEmpty());
+
+        rc.unlock("running");
+        assertFalse(rc.peek(Collections.singletonList("running"), false).get(0).locked());
+    }
+
+    @Test
+    public void compoundTest() throws IOException, CacheException, InterruptedException {
+        long now = System.currentTimeMillis() / 1000;
+
+        // the placeholder and its lock, both for as long as the lease
+        rc.start("k", "{}", 3600);
+        assertTrue(rc.exists("k"));
+        assertTrue(rc.locked("k"));
+        assertTrue(rc.expiration("k") > now);
+
+        // the answer, unlocked, expiring when it says
+        byte[] payload = random(1000);
+        try (OutputStream os = rc.payloadSink("k")) {
+            os.write(payload);
+        }
+        rc.finish("k", done(payload), 7200);
+        assertFalse(rc.locked("k"));
+        assertEquals(rc.get("k").getInt("size"), payload.length);
+        assertTrue(rc.expiration("k") > now + 3600);
+
+        // the data set goes with it
+        rc.set("k", done(payload), 1);
+        Thread.sleep(1100);
+        assertFalse(rc.exists("k"));
+        assertNull(rc.payloadSource("k"));
+
+        // and with the rest of it, lock included
+        write("k", payload);
+        rc.lock("k");
+        rc.delete("k");
+        assertFalse(rc.exists("k"));
+        assertFalse(rc.locked("k"));
+        assertNull(rc.payloadSource("k"));
+    }
+
+    @Test
+    public void databaseTest() throws CacheException {
+        JedisPool other = new JedisPool(new JedisPoolConfig(), "localhost", redis.port(), 2000, null, 3);
+        RedisCache oc = new RedisCache(other);
+
+        for (int i = 0; i < 10; i++) {
+            oc.set("k" + i, "{}");
+        }
+        assertTrue(oc.exists("k0"));
+        assertFalse(rc.exists("k0"));
+
+        // the pool's connection is on that database from the start, it doesn't select it every time it's borrowed
+        assertEquals(redis.selects(), 1);
+        other.close();
+    }
+
+    @Test
+    public void leaseTest() throws IOException, CacheException {
+        Lease l = rc.tryStart("k", "{}", 30);
+        assertNotNull(l);
+        assertTrue(rc.locked("k"));
+        // only one run at a time
+        assertNull(rc.tryStart("k", "{}", 30));
+        assertTrue(rc.renew(l));
+
+        byte[] payload = random(1000);
+        try (OutputStream os = rc.payloadSink(l)) {
+            os.write(payload);
+        }
+        // nobody sees the data set until it's finished
+        assertNull(rc.payloadSource("k"));
+        assertTrue(rc.finish(l, done(payload), 3600));
+        assertFalse(rc.locked("k"));
+        assertEquals(rc.get("k").getString("status"), "done");
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("k")), payload);
+
+        // giving up leaves nothing behind
+        l = rc.tryStart("k", "{}", 30);
+        try (OutputStream os = rc.payloadSink(l)) {
+            os.write(random(1000));
+        }
+        assertTrue(rc.release(l));
+        assertFalse(rc.exists("k"));
+        assertFalse(rc.locked("k"));
+        assertNull(rc.payloadSource("k"));
+        try (Jedis jedis = pool.getResource()) {
+            assertFalse(jedis.exists(Cache.hash("k") + "-chunks-" + l.getOwner()));
+        }
+    }
+
+    @Test
+    public void staleLeaseTest() throws IOException, CacheException, InterruptedException {
+        Lease stale = rc.tryStart("k", "{}", 1);
+        byte[] old = random(1000);
+        try (OutputStream os = rc.payloadSink(stale)) {
+            os.write(old);
+        }
+
+        // it wasn't renewed in time: somebody else takes over
+        Thread.sleep(1100);
+        Lease l = rc.tryStart("k", "{}", 30);
+        assertNotNull(l);
+
+        // and the one that lost it can't renew, finish or give up on it anymore
+        assertFalse(rc.renew(stale));
+        assertFalse(rc.finish(stale, done(old), 3600));
+        assertFalse(rc.release(stale));
+        assertTrue(rc.locked("k"));
+        assertEquals(rc.get("k").length(), 0);
+
+        byte[] payload = random(2000);
+        try (OutputStream os = rc.payloadSink(l)) {
+            os.write(payload);
+        }
+        assertTrue(rc.finish(l, done(payload), 3600));
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("k")), payload);
+    }
+
+    @Test
+    public void chunkTest() throws IOException, CacheException {
+        // a bit of a chunk, and more chunks than are read in one go
+        byte[] small = random(1000);
+        byte[] big = random(9 * (1 << 20) + 1000);
+
+        write("small", small);
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("small")), small);
+
+        write("big", big);
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("big")), big);
+
+        assertNull(rc.payloadSource("missing"));
+    }
+
+    @Test
+    public void legacyTest() throws IOException, CacheException {
+        // written before data sets were lists: a single string, read back a chunk at a time
+        byte[] payload = random(2 * (1 << 20) + 1000);
+        rc.set("old", done(payload));
+        try (Jedis jedis = pool.getResource()) {
+            jedis.set((Cache.hash("old") + "-payload").getBytes(StandardCharsets.UTF_8), payload);
+        }
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("old")), payload);
+
+        // a new one takes its place
+        byte[] other = random(1000);
+        write("old", other);
+        assertArrayEquals(IOUtils.toByteArray(rc.payloadSource("old")), other);
+    }
+
+    @Test
+    public void changedWhileReadingTest() throws IOException, CacheException {
+        byte[] payload = random(9 * (1 << 20));
+
+        // run again halfway through: the rest would be somebody else's data set
+        write("k", payload);
+        try (InputStream is = rc.payloadSource("k")) {
+            write("k", random(payload.length));
+            IOUtils.toByteArray(is);
+            fail("Read a data set that changed halfway through");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("changed"));
+        }
+
+        // gone halfway through: that's not the end of it
+        write("k", payload);
+        try (InputStream is = rc.payloadSource("k")) {
+            rc.delete("k");
+            IOUtils.toByteArray(is);
+            fail("Read a data set that went away halfway through");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("went away"));
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        pool.close();
+        redis.close();
+    }
+}
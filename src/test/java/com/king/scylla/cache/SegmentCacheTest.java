@@ -0,0 +1,172 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.cache;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentCacheTest {
+    SegmentCache sc;
+    String path = "/tmp/test.scylla.scache." + Math.abs(new Random().nextLong()) + "." + new Date().getTime();
+
+    @Before
+    public void init() throws CacheException {
+        // tiny segments, so that they're sealed all the time
+        sc = new SegmentCache(path, 4096);
+    }
+
+    private byte[] read(InputStream is) throws IOException {
+        try (InputStream i = is) {
+            return IOUtils.toByteArray(i);
+        }
+    }
+
+    @Test
+    public void basicFunctionalityTest() throws IOException, CacheException {
+        sc.set("k", "{\"ok\":\"yes\"}");
+        assertTrue(sc.exists("k"));
+        assertEquals(sc.get("k").getString("ok"), "yes");
+
+        sc.lock("k");
+        assertTrue(sc.locked("k"));
+        sc.unlock("k");
+        assertFalse(sc.locked("k"));
+
+        sc.expire("k", -1);
+        assertFalse(sc.exists("k"));
+
+        sc.set("k", "{}");
+        sc.delete("k");
+        assertFalse(sc.exists("k"));
+    }
+
+    @Test
+    public void payloadTest() throws IOException, CacheException {
+        byte[] payload = new byte[10000];
+        new Random().nextBytes(payload);
+
+        sc.set("k", "{}");
+        assertNull(sc.payloadSource("k"));
+        try (OutputStream os = sc.payloadSink("k")) {
+            os.write(payload);
+        }
+        sc.set("k", "{\"size\":10000}");
+
+        assertArrayEquals(read(sc.payloadSource("k")), payload);
+        // the data set's in a segment, so it can't be sent quickly, but it's there
+        assertNull(sc.quickPeek("k", true));
+        assertTrue(sc.quickPeek("k", false).exists());
+    }
+
+    @Test
+    public void recoveryAndCompactionTest() throws IOException, CacheException {
+        for (int i = 0; i < 100; i++) {
+            sc.set("k" + (i % 10), String.format("{\"i\":%d}", i));
+        }
+        try (OutputStream os = sc.payloadSink("k0")) {
+            os.write("data set".getBytes(StandardCharsets.UTF_8));
+        }
+        sc.expire("k1", 3600);
+        sc.lock("k2");
+        sc.delete("k3");
+
+        assertTrue(sc.compact() > 0);
+        assertTrue(sc.locked("k2"));
+        sc.close();
+
+        // k2 was locked by a query that went down with the cache
+        sc = new SegmentCache(path, 4096);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(sc.exists("k" + i), i != 2 && i != 3);
+            if (i != 2 && i != 3) {
+                assertEquals(sc.get("k" + i).getInt("i"), 90 + i);
+            }
+        }
+        assertArrayEquals(read(sc.payloadSource("k0")), "data set".getBytes(StandardCharsets.UTF_8));
+        assertFalse(sc.locked("k2"));
+        assertFalse(sc.locked("k1"));
+    }
+
+    @Test
+    public void concurrentPayloadsTest() throws IOException, CacheException {
+        // two data sets being written at once, and the rest of the cache carrying on meanwhile
+        byte[] a = new byte[10000];
+        byte[] b = new byte[20000];
+        new Random().nextBytes(a);
+        new Random().nextBytes(b);
+
+        sc.set("a", "{}");
+        sc.set("b", "{}");
+        try (OutputStream oa = sc.payloadSink("a"); OutputStream ob = sc.payloadSink("b")) {
+            for (int i = 0; i < 10; i++) {
+                oa.write(a, i * 1000, 1000);
+                ob.write(b, i * 2000, 2000);
+                sc.set("k" + i, String.format("{\"i\":%d}", i));
+                assertEquals(sc.get("k" + i).getInt("i"), i);
+            }
+        }
+
+        assertArrayEquals(read(sc.payloadSource("a")), a);
+        assertArrayEquals(read(sc.payloadSource("b")), b);
+
+        sc.close();
+        sc = new SegmentCache(path, 4096);
+        assertArrayEquals(read(sc.payloadSource("a")), a);
+        assertArrayEquals(read(sc.payloadSource("b")), b);
+    }
+
+    @Test
+    public void corruptRecordTest() throws IOException, CacheException {
+        sc.set("good", "{\"what\":\"fine\"}");
+        sc.set("bad", "{\"what\":\"rotten\"}");
+        sc.close();
+
+        // flip a byte in the body of the second answer: it should be left out on the way back up
+        byte[] marker = "rotten".getBytes(StandardCharsets.UTF_8);
+        boolean flipped = false;
+        for (File f : new File(path, "segments").listFiles()) {
+            byte[] data = FileUtils.readFileToByteArray(f);
+            for (int i = 0; i + marker.length <= data.length && !flipped; i++) {
+                int j = 0;
+                while (j < marker.length && data[i + j] == marker[j]) {
+                    j++;
+                }
+                if (j == marker.length) {
+                    data[i] = 'R';
+                    FileUtils.writeByteArrayToFile(f, data);
+                    flipped = true;
+                }
+            }
+        }
+        assertTrue(flipped);
+
+        sc = new SegmentCache(path, 4096);
+        assertEquals(sc.get("good").getString("what"), "fine");
+        assertFalse(sc.exists("bad"));
+    }
+
+    @After
+    public void cleanup() throws IOException, CacheException {
+        sc.close();
+        FileUtils.deleteDirectory(new File(path));
+    }
+}
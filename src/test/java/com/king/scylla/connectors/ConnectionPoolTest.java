@@ -0,0 +1,185 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.connectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+    // a driver for "jdbc:fake:" that only remembers what it's been asked
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    private int connects = 0;
+    private int closes = 0;
+    private Driver driver;
+
+    private ConnectionPool pool;
+
+    private Statement statement() {
+        return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Statement.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("execute")) {
+                        executed.add((String) args[0]);
+                        return false;
+                    }
+                    return null;
+                });
+    }
+
+    private Connection connection() {
+        boolean[] closed = {false};
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement();
+                        case "isClosed":
+                            return closed[0];
+                        case "isValid":
+                            return !closed[0];
+                        case "close":
+                            closed[0] = true;
+                            closes++;
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Before
+    public void init() throws SQLException {
+        driver = (Driver) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Driver.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "acceptsURL":
+                            return ((String) args[0]).startsWith("jdbc:fake:");
+                        case "connect":
+                            if (!((String) args[0]).startsWith("jdbc:fake:")) {
+                                return null;
+                            }
+                            connects++;
+                            return connection();
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return null;
+                    }
+                });
+        DriverManager.registerDriver(driver);
+        pool = new ConnectionPool(1, 2, 300);
+    }
+
+    private Connection borrow(String jdbc, List<String> hparams) throws SQLException, ClassNotFoundException {
+        return pool.borrow("java.lang.Object", jdbc, "user", "password", hparams);
+    }
+
+    @Test
+    public void reuseTest() throws SQLException, ClassNotFoundException {
+        List<String> hparams = Collections.singletonList("set a=1");
+
+        try (Connection c = borrow("jdbc:fake:1", hparams)) {
+            assertFalse(c.isClosed());
+        }
+        try (Connection c = borrow("jdbc:fake:1", hparams)) {
+            assertFalse(c.isClosed());
+        }
+        // same session: opened once, hparams applied once
+        assertEquals(1, connects);
+        assertEquals(Collections.singletonList("set a=1"), executed);
+        assertEquals(1, pool.idle());
+
+        // a different session doesn't get it
+        borrow("jdbc:fake:1", Arrays.asList("set a=1", "set b=2")).close();
+        assertEquals(2, connects);
+        assertEquals(2, pool.idle());
+    }
+
+    @Test
+    public void limitsTest() throws SQLException, ClassNotFoundException {
+        Connection a = borrow("jdbc:fake:1", null);
+        Connection b = borrow("jdbc:fake:1", null);
+        assertEquals(2, connects);
+
+        // the second one is over the limit for its key, it's really closed
+        a.close();
+        b.close();
+        assertTrue(a.isClosed());
+        assertEquals(1, closes);
+        assertEquals(1, pool.idle());
+
+        // the pool is full: the least recently used idle connection makes room
+        borrow("jdbc:fake:2", null).close();
+        borrow("jdbc:fake:3", null).close();
+        assertEquals(2, closes);
+        assertEquals(2, pool.idle());
+
+        pool.shutdown();
+        assertEquals(0, pool.idle());
+        assertEquals(4, closes);
+    }
+
+    @Test
+    public void sessionTest() throws SQLException, ClassNotFoundException {
+        assertTrue(ConnectionPool.changesSession("use games"));
+        assertTrue(ConnectionPool.changesSession("  SET hive.execution.engine=tez"));
+        assertTrue(ConnectionPool.changesSession("-- first\n/* then */ create temporary function f as 'F'"));
+        assertTrue(ConnectionPool.changesSession("select 1; use games"));
+        assertFalse(ConnectionPool.changesSession("select * from users"));
+        assertFalse(ConnectionPool.changesSession("update settings set a = 1"));
+        assertFalse(ConnectionPool.changesSession(null));
+
+        // a plain query: it goes back
+        borrow("jdbc:fake:1", null).close();
+        assertEquals(1, pool.idle());
+
+        // one that changes the session: it's closed once it's done
+        Connection c = borrow("jdbc:fake:1", null);
+        ConnectionPool.retire(c);
+        c.close();
+        assertEquals(0, pool.idle());
+        assertEquals(1, closes);
+
+        c = borrow("jdbc:fake:1", null);
+        c.prepareStatement("use games");
+        c.close();
+        assertEquals(0, pool.idle());
+        assertEquals(2, closes);
+
+        c = borrow("jdbc:fake:1", null);
+        c.setCatalog("games");
+        c.close();
+        assertEquals(0, pool.idle());
+        assertEquals(3, closes);
+
+        // and nobody gets its session afterwards
+        borrow("jdbc:fake:1", null).close();
+        assertEquals(4, connects);
+        assertEquals(1, pool.idle());
+    }
+
+    @After
+    public void cleanup() throws SQLException {
+        pool.shutdown();
+        DriverManager.deregisterDriver(driver);
+    }
+}
@@ -0,0 +1,159 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.connectors;
+
+import com.king.scylla.meta.QConfig;
+import com.king.scylla.meta.ScyllaConf;
+import com.king.scylla.meta.ScyllaException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DBConnectorTest {
+    private static DBConnector connector(int timeout) throws ScyllaException {
+        return connector(timeout, new Properties());
+    }
+
+    private static DBConnector connector(int timeout, Properties properties) throws ScyllaException {
+        JSONObject jo = new JSONObject();
+        jo.put("query", "select 1");
+        jo.put("user", "scylla");
+        jo.put("jdbcstring", "jdbc:hive2://localhost:10000");
+        if (timeout > 0) {
+            jo.put("timeout", timeout);
+        }
+        QConfig qc = QConfig.qcFromInstruction(jo, null);
+        qc.setConf(new ScyllaConf(properties));
+        return new DBConnector(qc);
+    }
+
+    // a JDBC object of type `type` that answers `answers` by method name (null for the rest), and counts down `closed`
+    // when it's closed.
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, Map<String, Object> answers, CountDownLatch closed) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getName().equals("close") && closed != null) {
+                closed.countDown();
+            }
+            Object answer = answers.get(method.getName());
+            if (answer == null && method.getReturnType() == boolean.class) {
+                return false;
+            } else if (answer == null && method.getReturnType() == int.class) {
+                return 0;
+            }
+            return answer;
+        });
+    }
+
+    // connections that verify anything (with an empty plan) and run any update, counting how many were opened.
+    private static DBConnector holdingConnector(AtomicInteger borrowed, CountDownLatch closed) throws ScyllaException {
+        Properties properties = new Properties();
+        properties.setProperty("verify_on_query_connection", "yes");
+        DBConnector c = connector(0, properties);
+        return new DBConnector(c.qc) {
+            @Override
+            Connection getConnection() {
+                borrowed.incrementAndGet();
+                Map<String, Object> answers = new HashMap<>();
+                answers.put("prepareStatement", fake(PreparedStatement.class, Collections.singletonMap("executeQuery",
+                        fake(ResultSet.class, Collections.emptyMap(), null)), null));
+                answers.put("createStatement", fake(Statement.class, Collections.emptyMap(), null));
+                return fake(Connection.class, answers, closed);
+            }
+        };
+    }
+
+    @Test
+    public void heldConnectionTest() throws ScyllaException, SQLException, IOException {
+        // the query runs on the connection it was verified on
+        AtomicInteger borrowed = new AtomicInteger();
+        CountDownLatch closed = new CountDownLatch(1);
+        DBConnector c = holdingConnector(borrowed, closed);
+        assertEquals("yes", new JSONObject(c.verifyQuery().toString()).getString("ok"));
+        assertEquals(1, closed.getCount());
+        assertEquals(0, new JSONObject(c.query(true, null).toString()).getInt("n"));
+        assertEquals(1, borrowed.get());
+        assertEquals(0, closed.getCount());
+
+        // given back while the query waits, it gets another one when it runs
+        borrowed.set(0);
+        closed = new CountDownLatch(2);
+        c = holdingConnector(borrowed, closed);
+        assertEquals("yes", new JSONObject(c.verifyQuery().toString()).getString("ok"));
+        c.close();
+        assertEquals(1, closed.getCount());
+        assertEquals(0, new JSONObject(c.query(true, null).toString()).getInt("n"));
+        assertEquals(2, borrowed.get());
+        assertEquals(0, closed.getCount());
+    }
+
+    // a statement that only knows how to be cancelled (and doesn't do timeouts itself, like Hive's).
+    private static Statement statement(CountDownLatch cancelled) {
+        return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "cancel":
+                            cancelled.countDown();
+                            return null;
+                        case "setQueryTimeout":
+                            throw new SQLException("Method not supported");
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Test
+    public void deadlineTest() throws ScyllaException, SQLException, InterruptedException {
+        DBConnector c = connector(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        c.watch(statement(cancelled));
+        assertNull(c.stopped());
+
+        // the watchdog does it
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertEquals("Your query ran for longer than its 1 seconds.", c.stopped());
+        c.unwatch();
+    }
+
+    @Test
+    public void cancelTest() throws ScyllaException, SQLException {
+        // cancelled while it runs
+        DBConnector c = connector(0);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        c.watch(statement(cancelled));
+        c.stop("Your query was cancelled.");
+        assertEquals(0, cancelled.getCount());
+        c.unwatch();
+
+        // cancelled before it gets to run: it doesn't
+        DBConnector early = connector(0);
+        early.stop("Your query was cancelled.");
+        try {
+            early.watch(statement(new CountDownLatch(1)));
+            throw new AssertionError("ran after being cancelled");
+        } catch (SQLException e) {
+            assertEquals("Your query was cancelled.", e.getMessage());
+        }
+    }
+}
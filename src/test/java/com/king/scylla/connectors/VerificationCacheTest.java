@@ -0,0 +1,70 @@
+// Copyright (C) king.com Ltd 2016
+// https://github.com/king/scylla
+// License: Apache 2.0, https://raw.github.com/king/scylla/LICENSE-APACHE
+
+package com.king.scylla.connectors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class VerificationCacheTest {
+    @Test
+    public void verdictsTest() throws InterruptedException {
+        VerificationCache vc = new VerificationCache(2, 300);
+
+        assertNull(vc.nobg("a"));
+        vc.verified("a", true);
+        vc.verified("b", false);
+        assertEquals(false, vc.nobg("b"));
+        assertEquals(true, vc.nobg("a"));
+
+        // only two fit, "b" is the least recently used one
+        vc.verified("c", false);
+        assertNull(vc.nobg("b"));
+        assertEquals(true, vc.nobg("a"));
+
+        vc.invalidate("a");
+        assertNull(vc.nobg("a"));
+
+        // they don't last
+        VerificationCache shortLived = new VerificationCache(2, 1);
+        shortLived.verified("a", false);
+        Thread.sleep(1100);
+        assertNull(shortLived.nobg("a"));
+
+        // a ttl of zero keeps nothing
+        VerificationCache off = new VerificationCache(2, 0);
+        off.verified("a", false);
+        assertNull(off.nobg("a"));
+    }
+
+    @Test
+    public void estimateTest() {
+        VerificationCache vc = new VerificationCache(2, 300);
+        vc.verified("a", false, 1234);
+        assertEquals(1234, vc.verdict("a").estimate());
+        vc.verified("b", true);
+        assertEquals(-1, vc.verdict("b").estimate());
+        assertEquals(true, vc.verdict("b").nobg());
+
+        // what the plans say
+        assertEquals(1024, DBConnector.estimate("          Statistics: Num rows: 10 Data size: 1024 Basic stats: COMPLETE"));
+        assertEquals(3 << 20, DBConnector.estimate("   partitions=2/2 files=2 size=3.00MB"));
+        assertEquals(-1, DBConnector.estimate("  Stage-0"));
+    }
+
+    @Test
+    public void normaliseTest() {
+        assertEquals("select * from t where a = 1", VerificationCache.normalise("  select *\n  from t\twhere a = 1 ;"));
+        assertEquals(VerificationCache.normalise("select 1"), VerificationCache.normalise("select   1;"));
+
+        // whitespace in literals and quoted names is part of the query
+        assertEquals("select 'a  b', `c  d` from t", VerificationCache.normalise("select 'a  b',  `c  d`\nfrom t"));
+        assertNotEquals(VerificationCache.normalise("select * from t where s = 'a b'"),
+                VerificationCache.normalise("select * from t where s = 'a  b'"));
+        assertEquals("select 'it''s  here', 'x\\'  y'", VerificationCache.normalise("select  'it''s  here', 'x\\'  y'"));
+    }
+}
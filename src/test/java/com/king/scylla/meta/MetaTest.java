@@ -4,15 +4,24 @@
 
 package com.king.scylla.meta;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.NotImplementedException;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.Properties;
 
 import static com.king.scylla.meta.QConfig.qcFromInstruction;
 import static com.king.scylla.meta.Scope.*;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 
@@ -36,6 +45,81 @@ public class MetaTest {
     }
 
 
+    @Test
+    public void codecTest() throws IOException {
+        byte[] data = "a\tb\tc\n1\t2\t3\n".getBytes(StandardCharsets.UTF_8);
+
+        for (Codec codec : Codec.values()) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            try (OutputStream cs = codec.compress(os)) {
+                cs.write(data);
+            }
+
+            try (InputStream is = codec.decompress(new ByteArrayInputStream(os.toByteArray()))) {
+                assertArrayEquals(IOUtils.toByteArray(is), data);
+            }
+
+            assertTrue(Codec.fromString(codec.getShortName()) == codec);
+        }
+    }
+
+    @Test
+    public void codecInstructionTest() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("user", "test");
+        jo.put("query", "sample query");
+        jo.put("codec", "lz4");
+
+        QConfig qc = qcFromInstruction(jo, null);
+        qc.setConf(new ScyllaConf(new Properties()));
+        assertTrue(qc.getCodec() == Codec.LZ4);
+
+        jo.remove("codec");
+        qc = qcFromInstruction(jo, null);
+        qc.setConf(new ScyllaConf(new Properties()));
+        assertTrue(qc.getCodec() == Codec.BZ2);
+    }
+
+    @Test
+    public void formatInstructionTest() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("user", "test");
+        jo.put("query", "sample query");
+
+        ScyllaConf sc = new ScyllaConf(new Properties());
+        sc.setFormat(Format.CSV);
+
+        QConfig qc = qcFromInstruction(jo, null);
+        qc.setConf(sc);
+        String key = qc.getKey();
+        assertTrue(qc.getFormat() == Format.CSV);
+
+        jo.put("format", "csv");
+        qc = qcFromInstruction(jo, null);
+        qc.setConf(sc);
+        assertEquals(key, qc.getKey());
+
+        jo.put("format", "arrow");
+        qc = qcFromInstruction(jo, null);
+        qc.setConf(sc);
+        assertTrue(qc.getFormat() == Format.ARROW);
+        String arrow = qc.getKey();
+        assertFalse(arrow.equals(key));
+
+        // the same question, on a server that answers in Arrow unless told otherwise.
+        ScyllaConf asc = new ScyllaConf(new Properties());
+        asc.setFormat(Format.ARROW);
+        jo.remove("format");
+        qc = qcFromInstruction(jo, null);
+        qc.setConf(asc);
+        assertEquals(arrow, qc.getKey());
+
+        jo.put("format", "csv");
+        qc = qcFromInstruction(jo, null);
+        qc.setConf(asc);
+        assertEquals(key, qc.getKey());
+    }
+
     @Test
     public void minimalScyllaConfTest() {
         Properties properties = new Properties();
@@ -46,6 +130,34 @@ public class MetaTest {
         assertTrue(sc.getDefaultJDBCStringForSope(HIVE).equals("example"));
     }
 
+    @Test
+    public void querySlotsTest() throws ScyllaException {
+        ScyllaConf sc = new ScyllaConf(new Properties());
+        assertTrue(sc.querySlots(HIVE) == null);
+
+        Properties properties = new Properties();
+        properties.setProperty("max_queries", "10");
+        properties.setProperty("hive_max_queries", "2");
+        properties.setProperty("impala_max_queries", "0");
+        sc = new ScyllaConf(properties);
+
+        assertTrue(sc.querySlots(HIVE).availablePermits() == 2);
+        assertTrue(sc.querySlots(HIVE) == sc.querySlots(HIVE));
+        assertTrue(sc.querySlots(EXASOL).availablePermits() == 10);
+        assertTrue(sc.querySlots(IMPALA) == null);
+
+        // no pool to speak of with virtual threads: there's always a limit, unless it's explicitly off
+        if (Threads.virtualAvailable()) {
+            sc = new ScyllaConf(properties);
+            sc.useVirtualThreads();
+            assertTrue(sc.querySlots(REDSHIFT) == null);
+
+            sc = new ScyllaConf(new Properties());
+            sc.useVirtualThreads();
+            assertTrue(sc.querySlots(REDSHIFT).availablePermits() == ScyllaConf.VIRTUAL_MAX_QUERIES);
+        }
+    }
+
     @Test
     public void minimalValidInstructionTest() throws JSONException {
         JSONObject jo = new JSONObject();
@@ -67,6 +179,91 @@ public class MetaTest {
     }
 
     // missing password
+    @Test
+    public void journalTest() throws IOException, ScyllaException {
+        Path path = Files.createTempDirectory("scylla.journal.").resolve("journal");
+
+        JSONObject jo = new JSONObject();
+        jo.put("query", "select 1");
+        jo.put("user", "scylla");
+        jo.put("scope", "exasol");
+        jo.put("password", "secret");
+        jo.put("format", "json");
+        ScyllaConf conf = new ScyllaConf(new Properties());
+        QConfig qc = qcFromInstruction(jo, null);
+        qc.setConf(conf);
+        JSONObject instruction = qc.toInstruction();
+        assertFalse(instruction.has("password"));
+
+        JobJournal journal = new JobJournal(path);
+        assertTrue(journal.orphans().isEmpty());
+        journal.submitted("a", instruction);
+        journal.submitted("b", instruction);
+        journal.running("b");
+        journal.submitted("c", instruction);
+        journal.finished("c");
+        journal.close();
+        // cut short by a crash
+        Files.write(path, "{\"job\":\"finis".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = new JobJournal(path);
+        List<JobJournal.Job> orphans = journal.orphans();
+        assertEquals(2, orphans.size());
+        assertEquals("a", orphans.get(0).getId());
+        assertFalse(orphans.get(0).isRunning());
+        assertEquals("b", orphans.get(1).getId());
+        assertTrue(orphans.get(1).isRunning());
+
+        // the same question, key and all
+        JSONObject back = new JSONObject(orphans.get(1).getInstruction().toString());
+        back.put("password", "");
+        QConfig recovered = qcFromInstruction(back, null);
+        recovered.setConf(conf);
+        assertEquals(qc.getKey(), recovered.getKey());
+
+        // only what's still around is kept once it's rewritten
+        for (int i = 0; i < JobJournal.COMPACT_AFTER; i++) {
+            journal.submitted("x" + i, instruction);
+            journal.finished("x" + i);
+        }
+        journal.finished("a");
+        assertEquals(1, journal.size());
+        assertTrue(Files.readAllLines(path).size() < JobJournal.COMPACT_AFTER);
+        journal.close();
+
+        journal = new JobJournal(path);
+        assertEquals(1, journal.orphans().size());
+        journal.close();
+    }
+
+    @Test
+    public void journalLockTest() throws IOException, ScyllaException {
+        Path path = Files.createTempDirectory("scylla.journal.").resolve("journal");
+
+        // only one Scylla at a time
+        JobJournal journal = new JobJournal(path);
+        boolean refused = false;
+        try {
+            new JobJournal(path);
+        } catch (ScyllaException e) {
+            refused = true;
+        }
+        assertTrue(refused);
+
+        journal.close();
+        journal = new JobJournal(path);
+        journal.close();
+
+        // and by default each one has a journal of its own
+        Properties properties = new Properties();
+        properties.setProperty("cache_path", path.getParent().toString());
+        ScyllaConf one = new ScyllaConf(properties);
+        ScyllaConf other = new ScyllaConf(properties);
+        other.setPort(30667);
+        one.journal().close();
+        other.journal().close();
+    }
+
     @Test
     public void subtleInvalidInstructiontest() throws JSONException {
         JSONObject jo = new JSONObject();